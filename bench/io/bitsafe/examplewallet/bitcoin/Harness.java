@@ -0,0 +1,104 @@
+/* This file is licensed as described by the file LICENCE. */
+
+package io.bitsafe.examplewallet.bitcoin;
+
+import io.bitsafe.examplewallet.daemon.Json;
+import io.bitsafe.examplewallet.gui.Console;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/** Things the command line harnesses have in common.
+ *
+ * @author Chris Chua
+ */
+public class Harness {
+    /** Held so that its level setting isn't lost to garbage collection. */
+    private static final Logger BITCOINJ_LOGGER = Logger.getLogger("com.google.bitcoin");
+
+    /** Console which drops everything except exceptions. Wallet logs every
+     * transaction it signs, which would drown out the results. */
+    public static final Console QUIET_CONSOLE = new Console() {
+        @Override
+        public void log(String text) {
+        }
+
+        @Override
+        public void log(Exception e) {
+            System.err.println(e);
+        }
+    };
+
+    /** bitcoinj logs a lot, and warns about every made up transaction. */
+    public static void quietenBitcoinj() {
+        BITCOINJ_LOGGER.setLevel(Level.SEVERE);
+    }
+
+    /** Parse name=value arguments. Exits if an argument isn't one of the
+     * given options.
+     * @param defaults Option names and default values (null for none)
+     * @param args Command line arguments
+     * @return Option values
+     */
+    public static Map<String, String> parseOptions(Map<String, String> defaults, String[] args) {
+        Map<String, String> options = new LinkedHashMap<>(defaults);
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if ((equals < 0) || !options.containsKey(arg.substring(0, equals))) {
+                System.err.println("Unknown option " + arg + "; options are " + options.keySet());
+                System.exit(1);
+            }
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        return options;
+    }
+
+    public static int[] parseInts(String list) {
+        String[] parts = list.split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Integer.parseInt(parts[i].trim());
+        }
+        return values;
+    }
+
+    public static File tempDirectory(String prefix) throws IOException {
+        File directory = File.createTempFile(prefix, "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Couldn't create " + directory);
+        }
+        return directory;
+    }
+
+    public static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.isDirectory()) {
+                    deleteDirectory(f);
+                } else {
+                    f.delete();
+                }
+            }
+        }
+        directory.delete();
+    }
+
+    /** Write results as JSON, if a file was given. */
+    public static void writeJson(String fileName, Object results) throws IOException {
+        if (fileName == null) {
+            return;
+        }
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(fileName), Charset.forName("UTF-8"))) {
+            out.write(Json.write(results));
+            out.write("\n");
+        }
+    }
+}
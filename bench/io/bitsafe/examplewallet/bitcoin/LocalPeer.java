@@ -0,0 +1,141 @@
+/* This file is licensed as described by the file LICENCE. */
+
+package io.bitsafe.examplewallet.bitcoin;
+
+import com.google.bitcoin.core.BitcoinSerializer;
+import com.google.bitcoin.core.InventoryMessage;
+import com.google.bitcoin.core.Message;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.PeerAddress;
+import com.google.bitcoin.core.Ping;
+import com.google.bitcoin.core.Pong;
+import com.google.bitcoin.core.ProtocolException;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.VersionAck;
+import com.google.bitcoin.core.VersionMessage;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Stand-in for a Bitcoin node, listening on a loopback port. It does just
+ * enough of the peer protocol for bitcoinj to connect to it and broadcast
+ * transactions through it: it claims to have no blocks beyond the genesis
+ * block, and announces every transaction it is sent back to the sender, as
+ * a node relaying it would.
+ *
+ * @author Chris Chua
+ */
+public class LocalPeer {
+    /** Size of the header of every peer protocol message. */
+    private static final int HEADER_SIZE = 24;
+    /** Offset of the payload length in the header. */
+    private static final int LENGTH_OFFSET = 16;
+
+    private final NetworkParameters params;
+    private final BitcoinSerializer serializer;
+    private final ServerSocket serverSocket;
+    private final CountDownLatch connected;
+    private final AtomicInteger transactionsReceived;
+
+    public LocalPeer(NetworkParameters inParams) throws IOException {
+        params = inParams;
+        serializer = new BitcoinSerializer(params);
+        serverSocket = new ServerSocket(0, 4, InetAddress.getLoopbackAddress());
+        connected = new CountDownLatch(1);
+        transactionsReceived = new AtomicInteger(0);
+    }
+
+    public void start() {
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        final Socket socket = serverSocket.accept();
+                        Thread connectionThread = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                serve(socket);
+                            }
+                        }, "local-peer-connection");
+                        connectionThread.setDaemon(true);
+                        connectionThread.start();
+                    } catch (IOException e) {
+                        // Closed.
+                    }
+                }
+            }
+        }, "local-peer");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+
+    /** Get the address to give bitcoinj to connect to this peer. */
+    public PeerAddress getAddress() {
+        return new PeerAddress(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+    }
+
+    /** Wait for a client to finish the version handshake. */
+    public boolean awaitConnection(long timeout, TimeUnit unit) throws InterruptedException {
+        return connected.await(timeout, unit);
+    }
+
+    public int getTransactionsReceived() {
+        return transactionsReceived.get();
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            OutputStream out = s.getOutputStream();
+            while (true) {
+                Message m = read(in);
+                if (m instanceof VersionMessage) {
+                    VersionMessage version = new VersionMessage(params, 0);
+                    version.localServices = VersionMessage.NODE_NETWORK;
+                    serializer.serialize(version, out);
+                    serializer.serialize(new VersionAck(), out);
+                } else if (m instanceof VersionAck) {
+                    connected.countDown();
+                } else if (m instanceof Ping) {
+                    // The nonce is the whole payload of a ping.
+                    long nonce = ByteBuffer.wrap(m.bitcoinSerialize()).order(ByteOrder.LITTLE_ENDIAN).getLong();
+                    serializer.serialize(new Pong(nonce), out);
+                } else if (m instanceof Transaction) {
+                    transactionsReceived.incrementAndGet();
+                    InventoryMessage inv = new InventoryMessage(params);
+                    inv.addTransaction((Transaction)m);
+                    serializer.serialize(inv, out);
+                }
+                // Nothing else (filters, requests for blocks or addresses)
+                // needs an answer from a node with no blocks.
+                out.flush();
+            }
+        } catch (IOException | ProtocolException e) {
+            // Client went away.
+        }
+    }
+
+    private Message read(DataInputStream in) throws IOException, ProtocolException {
+        byte[] header = new byte[HEADER_SIZE];
+        in.readFully(header);
+        int length = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN).getInt(LENGTH_OFFSET);
+        byte[] message = new byte[HEADER_SIZE + length];
+        System.arraycopy(header, 0, message, 0, HEADER_SIZE);
+        in.readFully(message, HEADER_SIZE, length);
+        return serializer.deserialize(ByteBuffer.wrap(message));
+    }
+}
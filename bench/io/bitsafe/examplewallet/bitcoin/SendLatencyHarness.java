@@ -0,0 +1,201 @@
+/* This file is licensed as described by the file LICENCE. */
+
+package io.bitsafe.examplewallet.bitcoin;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.PeerAddress;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.utils.TestUtils;
+import io.bitsafe.examplewallet.dev.EmulatedBitSafe;
+import io.bitsafe.examplewallet.dev.PacketWrapper;
+import io.bitsafe.examplewallet.metrics.Metrics;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/** Measures the time from pressing Send to the transaction being broadcast,
+ * by running BitcoinJInterface.sendMulti() against an emulated BitSafe and
+ * a local stand-in for a Bitcoin node. Each combination of device profile,
+ * number of inputs and number of recipients is timed several times, and
+ * the median and 99th percentile of each stage of sending are reported.
+ *
+ * Options are name=value arguments:
+ * runs (default 10), warmups (2), inputs (1,5,20), recipients (1,10),
+ * profiles (instant,typical) and out (file to write JSON results to).
+ *
+ * @author Chris Chua
+ */
+public class SendLatencyHarness {
+    /** Stages of sendMulti(), in order. */
+    private static final String[] STAGES = {"changeAddress", "completeTx", "sign", "commitTx", "broadcast"};
+    private static final BigInteger FUNDING_OUTPUT_VALUE = Utils.COIN;
+
+    private final NetworkParameters params;
+    private final BitcoinJInterface bitcoinj;
+    private int nextWalletNumber;
+
+    public SendLatencyHarness(NetworkParameters inParams, File directory, PeerAddress peer) {
+        params = inParams;
+        bitcoinj = new BitcoinJInterface(directory.getPath(), "harness", params, new PeerAddress[] {peer});
+        nextWalletNumber = 0;
+    }
+
+    public void stop() {
+        bitcoinj.stopAndWait();
+    }
+
+    /** Time sends for one combination of device profile, inputs and
+     * recipients.
+     * @return Durations in nanoseconds; one array per stage, then one for
+     *         the total
+     */
+    public long[][] measure(EmulatedBitSafe.Profile profile, int inputs, int recipients,
+            int warmups, int runs) throws Exception {
+        int walletNumber = nextWalletNumber++;
+        EmulatedBitSafe device = new EmulatedBitSafe(Harness.QUIET_CONSOLE, params, profile, 1);
+        io.bitsafe.examplewallet.dev.Wallet bitsafeWallet = new io.bitsafe.examplewallet.dev.Wallet(
+                new PacketWrapper(device), Harness.QUIET_CONSOLE, walletNumber);
+        bitcoinj.loadWallet(walletNumber);
+        Wallet w = bitcoinj.wallet();
+        bitsafeWallet.sync(w);
+        bitcoinj.setAddressGenerator(bitsafeWallet);
+        // Every send spends exactly "inputs" funding outputs, since it sends
+        // a bit more than inputs - 1 of them are worth.
+        for (int i = 0; i < (warmups + runs) * inputs; i++) {
+            w.receivePending(TestUtils.createFakeTx(params, FUNDING_OUTPUT_VALUE,
+                    device.getKey(1).toAddress(params)), null);
+        }
+        BigInteger amount = FUNDING_OUTPUT_VALUE.multiply(BigInteger.valueOf(inputs))
+                .subtract(FUNDING_OUTPUT_VALUE.shiftRight(1))
+                .divide(BigInteger.valueOf(recipients));
+
+        long[][] samples = new long[STAGES.length + 1][runs];
+        try {
+            for (int run = -warmups; run < runs; run++) {
+                SendRecipient[] to = new SendRecipient[recipients];
+                for (int i = 0; i < recipients; i++) {
+                    to[i] = new SendRecipient(amount, new ECKey().toAddress(params).toString());
+                }
+                long[] before = stageTotals();
+                long start = System.nanoTime();
+                Transaction tx = bitcoinj.sendMulti(to, true, bitsafeWallet);
+                long total = System.nanoTime() - start;
+                if (tx == null) {
+                    throw new IOException("Emulated BitSafe didn't sign");
+                }
+                if (run >= 0) {
+                    long[] after = stageTotals();
+                    for (int s = 0; s < STAGES.length; s++) {
+                        samples[s][run] = after[s] - before[s];
+                    }
+                    samples[STAGES.length][run] = total;
+                }
+            }
+        } finally {
+            bitcoinj.setAddressGenerator(bitcoinj);
+            bitcoinj.deleteWallet(walletNumber);
+        }
+        return samples;
+    }
+
+    /** sendMulti() records each stage in a histogram. Sends here are one at
+     * a time, so the change in a histogram's total across one send is
+     * exactly how long that stage took. */
+    private static long[] stageTotals() {
+        long[] totals = new long[STAGES.length];
+        for (int s = 0; s < STAGES.length; s++) {
+            totals[s] = Metrics.sendStageDuration(STAGES[s]).getSumNanos();
+        }
+        return totals;
+    }
+
+    /** Nearest-rank percentile, in milliseconds. */
+    private static double percentile(long[] sorted, double p) {
+        int rank = (int)Math.ceil(p * sorted.length);
+        return sorted[Math.max(rank, 1) - 1] / 1e6;
+    }
+
+    private static Map<String, Object> summarise(long[] samples) {
+        long[] sorted = samples.clone();
+        Arrays.sort(sorted);
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("p50_ms", percentile(sorted, 0.50));
+        summary.put("p99_ms", percentile(sorted, 0.99));
+        summary.put("max_ms", sorted[sorted.length - 1] / 1e6);
+        return summary;
+    }
+
+    public static void main(String args[]) throws Exception {
+        Map<String, String> defaults = new LinkedHashMap<>();
+        defaults.put("runs", "10");
+        defaults.put("warmups", "2");
+        defaults.put("inputs", "1,5,20");
+        defaults.put("recipients", "1,10");
+        defaults.put("profiles", "instant,typical");
+        defaults.put("out", null);
+        Map<String, String> options = Harness.parseOptions(defaults, args);
+        int runs = Integer.parseInt(options.get("runs"));
+        int warmups = Integer.parseInt(options.get("warmups"));
+        int[] inputCounts = Harness.parseInts(options.get("inputs"));
+        int[] recipientCounts = Harness.parseInts(options.get("recipients"));
+        List<EmulatedBitSafe.Profile> profiles = new ArrayList<>();
+        for (String name : options.get("profiles").split(",")) {
+            profiles.add(EmulatedBitSafe.profile(name.trim()));
+        }
+        Harness.quietenBitcoinj();
+
+        NetworkParameters params = UnitTestParams.get();
+        File directory = Harness.tempDirectory("bitsafe-send-latency");
+        LocalPeer peer = new LocalPeer(params);
+        peer.start();
+        SendLatencyHarness harness = new SendLatencyHarness(params, directory, peer.getAddress());
+        try {
+            if (!peer.awaitConnection(30, TimeUnit.SECONDS)) {
+                throw new IOException("bitcoinj didn't connect to the local peer");
+            }
+            List<Object> results = new ArrayList<>();
+            System.out.printf("%-8s %6s %10s %-13s %10s %10s%n",
+                    "profile", "inputs", "recipients", "stage", "p50 ms", "p99 ms");
+            for (EmulatedBitSafe.Profile profile : profiles) {
+                for (int inputs : inputCounts) {
+                    for (int recipients : recipientCounts) {
+                        long[][] samples = harness.measure(profile, inputs, recipients, warmups, runs);
+                        Map<String, Object> stages = new LinkedHashMap<>();
+                        for (int s = 0; s <= STAGES.length; s++) {
+                            String name = (s < STAGES.length) ? STAGES[s] : "total";
+                            Map<String, Object> summary = summarise(samples[s]);
+                            stages.put(name, summary);
+                            System.out.printf("%-8s %6d %10d %-13s %10.3f %10.3f%n", profile.name, inputs,
+                                    recipients, name, summary.get("p50_ms"), summary.get("p99_ms"));
+                        }
+                        Map<String, Object> result = new LinkedHashMap<>();
+                        result.put("profile", profile.name);
+                        result.put("inputs", inputs);
+                        result.put("recipients", recipients);
+                        result.put("runs", runs);
+                        result.put("stages", stages);
+                        results.add(result);
+                    }
+                }
+            }
+            Map<String, Object> report = new LinkedHashMap<>();
+            report.put("transactionsBroadcast", peer.getTransactionsReceived());
+            report.put("results", results);
+            Harness.writeJson(options.get("out"), report);
+        } finally {
+            harness.stop();
+            peer.close();
+            Harness.deleteDirectory(directory);
+        }
+    }
+}
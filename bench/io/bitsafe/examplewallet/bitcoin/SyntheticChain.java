@@ -0,0 +1,220 @@
+/* This file is licensed as described by the file LICENCE. */
+
+package io.bitsafe.examplewallet.bitcoin;
+
+import com.google.bitcoin.core.Address;
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionInput;
+import com.google.bitcoin.core.TransactionOutPoint;
+import com.google.bitcoin.core.TransactionOutput;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/** Makes up a block chain which pays lots of transactions to a wallet's
+ * addresses. Blocks are real (they are solved and link to the genesis
+ * block), so they can be fed straight into a BlockChain, but the
+ * transactions in them are not signed and payments to the wallet spend
+ * outputs which don't exist. That is fine for an SPV wallet, which doesn't
+ * check either.
+ *
+ * Blocks contain a mix of payments to the wallet and spends of outputs
+ * which the wallet has already received in a block. Spends pay some of the
+ * output to an address outside the wallet and the rest back to the wallet
+ * as change. Payments can also be made up as unconfirmed transactions
+ * (see flood()), which go into the next block.
+ *
+ * The same seed always gives the same transaction values and address
+ * choices, though block and transaction hashes differ between runs since
+ * bitcoinj numbers coinbase transactions with a global counter.
+ *
+ * @author Chris Chua
+ */
+public class SyntheticChain {
+    /** Fee paid by spends, in satoshi. */
+    public static final long FEE = 10000;
+    /** Seconds between blocks. */
+    public static final long BLOCK_INTERVAL = 600;
+    /** Number of recent blocks which are kept, and so how deep a reorg can
+     * be. */
+    public static final int MAX_REORG_DEPTH = 100;
+
+    private final NetworkParameters params;
+    private final List<Address> addresses;
+    private final Address external;
+    private final Random random;
+    /** Most recent blocks, in order. Kept so that reorg() can replay
+     * them. */
+    private final ArrayList<Block> blocks;
+    private int height;
+    /** Outputs to the wallet which are in a block and haven't been spent. */
+    private final ArrayList<TransactionOutput> unspent;
+    /** Outputs to the wallet which aren't in a block yet. */
+    private final ArrayList<TransactionOutput> unmined;
+    /** Unconfirmed transactions which haven't been put in a block yet. */
+    private final ArrayList<Transaction> pending;
+    private int transactionCount;
+
+    /**
+     * @param inParams Network to make blocks for. This must allow blocks
+     *                 to be solved quickly; RegTestParams does.
+     * @param inAddresses Wallet addresses to pay to
+     * @param seed Seed for transaction values and address choices
+     */
+    public SyntheticChain(NetworkParameters inParams, List<Address> inAddresses, long seed) {
+        params = inParams;
+        addresses = new ArrayList<>(inAddresses);
+        external = new ECKey().toAddress(params);
+        random = new Random(seed);
+        blocks = new ArrayList<>();
+        height = 0;
+        unspent = new ArrayList<>();
+        unmined = new ArrayList<>();
+        pending = new ArrayList<>();
+        transactionCount = 0;
+    }
+
+    /** Get the most recent block, or the genesis block if none have been
+     * made. */
+    public Block head() {
+        return blocks.isEmpty() ? params.getGenesisBlock() : blocks.get(blocks.size() - 1);
+    }
+
+    /** Get the height of the most recent block. */
+    public int height() {
+        return height;
+    }
+
+    /** Get the number of wallet transactions made so far, including
+     * unconfirmed ones. */
+    public int getTransactionCount() {
+        return transactionCount;
+    }
+
+    /** Make the next block. It contains all unconfirmed transactions from
+     * flood(), then transactions made up for the block.
+     * @param count Number of transactions to make up for the block
+     * @param spendPercent Roughly what percentage of those should spend
+     *                     from the wallet, if there's anything to spend
+     * @return The new block
+     */
+    public Block nextBlock(int count, int spendPercent) {
+        ArrayList<Transaction> txs = new ArrayList<>(pending);
+        pending.clear();
+        for (int i = 0; i < count; i++) {
+            Transaction tx;
+            if (!unspent.isEmpty() && (random.nextInt(100) < spendPercent)) {
+                tx = spend(unspent.remove(random.nextInt(unspent.size())));
+            } else {
+                tx = payment();
+            }
+            txs.add(tx);
+            transactionCount++;
+        }
+        Block block = mine(head(), txs);
+        add(block);
+        // Outputs only become spendable once the block they are in has been
+        // made, so that spends are never in the same block as what they
+        // spend.
+        unspent.addAll(unmined);
+        unmined.clear();
+        return block;
+    }
+
+    /** Make unconfirmed payments to the wallet. They will be included in
+     * the next block.
+     * @param count Number of payments to make
+     * @return The payments
+     */
+    public List<Transaction> flood(int count) {
+        ArrayList<Transaction> txs = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            txs.add(payment());
+            transactionCount++;
+        }
+        pending.addAll(txs);
+        return txs;
+    }
+
+    /** Replace the most recent blocks with a longer chain containing the
+     * same transactions. A wallet which has seen both chains will end up
+     * with the same balance, but has to move every transaction in the
+     * replaced blocks across to the new ones.
+     * @param depth Number of blocks to replace
+     * @return The new blocks, one longer than depth, in order
+     */
+    public List<Block> reorg(int depth) {
+        depth = Math.min(depth, blocks.size());
+        List<Block> replaced = new ArrayList<>(blocks.subList(blocks.size() - depth, blocks.size()));
+        blocks.subList(blocks.size() - depth, blocks.size()).clear();
+        height -= depth;
+        ArrayList<Block> replacements = new ArrayList<>();
+        for (Block old : replaced) {
+            // Skip the coinbase transaction; mine() makes a new one.
+            List<Transaction> txs = old.getTransactions();
+            Block block = mine(head(), txs.subList(1, txs.size()));
+            add(block);
+            replacements.add(block);
+        }
+        // One more block, so that the new chain is longer.
+        Block extra = mine(head(), new ArrayList<Transaction>());
+        add(extra);
+        replacements.add(extra);
+        return replacements;
+    }
+
+    private void add(Block block) {
+        blocks.add(block);
+        height++;
+        if (blocks.size() > MAX_REORG_DEPTH) {
+            blocks.remove(0);
+        }
+    }
+
+    private Block mine(Block previous, List<Transaction> txs) {
+        Block block = previous.createNextBlock(external, previous.getTimeSeconds() + BLOCK_INTERVAL);
+        for (Transaction tx : txs) {
+            block.addTransaction(tx);
+        }
+        block.solve();
+        return block;
+    }
+
+    /** Make a payment to a random wallet address, from an output which
+     * doesn't exist. */
+    private Transaction payment() {
+        Transaction tx = new Transaction(params);
+        long value = 100000 + random.nextInt(100000000);
+        tx.addOutput(BigInteger.valueOf(value), addresses.get(random.nextInt(addresses.size())));
+        unmined.add(tx.getOutput(0));
+        byte[] prevHash = new byte[32];
+        random.nextBytes(prevHash);
+        TransactionOutPoint outpoint = new TransactionOutPoint(params, 0, new Sha256Hash(prevHash));
+        tx.addInput(new TransactionInput(params, tx, new byte[] {0}, outpoint));
+        return tx;
+    }
+
+    /** Spend a wallet output, paying about half of it elsewhere and the
+     * rest (less the fee) back to the wallet as change. */
+    private Transaction spend(TransactionOutput output) {
+        Transaction tx = new Transaction(params);
+        BigInteger value = output.getValue();
+        BigInteger sent = value.shiftRight(1);
+        BigInteger change = value.subtract(sent).subtract(BigInteger.valueOf(FEE));
+        tx.addOutput(sent, external);
+        if (change.signum() > 0) {
+            tx.addOutput(change, addresses.get(random.nextInt(addresses.size())));
+            unmined.add(tx.getOutput(1));
+        }
+        Transaction parent = output.getParentTransaction();
+        TransactionOutPoint outpoint = new TransactionOutPoint(params, parent.getOutputs().indexOf(output),
+                parent.getHash());
+        tx.addInput(new TransactionInput(params, tx, new byte[] {0}, outpoint));
+        return tx;
+    }
+}
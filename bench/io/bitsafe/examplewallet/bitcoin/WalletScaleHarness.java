@@ -0,0 +1,255 @@
+/* This file is licensed as described by the file LICENCE. */
+
+package io.bitsafe.examplewallet.bitcoin;
+
+import com.google.bitcoin.core.AbstractWalletEventListener;
+import com.google.bitcoin.core.Address;
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.PeerAddress;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.params.RegTestParams;
+import com.google.bitcoin.utils.Threading;
+import io.bitsafe.examplewallet.dev.EmulatedBitSafe;
+import io.bitsafe.examplewallet.dev.PacketWrapper;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Loads a wallet with a large synthetic history, to see how the host
+ * software copes with wallets far bigger than a test wallet. An emulated
+ * BitSafe with many addresses is synced, then blocks from a SyntheticChain
+ * are fed to BitcoinJInterface's block chain without any network. Along the
+ * way there are floods of unconfirmed payments and chain reorganisations.
+ *
+ * Reported are: how long the BitSafe address sync takes, block and wallet
+ * event throughput, heap used by the loaded wallet, how long working out
+ * the balance takes (the full wallet scan vs. BalanceTracker), and how long
+ * saving and loading the bitcoinj wallet and the address file take.
+ *
+ * Options are name=value arguments:
+ * addresses (default 1000), transactions (5000), perBlock (100),
+ * spendPercent (30), floodEvery (50, in blocks; 0 for none), floodSize
+ * (500), reorgEvery (50, in blocks; 0 for none), reorgDepth (3), seed (1)
+ * and out (file to write JSON results to).
+ *
+ * @author Chris Chua
+ */
+public class WalletScaleHarness {
+    private static final int WALLET_NUMBER = 0;
+    private static final String FILE_PREFIX = "harness";
+    private static final int BALANCE_READS = 20;
+
+    /** Counts wallet events, as they happen. */
+    private static class EventCounter extends AbstractWalletEventListener {
+        final AtomicLong events = new AtomicLong();
+        final AtomicLong reorganisations = new AtomicLong();
+
+        @Override
+        public void onCoinsReceived(Wallet wallet, Transaction tx, BigInteger prevBalance, BigInteger newBalance) {
+            events.incrementAndGet();
+        }
+
+        @Override
+        public void onCoinsSent(Wallet wallet, Transaction tx, BigInteger prevBalance, BigInteger newBalance) {
+            events.incrementAndGet();
+        }
+
+        @Override
+        public void onTransactionConfidenceChanged(Wallet wallet, Transaction tx) {
+            events.incrementAndGet();
+        }
+
+        @Override
+        public void onReorganize(Wallet wallet) {
+            events.incrementAndGet();
+            reorganisations.incrementAndGet();
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static double millisSince(long start) {
+        return (System.nanoTime() - start) / 1e6;
+    }
+
+    private static void print(Map<String, Object> section, String name, Object value) {
+        section.put(name, value);
+        if (value instanceof Double) {
+            System.out.printf("%-28s %14.3f%n", name, value);
+        } else {
+            System.out.printf("%-28s %14s%n", name, value);
+        }
+    }
+
+    public static void main(String args[]) throws Exception {
+        Map<String, String> defaults = new LinkedHashMap<>();
+        defaults.put("addresses", "1000");
+        defaults.put("transactions", "5000");
+        defaults.put("perBlock", "100");
+        defaults.put("spendPercent", "30");
+        defaults.put("floodEvery", "50");
+        defaults.put("floodSize", "500");
+        defaults.put("reorgEvery", "50");
+        defaults.put("reorgDepth", "3");
+        defaults.put("seed", "1");
+        defaults.put("out", null);
+        Map<String, String> options = Harness.parseOptions(defaults, args);
+        int addressCount = Integer.parseInt(options.get("addresses"));
+        int transactions = Integer.parseInt(options.get("transactions"));
+        int perBlock = Integer.parseInt(options.get("perBlock"));
+        int spendPercent = Integer.parseInt(options.get("spendPercent"));
+        int floodEvery = Integer.parseInt(options.get("floodEvery"));
+        int floodSize = Integer.parseInt(options.get("floodSize"));
+        int reorgEvery = Integer.parseInt(options.get("reorgEvery"));
+        int reorgDepth = Integer.parseInt(options.get("reorgDepth"));
+        long seed = Long.parseLong(options.get("seed"));
+        Harness.quietenBitcoinj();
+
+        NetworkParameters params = RegTestParams.get();
+        File directory = Harness.tempDirectory("bitsafe-wallet-scale");
+        BitcoinJInterface bitcoinj = new BitcoinJInterface(directory.getPath(), FILE_PREFIX, params,
+                new PeerAddress[0]);
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("options", options);
+        try {
+            long heapBefore = usedHeap();
+
+            Map<String, Object> sync = new LinkedHashMap<>();
+            EmulatedBitSafe device = new EmulatedBitSafe(Harness.QUIET_CONSOLE, params,
+                    EmulatedBitSafe.INSTANT, addressCount);
+            io.bitsafe.examplewallet.dev.Wallet bitsafeWallet = new io.bitsafe.examplewallet.dev.Wallet(
+                    new PacketWrapper(device), Harness.QUIET_CONSOLE, WALLET_NUMBER);
+            bitcoinj.loadWallet(WALLET_NUMBER);
+            Wallet w = bitcoinj.wallet();
+            long start = System.nanoTime();
+            bitsafeWallet.sync(w);
+            print(sync, "sync_ms", millisSince(start));
+            print(sync, "keys", w.getKeys().size());
+            report.put("sync", sync);
+
+            EventCounter counter = new EventCounter();
+            w.addEventListener(counter, Threading.SAME_THREAD);
+            List<Address> addresses = new ArrayList<>();
+            for (int i = 1; i <= addressCount; i++) {
+                addresses.add(device.getKey(i).toAddress(params));
+            }
+            SyntheticChain generator = new SyntheticChain(params, addresses, seed);
+
+            // Blocks and transactions are fed in as copies, as if they had
+            // come off the network, so that the wallet doesn't share objects
+            // with the generator.
+            Map<String, Object> load = new LinkedHashMap<>();
+            long blocksFed = 0;
+            long generateNanos = 0;
+            long feedNanos = 0;
+            while (generator.getTransactionCount() < transactions) {
+                long generateStart = System.nanoTime();
+                int height = generator.height() + 1;
+                List<Block> blocks = new ArrayList<>();
+                List<Transaction> flood = new ArrayList<>();
+                if ((reorgEvery > 0) && (height % reorgEvery == 0)) {
+                    blocks.addAll(generator.reorg(reorgDepth));
+                } else {
+                    blocks.add(generator.nextBlock(perBlock, spendPercent));
+                }
+                if ((floodEvery > 0) && (height % floodEvery == 0)) {
+                    flood.addAll(generator.flood(floodSize));
+                }
+                long feedStart = System.nanoTime();
+                generateNanos += feedStart - generateStart;
+                for (Block block : blocks) {
+                    if (!bitcoinj.chain().add(new Block(params, block.bitcoinSerialize()))) {
+                        throw new IOException("Block " + block.getHashAsString() + " didn't connect");
+                    }
+                    blocksFed++;
+                }
+                for (Transaction tx : flood) {
+                    w.receivePending(new Transaction(params, tx.bitcoinSerialize()), null);
+                }
+                feedNanos += System.nanoTime() - feedStart;
+            }
+            print(load, "height", bitcoinj.chain().getBestChainHeight());
+            print(load, "blocks_fed", blocksFed);
+            print(load, "wallet_transactions", w.getTransactions(true).size());
+            print(load, "generate_ms", generateNanos / 1e6);
+            print(load, "feed_ms", feedNanos / 1e6);
+            print(load, "blocks_per_second", blocksFed / (feedNanos / 1e9));
+            print(load, "transactions_per_second", generator.getTransactionCount() / (feedNanos / 1e9));
+            print(load, "events", counter.events.get());
+            print(load, "events_per_second", counter.events.get() / (feedNanos / 1e9));
+            print(load, "reorganisations", counter.reorganisations.get());
+            report.put("load", load);
+            generator = null;
+
+            Map<String, Object> memory = new LinkedHashMap<>();
+            print(memory, "heap_used_mb", (usedHeap() - heapBefore) / 1048576.0);
+            report.put("memory", memory);
+
+            Map<String, Object> balance = new LinkedHashMap<>();
+            BalanceTracker tracker = bitcoinj.balanceTracker();
+            BigInteger available = null;
+            BigInteger estimated = null;
+            start = System.nanoTime();
+            for (int i = 0; i < BALANCE_READS; i++) {
+                available = w.getBalance(Wallet.BalanceType.AVAILABLE);
+                estimated = w.getBalance(Wallet.BalanceType.ESTIMATED);
+            }
+            print(balance, "full_scan_ms", millisSince(start) / BALANCE_READS);
+            BigInteger confirmed = null;
+            BigInteger unconfirmed = null;
+            start = System.nanoTime();
+            for (int i = 0; i < BALANCE_READS; i++) {
+                confirmed = tracker.getConfirmed();
+                unconfirmed = tracker.getUnconfirmed();
+            }
+            print(balance, "tracker_ms", millisSince(start) / BALANCE_READS);
+            start = System.nanoTime();
+            tracker.reset(w);
+            print(balance, "tracker_reset_ms", millisSince(start));
+            print(balance, "tracker_matches", available.equals(confirmed)
+                    && estimated.subtract(available).equals(unconfirmed));
+            print(balance, "tracker_corrections", tracker.getCorrections());
+            report.put("balance", balance);
+
+            Map<String, Object> files = new LinkedHashMap<>();
+            start = System.nanoTime();
+            bitcoinj.saveWallet(WALLET_NUMBER);
+            print(files, "wallet_save_ms", millisSince(start));
+            File walletFile = bitcoinj.getWalletFile(WALLET_NUMBER);
+            print(files, "wallet_file_kb", walletFile.length() / 1024.0);
+            start = System.nanoTime();
+            try (FileInputStream fis = new FileInputStream(walletFile)) {
+                Wallet.loadFromFileStream(fis);
+            }
+            print(files, "wallet_load_ms", millisSince(start));
+            start = System.nanoTime();
+            bitsafeWallet.saveToFile(directory.getPath(), FILE_PREFIX);
+            print(files, "address_save_ms", millisSince(start));
+            print(files, "address_file_kb", io.bitsafe.examplewallet.dev.Wallet.getWalletFile(
+                    directory.getPath(), FILE_PREFIX, WALLET_NUMBER).length() / 1024.0);
+            start = System.nanoTime();
+            bitsafeWallet.loadFromFile(directory.getPath(), FILE_PREFIX);
+            print(files, "address_load_ms", millisSince(start));
+            report.put("files", files);
+
+            Harness.writeJson(options.get("out"), report);
+        } finally {
+            bitcoinj.stopAndWait();
+            Harness.deleteDirectory(directory);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/* This file is licensed as described by the file LICENCE. */
+
+package io.bitsafe.examplewallet.dev;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/** Saving and loading the address file.
+ *
+ * @author Chris Chua
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class AddressFileBenchmark {
+    @Param({"1000", "100000"})
+    public int addresses;
+
+    private File directory;
+    private Wallet wallet;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = BenchData.tempDirectory();
+        wallet = BenchData.wallet(directory, addresses);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchData.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public void save() {
+        wallet.saveToFile(directory.getPath(), BenchData.FILE_PREFIX);
+    }
+
+    @Benchmark
+    public Wallet load() {
+        wallet.loadFromFile(directory.getPath(), BenchData.FILE_PREFIX);
+        return wallet;
+    }
+}
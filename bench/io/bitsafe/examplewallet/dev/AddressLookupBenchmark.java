@@ -0,0 +1,62 @@
+/* This file is licensed as described by the file LICENCE. */
+
+package io.bitsafe.examplewallet.dev;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/** Finding the address handle for a key while signing.
+ *
+ * @author Chris Chua
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class AddressLookupBenchmark {
+    private static final int QUERIES = 1024;
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int addresses;
+
+    private File directory;
+    private Wallet wallet;
+    private byte[][] queries;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = BenchData.tempDirectory();
+        wallet = BenchData.wallet(directory, addresses);
+        // Look up addresses from all over the list.
+        ArrayList<Address> list = wallet.getAddresses();
+        Random random = new Random(2);
+        queries = new byte[QUERIES][];
+        for (int i = 0; i < QUERIES; i++) {
+            queries[i] = list.get(random.nextInt(list.size())).getAddress().clone();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchData.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public Address getAddressByHash160() {
+        next = (next + 1) & (QUERIES - 1);
+        return wallet.getAddressByHash160(queries[next]);
+    }
+}
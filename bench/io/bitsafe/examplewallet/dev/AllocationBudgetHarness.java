@@ -0,0 +1,277 @@
+/* This file is licensed as described by the file LICENCE. */
+
+package io.bitsafe.examplewallet.dev;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.crypto.TransactionSignature;
+import com.google.bitcoin.utils.TestUtils;
+import com.google.protobuf.ByteString;
+import io.bitsafe.examplewallet.bitcoin.BalanceTracker;
+import io.bitsafe.examplewallet.bitcoin.Harness;
+import io.bitsafe.examplewallet.dev.Messages.Signature;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/** Checks that the packet and signing paths don't allocate more than they
+ * used to. Each operation is run many times on one thread, and the bytes
+ * that thread allocated (according to the JVM's per-thread allocation
+ * counter) are divided by the number of runs. The result is compared with
+ * a budget in a checked-in properties file, and if any operation goes over
+ * its budget by more than the tolerance in that file, this exits with
+ * status 1 so that the build fails.
+ *
+ * Devices are replaced with ScriptedDevice, which allocates nothing, so
+ * only allocations made by the host software are counted.
+ *
+ * Options are name=value arguments:
+ * budgets (file to check against; required), iterations (20000) and
+ * write (true to replace the budgets with what was measured, eg. after an
+ * intentional change; default false).
+ *
+ * @author Chris Chua
+ */
+public class AllocationBudgetHarness {
+    /** Name of the property in the budgets file which holds the tolerance. */
+    public static final String TOLERANCE_PROPERTY = "tolerance.percent";
+    public static final int DEFAULT_TOLERANCE_PERCENT = 10;
+    /** Each operation is measured this many times, and the lowest result
+     * is used, so that a one-off allocation (eg. by the JIT compiler
+     * calling back into Java) doesn't cause a false alarm. */
+    private static final int ROUNDS = 5;
+    private static final int PAYLOAD_SIZE = 200;
+    private static final int SIGN_INPUTS = 2;
+
+    private interface Operation {
+        void run() throws Exception;
+    }
+
+    private final com.sun.management.ThreadMXBean threads;
+    private final int iterations;
+
+    public AllocationBudgetHarness(int inIterations) {
+        threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            throw new UnsupportedOperationException("This JVM can't count allocated bytes per thread");
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+        iterations = inIterations;
+    }
+
+    /** Get the number of bytes allocated per run of an operation. */
+    private long measure(Operation op) throws Exception {
+        long threadId = Thread.currentThread().getId();
+        // Warm up, so that the operation has been compiled and any lazily
+        // initialised state already exists.
+        for (int i = 0; i < iterations; i++) {
+            op.run();
+        }
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long before = threads.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < iterations; i++) {
+                op.run();
+            }
+            long after = threads.getThreadAllocatedBytes(threadId);
+            best = Math.min(best, (after - before) / iterations);
+        }
+        return best;
+    }
+
+    /** Measure every operation.
+     * @return Bytes allocated per run, by operation name
+     */
+    public Map<String, Long> measureAll(File directory) throws Exception {
+        Map<String, Long> results = new LinkedHashMap<>();
+        byte[] payload = new byte[PAYLOAD_SIZE];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte)i;
+        }
+        final Packet packet = new Packet(Packet.PACKET_TYPE_SIGN_TRANSACTION, payload);
+
+        // Four reports out.
+        final PacketWrapper sender = new PacketWrapper(new ScriptedDevice(Harness.QUIET_CONSOLE, packet));
+        results.put("packet.send", measure(new Operation() {
+            @Override
+            public void run() throws Exception {
+                sender.sendPacket(packet);
+            }
+        }));
+
+        // Four reports in.
+        final PacketWrapper receiver = new PacketWrapper(new ScriptedDevice(Harness.QUIET_CONSOLE, packet));
+        results.put("packet.receive", measure(new Operation() {
+            @Override
+            public void run() throws Exception {
+                receiver.receivePacket();
+            }
+        }));
+
+        // A button press and a one-time password before the device agrees.
+        final Session session = new Session(new ScriptedDevice(Harness.QUIET_CONSOLE,
+                new Packet(Packet.PACKET_TYPE_BUTTON_REQUEST, new byte[0]),
+                new Packet(Packet.PACKET_TYPE_OTP_REQUEST, new byte[0]),
+                new Packet(Packet.PACKET_TYPE_SUCCESS, new byte[0])), Harness.QUIET_CONSOLE);
+        final PasswordSupplier otp = new PasswordSupplier() {
+            @Override
+            public byte[] getPassword() {
+                return new byte[] {'1', '2', '3', '4'};
+            }
+        };
+        results.put("interjection.dispatch", measure(new Operation() {
+            @Override
+            public void run() throws Exception {
+                session.deleteWallet(1, otp);
+            }
+        }));
+
+        // What Wallet.sync() does for each address.
+        Messages.Address.Builder addressMessage = Messages.Address.newBuilder();
+        addressMessage.setAddressHandle(1);
+        addressMessage.setPublicKey(ByteString.copyFrom(new byte[65]));
+        addressMessage.setAddress(ByteString.copyFrom(new byte[20]));
+        final PacketWrapper addressSource = new PacketWrapper(new ScriptedDevice(Harness.QUIET_CONSOLE,
+                new Packet(Packet.PACKET_TYPE_ADDRESS_PUBKEY, addressMessage.build().toByteArray())));
+        results.put("address.fetch", measure(new Operation() {
+            @Override
+            public void run() throws Exception {
+                new Address(1, addressSource, Harness.QUIET_CONSOLE);
+            }
+        }));
+
+        // Every input gets a button request, then a signature. The signature
+        // doesn't have to be over the right thing, since nothing checks it.
+        ECKey key = new ECKey();
+        TransactionSignature signature = new TransactionSignature(key.sign(Sha256Hash.create(payload)),
+                Transaction.SigHash.ALL, false);
+        Signature.Builder signatureMessage = Signature.newBuilder();
+        signatureMessage.setSignatureData(ByteString.copyFrom(signature.encodeToBitcoin()));
+        ScriptedDevice signer = new ScriptedDevice(Harness.QUIET_CONSOLE,
+                new Packet(Packet.PACKET_TYPE_BUTTON_REQUEST, new byte[0]),
+                new Packet(Packet.PACKET_TYPE_SIGNATURE, signatureMessage.build().toByteArray()));
+        ArrayList<Address> addresses = new ArrayList<>();
+        addresses.add(new Address(1, key.getPubKey(), key.getPubKeyHash()));
+        BenchData.writeAddressFile(directory, addresses);
+        final Wallet wallet = new Wallet(new PacketWrapper(signer), Harness.QUIET_CONSOLE, BenchData.WALLET_NUMBER);
+        wallet.loadFromFile(directory.getPath(), BenchData.FILE_PREFIX);
+        final com.google.bitcoin.core.Wallet bitcoinjWallet = new com.google.bitcoin.core.Wallet(BenchData.PARAMS);
+        bitcoinjWallet.addKey(key);
+        final Transaction spend = BenchData.spend(key, SIGN_INPUTS);
+        results.put("sign.transaction", measure(new Operation() {
+            @Override
+            public void run() throws Exception {
+                if (!wallet.signTransaction(spend, bitcoinjWallet)) {
+                    throw new IOException("Signing failed");
+                }
+            }
+        }));
+
+        // What happens to every wallet transaction on every new block.
+        final Transaction payment = TestUtils.createFakeTx(BenchData.PARAMS, Utils.COIN,
+                key.toAddress(BenchData.PARAMS));
+        bitcoinjWallet.receivePending(payment, null);
+        final BalanceTracker tracker = new BalanceTracker();
+        tracker.reset(bitcoinjWallet);
+        results.put("balance.update", measure(new Operation() {
+            @Override
+            public void run() throws Exception {
+                tracker.onTransactionConfidenceChanged(bitcoinjWallet, payment);
+            }
+        }));
+        return results;
+    }
+
+    private static Properties readBudgets(File file) throws IOException {
+        Properties budgets = new Properties();
+        try (Reader in = new InputStreamReader(new FileInputStream(file), Charset.forName("UTF-8"))) {
+            budgets.load(in);
+        }
+        return budgets;
+    }
+
+    private static void writeBudgets(File file, int tolerancePercent, Map<String, Long> results)
+            throws IOException {
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file), Charset.forName("UTF-8"))) {
+            out.write("# Bytes allocated per operation; see AllocationBudgetHarness.\n");
+            out.write("# Regenerate with \"ant allocation-check -Dallocation.args=write=true\". Whether the\n");
+            out.write("# JIT compiler removes some allocations can differ between runs, so check a few runs\n");
+            out.write("# and keep the highest result for each operation.\n");
+            out.write(TOLERANCE_PROPERTY + "=" + tolerancePercent + "\n");
+            for (Map.Entry<String, Long> e : results.entrySet()) {
+                out.write(e.getKey() + "=" + e.getValue() + "\n");
+            }
+        }
+    }
+
+    public static void main(String args[]) throws Exception {
+        Map<String, String> defaults = new LinkedHashMap<>();
+        defaults.put("budgets", null);
+        defaults.put("iterations", "20000");
+        defaults.put("write", "false");
+        Map<String, String> options = Harness.parseOptions(defaults, args);
+        if (options.get("budgets") == null) {
+            System.err.println("No budgets file given");
+            System.exit(1);
+        }
+        File budgetsFile = new File(options.get("budgets"));
+        Harness.quietenBitcoinj();
+
+        Map<String, Long> results;
+        File directory = Harness.tempDirectory("bitsafe-allocation");
+        try {
+            AllocationBudgetHarness harness = new AllocationBudgetHarness(Integer.parseInt(options.get("iterations")));
+            results = harness.measureAll(directory);
+        } finally {
+            Harness.deleteDirectory(directory);
+        }
+
+        Properties budgets = budgetsFile.exists() ? readBudgets(budgetsFile) : new Properties();
+        int tolerancePercent = Integer.parseInt(budgets.getProperty(TOLERANCE_PROPERTY,
+                Integer.toString(DEFAULT_TOLERANCE_PERCENT)));
+        if (Boolean.parseBoolean(options.get("write"))) {
+            writeBudgets(budgetsFile, tolerancePercent, results);
+            System.out.println("Wrote " + budgetsFile);
+        }
+
+        boolean failed = false;
+        System.out.printf("%-24s %10s %10s %10s%n", "operation", "bytes", "budget", "limit");
+        for (Map.Entry<String, Long> e : results.entrySet()) {
+            String budgetString = budgets.getProperty(e.getKey());
+            long measured = e.getValue();
+            if (budgetString == null) {
+                System.out.printf("%-24s %10d %10s %10s  NO BUDGET%n", e.getKey(), measured, "-", "-");
+                failed = true;
+                continue;
+            }
+            long budget = Long.parseLong(budgetString.trim());
+            long limit = budget + budget * tolerancePercent / 100;
+            String verdict = "";
+            if (measured > limit) {
+                verdict = "  OVER BUDGET";
+                failed = true;
+            } else if (measured < budget - budget * tolerancePercent / 100) {
+                verdict = "  under budget; consider lowering it";
+            }
+            System.out.printf("%-24s %10d %10d %10d%s%n", e.getKey(), measured, budget, limit, verdict);
+        }
+        if (failed && !Boolean.parseBoolean(options.get("write"))) {
+            System.err.println("Allocation budgets exceeded; if this is intended, regenerate "
+                    + budgetsFile + " with write=true");
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/* This file is licensed as described by the file LICENCE. */
+
+package io.bitsafe.examplewallet.dev;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.params.UnitTestParams;
+import io.bitsafe.examplewallet.daemon.StreamConsole;
+import io.bitsafe.examplewallet.gui.Console;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Random;
+
+/** Deterministic test data for the benchmarks.
+ *
+ * @author Chris Chua
+ */
+public class BenchData {
+    public static final String FILE_PREFIX = "bench";
+    public static final int WALLET_NUMBER = 0;
+
+    public static final NetworkParameters PARAMS = UnitTestParams.get();
+    public static final Console CONSOLE = new StreamConsole(System.err);
+
+    /** Make addresses with random (but repeatable) contents. The public
+     * keys aren't valid curve points, but nothing here checks that. */
+    public static ArrayList<Address> addresses(int count, long seed) {
+        Random random = new Random(seed);
+        ArrayList<Address> list = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] publicKey = new byte[33];
+            byte[] hash160 = new byte[20];
+            random.nextBytes(publicKey);
+            publicKey[0] = 0x02;
+            random.nextBytes(hash160);
+            // Address handles start at 1 and are sequential.
+            list.add(new Address(i + 1, publicKey, hash160));
+        }
+        return list;
+    }
+
+    /** Write an address file in the format Wallet.loadFromFile() reads. */
+    public static void writeAddressFile(File directory, ArrayList<Address> addresses) throws IOException {
+        File f = Wallet.getWalletFile(directory.getPath(), FILE_PREFIX, WALLET_NUMBER);
+        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(f))) {
+            oos.writeInt(addresses.size());
+            oos.writeObject(addresses);
+        }
+    }
+
+    /** Make a wallet with some addresses, by way of an address file. */
+    public static Wallet wallet(File directory, int addressCount) throws IOException {
+        writeAddressFile(directory, addresses(addressCount, 1));
+        Wallet w = new Wallet(new PacketWrapper(new LoopbackDevice(CONSOLE)), CONSOLE, WALLET_NUMBER);
+        w.loadFromFile(directory.getPath(), FILE_PREFIX);
+        return w;
+    }
+
+    /** Make a transaction which spends one output from each of several
+     * parent transactions, like one built by Wallet.completeTx(). */
+    public static Transaction spend(int inputCount) {
+        return spend(new ECKey(), inputCount);
+    }
+
+    /** Make a transaction which spends one output to a given key from each
+     * of several parent transactions. */
+    public static Transaction spend(ECKey key, int inputCount) {
+        Transaction t = new Transaction(PARAMS);
+        for (int i = 0; i < inputCount; i++) {
+            Transaction parent = new Transaction(PARAMS);
+            parent.addOutput(Utils.toNanoCoins(1, i), key);
+            parent.addOutput(Utils.toNanoCoins(2, 0), new ECKey());
+            t.addInput(parent.getOutput(0));
+        }
+        t.addOutput(BigInteger.valueOf(inputCount), new ECKey().toAddress(PARAMS));
+        t.addOutput(BigInteger.ONE, key.toAddress(PARAMS));
+        return t;
+    }
+
+    public static File tempDirectory() throws IOException {
+        File f = File.createTempFile("bitsafe-bench", "");
+        if (!f.delete() || !f.mkdir()) {
+            throw new IOException("Couldn't create " + f);
+        }
+        return f;
+    }
+
+    public static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        directory.delete();
+    }
+}
@@ -0,0 +1,329 @@
+/* This file is licensed as described by the file LICENCE. */
+
+package io.bitsafe.examplewallet.dev;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.crypto.TransactionSignature;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.GeneratedMessage;
+import io.bitsafe.examplewallet.dev.Messages.ButtonRequest;
+import io.bitsafe.examplewallet.dev.Messages.DeviceUUID;
+import io.bitsafe.examplewallet.dev.Messages.Failure;
+import io.bitsafe.examplewallet.dev.Messages.Features;
+import io.bitsafe.examplewallet.dev.Messages.GetAddressAndPublicKey;
+import io.bitsafe.examplewallet.dev.Messages.Initialize;
+import io.bitsafe.examplewallet.dev.Messages.NumberOfAddresses;
+import io.bitsafe.examplewallet.dev.Messages.Ping;
+import io.bitsafe.examplewallet.dev.Messages.PingResponse;
+import io.bitsafe.examplewallet.dev.Messages.Signature;
+import io.bitsafe.examplewallet.dev.Messages.SignTransaction;
+import io.bitsafe.examplewallet.dev.Messages.WalletInfo;
+import io.bitsafe.examplewallet.dev.Messages.Wallets;
+import io.bitsafe.examplewallet.gui.Console;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** Software stand-in for a BitSafe, which answers the requests a session
+ * makes to initialise, identify and ping it and list its one wallet, and
+ * those a wallet makes while syncing, generating addresses and signing. It holds real
+ * keys and produces real signatures, and can be made to take about as long
+ * as hardware would. Like hardware, it sends nothing while it is busy, so
+ * reads with a timeout can time out.
+ *
+ * Error codes in Failure responses don't try to match the real device's.
+ *
+ * @author Chris Chua
+ */
+public class EmulatedBitSafe extends BitSafeDevice {
+    /** How long things take on the emulated device. */
+    public static class Profile {
+        public final String name;
+        public final long reportNanos;
+        public final long newAddressNanos;
+        public final long signNanos;
+        public final long buttonNanos;
+
+        /**
+         * @param inName Name used in reports
+         * @param inReportMicros Time taken to move one HID report across USB,
+         *                       in either direction
+         * @param inNewAddressMillis Time taken to generate an address
+         * @param inSignMillis Time taken to sign one input
+         * @param inButtonMillis Time taken for the user to press the button
+         */
+        public Profile(String inName, long inReportMicros, long inNewAddressMillis,
+                long inSignMillis, long inButtonMillis) {
+            name = inName;
+            reportNanos = TimeUnit.MICROSECONDS.toNanos(inReportMicros);
+            newAddressNanos = TimeUnit.MILLISECONDS.toNanos(inNewAddressMillis);
+            signNanos = TimeUnit.MILLISECONDS.toNanos(inSignMillis);
+            buttonNanos = TimeUnit.MILLISECONDS.toNanos(inButtonMillis);
+        }
+    }
+
+    /** No delays at all, to show the host's own overhead. */
+    public static final Profile INSTANT = new Profile("instant", 0, 0, 0, 0);
+    /** Full speed USB polls interrupt endpoints once per millisecond, and a
+     * small microcontroller takes a few hundred milliseconds for each
+     * elliptic curve operation. The button is pressed straight away. */
+    public static final Profile TYPICAL = new Profile("typical", 1000, 250, 350, 0);
+    /** A slower device, and a user who takes a while to press the button. */
+    public static final Profile SLOW = new Profile("slow", 1000, 600, 900, 1500);
+
+    public static Profile profile(String name) {
+        for (Profile p : new Profile[] {INSTANT, TYPICAL, SLOW}) {
+            if (p.name.equals(name)) {
+                return p;
+            }
+        }
+        throw new IllegalArgumentException("Unknown device profile: " + name);
+    }
+
+    private static final int ERROR_INVALID_REQUEST = 1;
+    private static final int ERROR_CANCELLED = 2;
+    /** The emulated device has one wallet, which has this number. */
+    public static final int WALLET_NUMBER = 0;
+    private static final int UUID_LENGTH = 16;
+
+    private final NetworkParameters params;
+    private final Profile profile;
+    private final ByteString deviceUuid;
+    private ByteString walletUuid;
+    private final ArrayList<ECKey> keys;
+    private final ByteArrayOutputStream inbound;
+    private final ArrayDeque<byte[]> outbound;
+    /** SignTransaction request waiting for the button to be pressed. */
+    private SignTransaction pendingSign;
+    /** Session ID from the last Initialize; zeroes until there is one. */
+    private ByteString sessionId = ByteString.copyFrom(new byte[16]);
+    /** Until when (from System.nanoTime()) the device is busy working out
+     * its reply, and so sends nothing. */
+    private long busyUntilNanos;
+
+    /**
+     * @param inConsole Where log messages go
+     * @param inParams Network which transactions are for
+     * @param inProfile How long things take
+     * @param addressCount Number of addresses the wallet starts with
+     */
+    public EmulatedBitSafe(Console inConsole, NetworkParameters inParams, Profile inProfile, int addressCount) {
+        super(null, inConsole);
+        params = inParams;
+        profile = inProfile;
+        deviceUuid = randomUuid();
+        walletUuid = randomUuid();
+        keys = new ArrayList<>();
+        for (int i = 0; i < addressCount; i++) {
+            keys.add(new ECKey());
+        }
+        inbound = new ByteArrayOutputStream();
+        outbound = new ArrayDeque<>();
+    }
+
+    @Override
+    public void connect() {
+    }
+
+    @Override
+    public void disconnect() {
+    }
+
+    @Override
+    public synchronized void sendReport(byte[] report) throws IOException {
+        delay(profile.reportNanos);
+        inbound.write(report, 1, report[0]);
+        byte[] buf = inbound.toByteArray();
+        if (buf.length < 8) {
+            return;
+        }
+        ByteBuffer header = ByteBuffer.wrap(buf).order(ByteOrder.BIG_ENDIAN);
+        if ((header.get(0) != '#') || (header.get(1) != '#')) {
+            throw new IOException("Emulated BitSafe got bad magic bytes");
+        }
+        int type = header.getShort(2);
+        int length = header.getInt(4);
+        if (buf.length >= length + 8) {
+            // The host never sends another request before reading the
+            // response, so there is nothing after this packet.
+            inbound.reset();
+            handle(type, Arrays.copyOfRange(buf, 8, length + 8));
+        }
+    }
+
+    @Override
+    public synchronized byte[] receiveReport(long timeoutMillis) throws IOException {
+        long busyNanos = busyUntilNanos - System.nanoTime();
+        if (busyNanos > 0) {
+            if ((timeoutMillis != NO_TIMEOUT) && (busyNanos > TimeUnit.MILLISECONDS.toNanos(timeoutMillis))) {
+                delay(TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+                throw new DeviceTimeoutException("Emulated BitSafe is still busy");
+            }
+            delay(busyNanos);
+        }
+        delay(profile.reportNanos);
+        byte[] report = outbound.poll();
+        if (report == null) {
+            if (timeoutMillis == NO_TIMEOUT) {
+                // Nothing will ever arrive.
+                throw new IOException("Emulated BitSafe has nothing to send");
+            }
+            delay(TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+            throw new DeviceTimeoutException("Emulated BitSafe has nothing to send");
+        }
+        return report;
+    }
+
+    private static ByteString randomUuid() {
+        byte[] uuid = new byte[UUID_LENGTH];
+        new Random().nextBytes(uuid);
+        return ByteString.copyFrom(uuid);
+    }
+
+    /** Get one of the device's keys.
+     * @param addressHandle Address handle, starting at 1
+     */
+    public synchronized ECKey getKey(int addressHandle) {
+        return keys.get(addressHandle - 1);
+    }
+
+    private void handle(int type, byte[] payload) throws IOException {
+        switch (type) {
+            case Packet.PACKET_TYPE_INITIALIZE:
+                sessionId = Initialize.parseFrom(payload).getSessionId();
+                reply(Packet.PACKET_TYPE_FEATURES, Features.newBuilder()
+                        .setEchoedSessionId(sessionId).setVendor("Emulated BitSafe").build());
+                break;
+            case Packet.PACKET_TYPE_PING:
+                reply(Packet.PACKET_TYPE_PING_RESPONSE, PingResponse.newBuilder()
+                        .setEchoedGreeting(Ping.parseFrom(payload).getGreeting())
+                        .setEchoedSessionId(sessionId).build());
+                break;
+            case Packet.PACKET_TYPE_GET_DEVICE_UUID:
+                reply(Packet.PACKET_TYPE_DEVICE_UUID, DeviceUUID.newBuilder().setDeviceUuid(deviceUuid).build());
+                break;
+            case Packet.PACKET_TYPE_LIST_WALLETS:
+                reply(Packet.PACKET_TYPE_WALLETS, Wallets.newBuilder().addWalletInfo(WalletInfo.newBuilder()
+                        .setWalletNumber(WALLET_NUMBER).setWalletName(ByteString.copyFromUtf8("Emulated"))
+                        .setWalletUuid(walletUuid)).build());
+                break;
+            case Packet.PACKET_TYPE_GET_NUM_ADDRESSES:
+                reply(Packet.PACKET_TYPE_NUM_ADDRESSES, NumberOfAddresses.newBuilder()
+                        .setNumberOfAddresses(keys.size()).build());
+                break;
+            case Packet.PACKET_TYPE_GET_ADDRESS_PUBKEY:
+                int handle = GetAddressAndPublicKey.parseFrom(payload).getAddressHandle();
+                if ((handle < 1) || (handle > keys.size())) {
+                    fail(ERROR_INVALID_REQUEST, "No such address");
+                } else {
+                    replyAddress(handle);
+                }
+                break;
+            case Packet.PACKET_TYPE_NEW_ADDRESS:
+                busyFor(profile.newAddressNanos);
+                keys.add(new ECKey());
+                replyAddress(keys.size());
+                break;
+            case Packet.PACKET_TYPE_SIGN_TRANSACTION:
+                SignTransaction request = SignTransaction.parseFrom(payload);
+                if ((request.getAddressHandle() < 1) || (request.getAddressHandle() > keys.size())) {
+                    fail(ERROR_INVALID_REQUEST, "No such address");
+                } else {
+                    pendingSign = request;
+                    reply(Packet.PACKET_TYPE_BUTTON_REQUEST, ButtonRequest.newBuilder().build());
+                }
+                break;
+            case Packet.PACKET_TYPE_BUTTON_ACK:
+                if (pendingSign == null) {
+                    fail(ERROR_INVALID_REQUEST, "Nothing to confirm");
+                } else {
+                    busyFor(profile.buttonNanos + profile.signNanos);
+                    reply(Packet.PACKET_TYPE_SIGNATURE, Signature.newBuilder()
+                            .setSignatureData(ByteString.copyFrom(sign(pendingSign))).build());
+                    pendingSign = null;
+                }
+                break;
+            case Packet.PACKET_TYPE_BUTTON_CANCEL:
+                pendingSign = null;
+                fail(ERROR_CANCELLED, "Cancelled by host");
+                break;
+            default:
+                fail(ERROR_INVALID_REQUEST, "Emulator doesn't handle packet type " + type);
+                break;
+        }
+    }
+
+    /** Sign a SignTransaction request the way the device does: the
+     * signature hash is the double SHA-256 of everything after the
+     * supporting transactions.
+     */
+    private byte[] sign(SignTransaction request) {
+        byte[] data = request.getTransactionData().toByteArray();
+        int offset = 0;
+        while (data[offset] == 0x01) {
+            // Skip is_ref, output index and the supporting transaction.
+            Transaction supporting = new Transaction(params, data, offset + 5);
+            offset += 5 + supporting.getMessageSize();
+        }
+        offset++;
+        Sha256Hash hash = Sha256Hash.createDouble(Arrays.copyOfRange(data, offset, data.length));
+        ECKey key = keys.get(request.getAddressHandle() - 1);
+        return new TransactionSignature(key.sign(hash), Transaction.SigHash.ALL, false).encodeToBitcoin();
+    }
+
+    private void replyAddress(int handle) {
+        ECKey key = keys.get(handle - 1);
+        reply(Packet.PACKET_TYPE_ADDRESS_PUBKEY, Messages.Address.newBuilder()
+                .setAddressHandle(handle)
+                .setPublicKey(ByteString.copyFrom(key.getPubKey()))
+                .setAddress(ByteString.copyFrom(key.getPubKeyHash()))
+                .build());
+    }
+
+    private void fail(int errorCode, String message) {
+        reply(Packet.PACKET_TYPE_FAILURE, Failure.newBuilder()
+                .setErrorCode(errorCode)
+                .setErrorMessage(message)
+                .build());
+    }
+
+    /** Queue a packet for the host to read, split into HID reports. */
+    private void reply(int type, GeneratedMessage message) {
+        byte[] payload = message.toByteArray();
+        ByteBuffer packet = ByteBuffer.allocate(payload.length + 8).order(ByteOrder.BIG_ENDIAN);
+        packet.put((byte)'#').put((byte)'#').putShort((short)type).putInt(payload.length).put(payload);
+        byte[] buf = packet.array();
+        for (int index = 0; index < buf.length; index += PacketWrapper.MAX_REPORT_SIZE) {
+            int reportLength = Math.min(PacketWrapper.MAX_REPORT_SIZE, buf.length - index);
+            byte[] report = new byte[reportLength + 1];
+            report[0] = (byte)reportLength;
+            System.arraycopy(buf, index, report, 1, reportLength);
+            outbound.add(report);
+        }
+    }
+
+    private void busyFor(long nanos) {
+        busyUntilNanos = System.nanoTime() + nanos;
+    }
+
+    private static void delay(long nanos) throws InterruptedIOException {
+        if (nanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(nanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/* This file is licensed as described by the file LICENCE. */
+
+package io.bitsafe.examplewallet.dev;
+
+import io.bitsafe.examplewallet.gui.Console;
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/** BitSafe device which reads back whatever reports were written to it, so
+ * that the host side of the transport can be exercised without hardware.
+ *
+ * @author Chris Chua
+ */
+public class LoopbackDevice extends BitSafeDevice {
+    private final ArrayDeque<byte[]> reports;
+
+    public LoopbackDevice(Console inConsole) {
+        super(null, inConsole);
+        reports = new ArrayDeque<>();
+    }
+
+    @Override
+    public void connect() {
+    }
+
+    @Override
+    public void disconnect() {
+    }
+
+    @Override
+    public void sendReport(byte[] report) throws IOException {
+        reports.add(report);
+    }
+
+    @Override
+    public byte[] receiveReport(long timeoutMillis) throws IOException {
+        byte[] report = reports.poll();
+        if (report == null) {
+            throw new IOException("Nothing to read back");
+        }
+        return report;
+    }
+}
@@ -0,0 +1,47 @@
+/* This file is licensed as described by the file LICENCE. */
+
+package io.bitsafe.examplewallet.dev;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** Packet framing (splitting into HID reports) and reassembly, over a
+ * loopback device.
+ *
+ * @author Chris Chua
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PacketWrapperBenchmark {
+    /** Payload sizes: empty (eg. Ping), one report, a typical
+     * SignTransaction and a large SignTransaction. */
+    @Param({"0", "50", "1000", "100000"})
+    public int payloadSize;
+
+    private PacketWrapper wrapper;
+    private Packet packet;
+
+    @Setup
+    public void setUp() {
+        wrapper = new PacketWrapper(new LoopbackDevice(BenchData.CONSOLE));
+        byte[] payload = new byte[payloadSize];
+        new Random(1).nextBytes(payload);
+        packet = new Packet(Packet.PACKET_TYPE_SIGN_TRANSACTION, payload);
+    }
+
+    @Benchmark
+    public Packet roundTrip() throws IOException, ReportFormatException {
+        wrapper.sendPacket(packet);
+        return wrapper.receivePacket();
+    }
+}
@@ -0,0 +1,88 @@
+/* This file is licensed as described by the file LICENCE. */
+
+package io.bitsafe.examplewallet.dev;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** Encoding and decoding the messages exchanged while signing and syncing.
+ *
+ * @author Chris Chua
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ProtobufBenchmark {
+    private byte[] transactionData;
+    private byte[] signatureData;
+    private byte[] publicKey;
+    private byte[] hash160;
+    private byte[] signTransactionBytes;
+    private byte[] signatureBytes;
+    private byte[] addressBytes;
+
+    @Setup
+    public void setUp() throws IOException {
+        // A two input transaction, which is typical.
+        transactionData = TransactionFormatter.getSignTransactionStream(BenchData.spend(2), 0);
+        Random random = new Random(3);
+        signatureData = new byte[72];
+        publicKey = new byte[33];
+        hash160 = new byte[20];
+        random.nextBytes(signatureData);
+        random.nextBytes(publicKey);
+        random.nextBytes(hash160);
+        signTransactionBytes = encodeSignTransaction();
+        signatureBytes = encodeSignature();
+        addressBytes = encodeAddress();
+    }
+
+    @Benchmark
+    public byte[] encodeSignTransaction() {
+        return Messages.SignTransaction.newBuilder()
+                .setAddressHandle(1)
+                .setTransactionData(ByteString.copyFrom(transactionData))
+                .build().toByteArray();
+    }
+
+    @Benchmark
+    public Messages.SignTransaction decodeSignTransaction() throws InvalidProtocolBufferException {
+        return Messages.SignTransaction.parseFrom(signTransactionBytes);
+    }
+
+    @Benchmark
+    public byte[] encodeSignature() {
+        return Messages.Signature.newBuilder()
+                .setSignatureData(ByteString.copyFrom(signatureData))
+                .build().toByteArray();
+    }
+
+    @Benchmark
+    public Messages.Signature decodeSignature() throws InvalidProtocolBufferException {
+        return Messages.Signature.parseFrom(signatureBytes);
+    }
+
+    @Benchmark
+    public byte[] encodeAddress() {
+        return Messages.Address.newBuilder()
+                .setAddressHandle(1)
+                .setPublicKey(ByteString.copyFrom(publicKey))
+                .setAddress(ByteString.copyFrom(hash160))
+                .build().toByteArray();
+    }
+
+    @Benchmark
+    public Messages.Address decodeAddress() throws InvalidProtocolBufferException {
+        return Messages.Address.parseFrom(addressBytes);
+    }
+}
@@ -0,0 +1,58 @@
+/* This file is licensed as described by the file LICENCE. */
+
+package io.bitsafe.examplewallet.dev;
+
+import io.bitsafe.examplewallet.gui.Console;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/** BitSafe device which ignores what it is sent and replies with the same
+ * packets over and over again. The reports making up the replies are built
+ * once up front, so the device itself allocates nothing while running.
+ *
+ * @author Chris Chua
+ */
+public class ScriptedDevice extends BitSafeDevice {
+    private final ArrayList<byte[]> reports;
+    private int next;
+
+    /**
+     * @param inConsole Where log messages go
+     * @param replies Packets to reply with, in order. After the last one,
+     *                the first one is sent again.
+     * @throws IOException 
+     */
+    public ScriptedDevice(Console inConsole, Packet... replies) throws IOException {
+        super(null, inConsole);
+        reports = new ArrayList<>();
+        LoopbackDevice loopback = new LoopbackDevice(inConsole);
+        PacketWrapper framer = new PacketWrapper(loopback);
+        for (Packet p : replies) {
+            framer.sendPacket(p);
+            int length = p.getStorage().length + 8;
+            for (int i = 0; i < length; i += PacketWrapper.MAX_REPORT_SIZE) {
+                reports.add(loopback.receiveReport());
+            }
+        }
+        next = 0;
+    }
+
+    @Override
+    public void connect() {
+    }
+
+    @Override
+    public void disconnect() {
+    }
+
+    @Override
+    public void sendReport(byte[] report) throws IOException {
+    }
+
+    @Override
+    public byte[] receiveReport(long timeoutMillis) throws IOException {
+        byte[] report = reports.get(next);
+        next = (next + 1) % reports.size();
+        return report;
+    }
+}
@@ -0,0 +1,43 @@
+/* This file is licensed as described by the file LICENCE. */
+
+package io.bitsafe.examplewallet.dev;
+
+import com.google.bitcoin.core.Transaction;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** Building the SignTransaction stream for one input. Every input's parent
+ * transaction goes into the stream, so this grows with the number of
+ * inputs, and signing a transaction does it once per input.
+ *
+ * @author Chris Chua
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TransactionFormatterBenchmark {
+    @Param({"1", "10", "100", "500"})
+    public int inputs;
+
+    private Transaction tx;
+    private int inputIndex;
+
+    @Setup
+    public void setUp() {
+        tx = BenchData.spend(inputs);
+    }
+
+    @Benchmark
+    public byte[] getSignTransactionStream() throws IOException {
+        inputIndex = (inputIndex + 1) % inputs;
+        return TransactionFormatter.getSignTransactionStream(tx, inputIndex);
+    }
+}
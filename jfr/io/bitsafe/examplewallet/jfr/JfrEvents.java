@@ -0,0 +1,197 @@
+/* This file is licensed as described by the file LICENCE. */
+
+package io.bitsafe.examplewallet.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+
+/** The actual JFR event classes. This is the only class which refers to
+ * jdk.jfr. It is compiled separately, for a Java version which has jdk.jfr,
+ * and Trace loads it by name once it knows that jdk.jfr exists.
+ *
+ * @author Chris Chua
+ */
+class JfrEvents implements EventSink {
+
+    @Name("io.bitsafe.Operation")
+    @Label("Device Operation")
+    @Category({"BitSafe", "Session"})
+    @Description("A Session or Wallet operation, from request to final response")
+    static class OperationEvent extends Event {
+        @Label("Operation")
+        String name;
+        @Label("Correlation ID")
+        long correlationId;
+        transient boolean outermost;
+    }
+
+    @Name("io.bitsafe.Report")
+    @Label("USB HID Report")
+    @Category({"BitSafe", "Transport"})
+    static class ReportEvent extends Event {
+        @Label("Outgoing")
+        boolean outgoing;
+        @Label("Bytes")
+        int bytes;
+        @Label("Correlation ID")
+        long correlationId;
+    }
+
+    @Name("io.bitsafe.Packet")
+    @Label("Packet")
+    @Category({"BitSafe", "Transport"})
+    @Description("Framing and transfer of one packet. For incoming packets this includes device think time, "
+            + "and button wait time if the last sent packet was a ButtonAck")
+    static class PacketEvent extends Event {
+        @Label("Outgoing")
+        boolean outgoing;
+        @Label("Packet Type")
+        int packetType;
+        @Label("Last Sent Packet Type")
+        int lastSentType;
+        @Label("Bytes")
+        int bytes;
+        @Label("Correlation ID")
+        long correlationId;
+    }
+
+    @Name("io.bitsafe.SignStream")
+    @Label("Sign Stream Build")
+    @Category({"BitSafe", "Signing"})
+    static class SignStreamEvent extends Event {
+        @Label("Input Index")
+        int inputIndex;
+        @Label("Inputs")
+        int inputs;
+        @Label("Bytes")
+        int bytes;
+        @Label("Correlation ID")
+        long correlationId;
+    }
+
+    @Name("io.bitsafe.WalletStage")
+    @Label("Wallet Stage")
+    @Category({"BitSafe", "Bitcoinj"})
+    @Description("A stage of sending a transaction, eg. completeTx or commitTx")
+    static class StageEvent extends Event {
+        @Label("Stage")
+        String stage;
+        @Label("Correlation ID")
+        long correlationId;
+    }
+
+    /** Start keeping Trace.recording up to date. */
+    public JfrEvents() {
+        FlightRecorder.addListener(new FlightRecorderListener() {
+            @Override
+            public void recorderInitialized(FlightRecorder recorder) {
+                update(recorder);
+            }
+
+            @Override
+            public void recordingStateChanged(Recording changed) {
+                update(FlightRecorder.getFlightRecorder());
+            }
+        });
+    }
+
+    private static void update(FlightRecorder recorder) {
+        boolean running = false;
+        for (Recording r : recorder.getRecordings()) {
+            if (r.getState() == RecordingState.RUNNING) {
+                running = true;
+                break;
+            }
+        }
+        Trace.recording = running;
+    }
+
+    @Override
+    public Object beginOperation(String name, long correlationId, boolean outermost) {
+        OperationEvent e = new OperationEvent();
+        e.name = name;
+        e.correlationId = correlationId;
+        e.outermost = outermost;
+        e.begin();
+        return e;
+    }
+
+    @Override
+    public boolean endOperation(Object handle) {
+        OperationEvent e = (OperationEvent)handle;
+        e.commit();
+        return e.outermost;
+    }
+
+    @Override
+    public Object beginReport(boolean outgoing, long correlationId) {
+        ReportEvent e = new ReportEvent();
+        e.outgoing = outgoing;
+        e.correlationId = correlationId;
+        e.begin();
+        return e;
+    }
+
+    @Override
+    public void endReport(Object handle, int bytes) {
+        ReportEvent e = (ReportEvent)handle;
+        e.bytes = bytes;
+        e.commit();
+    }
+
+    @Override
+    public Object beginPacket(boolean outgoing, int lastSentType, long correlationId) {
+        PacketEvent e = new PacketEvent();
+        e.outgoing = outgoing;
+        e.lastSentType = lastSentType;
+        e.correlationId = correlationId;
+        e.begin();
+        return e;
+    }
+
+    @Override
+    public void endPacket(Object handle, int packetType, int bytes) {
+        PacketEvent e = (PacketEvent)handle;
+        e.packetType = packetType;
+        e.bytes = bytes;
+        e.commit();
+    }
+
+    @Override
+    public Object beginSignStream(int inputIndex, long correlationId) {
+        SignStreamEvent e = new SignStreamEvent();
+        e.inputIndex = inputIndex;
+        e.correlationId = correlationId;
+        e.begin();
+        return e;
+    }
+
+    @Override
+    public void endSignStream(Object handle, int inputs, int bytes) {
+        SignStreamEvent e = (SignStreamEvent)handle;
+        e.inputs = inputs;
+        e.bytes = bytes;
+        e.commit();
+    }
+
+    @Override
+    public Object beginStage(String stage, long correlationId) {
+        StageEvent e = new StageEvent();
+        e.stage = stage;
+        e.correlationId = correlationId;
+        e.begin();
+        return e;
+    }
+
+    @Override
+    public void endStage(Object handle) {
+        ((StageEvent)handle).commit();
+    }
+}
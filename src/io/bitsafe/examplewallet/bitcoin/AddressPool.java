@@ -0,0 +1,239 @@
+/* This file is licensed as described by the file LICENCE. */
+
+package io.bitsafe.examplewallet.bitcoin;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/** Pool of pre-generated keys which sits in front of a (slow) address
+ * generator, such as a BitSafe wallet. Whenever the pool drops below the low
+ * watermark, it is topped up to the high watermark by a background thread,
+ * so that callers of generateNewKey() don't have to wait for the device.
+ * The refill runs on a thread of the pool's own, unless an Executor is
+ * given (eg. one which queues refills for the device).
+ *
+ * A refill generates one key at a time: each key is a separate task, which
+ * queues the next one when it is done. With an Executor that runs other work
+ * first (see DeviceScheduler), a refill therefore never keeps other work
+ * waiting for more than one key.
+ *
+ * Keys which were generated but never handed out can be given back with
+ * takeUnused() once the pool is closed, and used to seed the next pool, so
+ * that the device's addresses aren't used up every time a pool is made.
+ *
+ * @author Chris Chua
+ */
+public class AddressPool implements AddressGenerator {
+    /** Longest close() waits for a refill to finish, in milliseconds. */
+    public static long CLOSE_TIMEOUT_MS = 5000;
+
+    private final AddressGenerator source;
+    private final int lowWatermark;
+    private final int highWatermark;
+    private final LinkedBlockingQueue<ECKey> pool;
+    private final Executor refiller;
+    /** The refiller, if the pool created it, otherwise null. */
+    private final ExecutorService ownRefiller;
+    private final AtomicBoolean refillPending;
+    private volatile boolean closed;
+    /** Whether a refill is running; guarded by this pool. */
+    private boolean refilling;
+    /** Generates one key for the pool, then queues itself again if the pool
+     * isn't full yet. */
+    private final Runnable refillStep = new Runnable() {
+        @Override
+        public void run() {
+            if (!startRefill()) {
+                refillPending.set(false);
+                return;
+            }
+            boolean more = false;
+            try {
+                ECKey key = source.generateNewKey();
+                // If the source has failed (and logged why), try again on the
+                // next request.
+                if (key != null) {
+                    pool.add(key);
+                    more = pool.size() < highWatermark;
+                }
+            } finally {
+                endRefill();
+                if (!more) {
+                    refillPending.set(false);
+                }
+            }
+            if (more) {
+                try {
+                    refiller.execute(this);
+                } catch (RejectedExecutionException e) {
+                    // Pool was closed in the meantime, or the executor is too
+                    // busy; try again on the next request.
+                    refillPending.set(false);
+                }
+            }
+        }
+    };
+
+    /** Create a pool and start filling it.
+     * @param inSource Where new keys come from
+     * @param inLowWatermark A refill is started when the number of pooled
+     *                       keys drops below this
+     * @param inHighWatermark A refill stops when the number of pooled keys
+     *                        reaches this
+     */
+    public AddressPool(AddressGenerator inSource, int inLowWatermark, int inHighWatermark) {
+        this(inSource, inLowWatermark, inHighWatermark, null);
+    }
+
+    /** Create a pool which refills itself using an Executor, and start
+     * filling it.
+     * @param inSource Where new keys come from
+     * @param inLowWatermark A refill is started when the number of pooled
+     *                       keys drops below this
+     * @param inHighWatermark A refill stops when the number of pooled keys
+     *                        reaches this
+     * @param inRefiller Runs refills, or null to use a thread of the pool's
+     *                   own
+     */
+    public AddressPool(AddressGenerator inSource, int inLowWatermark, int inHighWatermark,
+            Executor inRefiller) {
+        this(inSource, inLowWatermark, inHighWatermark, inRefiller, null);
+    }
+
+    /** Create a pool which starts with keys left over from an earlier one,
+     * and only generates as many more as it needs to reach the high
+     * watermark.
+     * @param inSource Where new keys come from
+     * @param inLowWatermark A refill is started when the number of pooled
+     *                       keys drops below this
+     * @param inHighWatermark A refill stops when the number of pooled keys
+     *                        reaches this
+     * @param inRefiller Runs refills, or null to use a thread of the pool's
+     *                   own
+     * @param unusedKeys Keys from the source which have never been handed
+     *                   out (see takeUnused()), or null
+     */
+    public AddressPool(AddressGenerator inSource, int inLowWatermark, int inHighWatermark,
+            Executor inRefiller, Collection<ECKey> unusedKeys) {
+        if ((inLowWatermark < 1) || (inHighWatermark < inLowWatermark)) {
+            throw new IllegalArgumentException("Invalid address pool watermarks");
+        }
+        source = inSource;
+        lowWatermark = inLowWatermark;
+        highWatermark = inHighWatermark;
+        pool = new LinkedBlockingQueue<>();
+        if (unusedKeys != null) {
+            pool.addAll(unusedKeys);
+        }
+        if (inRefiller == null) {
+            ownRefiller = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("address-pool-%d")
+                    .setDaemon(true)
+                    .build());
+            refiller = ownRefiller;
+        } else {
+            ownRefiller = null;
+            refiller = inRefiller;
+        }
+        refillPending = new AtomicBoolean(false);
+        closed = false;
+        refillIfLow();
+    }
+
+    /** Take a key from the pool. If the pool is empty, this falls back to
+     * asking the source directly, so it can still block.
+     * @return A new key, or null if the source couldn't generate one
+     */
+    @Override
+    public ECKey generateNewKey() {
+        ECKey key = pool.poll();
+        if (key == null) {
+            key = source.generateNewKey();
+        }
+        refillIfLow();
+        return key;
+    }
+
+    /** Get the number of keys which are ready to be handed out.
+     */
+    public int size() {
+        return pool.size();
+    }
+
+    /** Stop refilling the pool. This waits (for up to CLOSE_TIMEOUT_MS)
+     * for any refill in progress to finish its current key, so that the
+     * source isn't being used after this returns. Keys still in the pool
+     * stay there until takeUnused() is called. A refill which is queued in
+     * an Executor but hasn't started yet does nothing when it does start.
+     * @return false if a refill was still using the source when the wait
+     *         ran out (eg. because the device is waiting for its button to
+     *         be pressed); it stops as soon as it has finished its key
+     */
+    public boolean close() {
+        closed = true;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CLOSE_TIMEOUT_MS);
+        boolean stopped = false;
+        try {
+            if (ownRefiller != null) {
+                ownRefiller.shutdown();
+            }
+            synchronized (this) {
+                long remaining;
+                while (refilling && ((remaining = deadline - System.nanoTime()) > 0)) {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+                stopped = !refilling;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return stopped;
+    }
+
+    /** Empty the pool, eg. once it has been closed, so that the keys can
+     * seed another pool later.
+     * @return Keys which were generated but never handed out, oldest first
+     */
+    public List<ECKey> takeUnused() {
+        List<ECKey> unused = new ArrayList<>(pool.size());
+        pool.drainTo(unused);
+        return unused;
+    }
+
+    private synchronized boolean startRefill() {
+        refilling = !closed;
+        return refilling;
+    }
+
+    private synchronized void endRefill() {
+        refilling = false;
+        notifyAll();
+    }
+
+    private void refillIfLow() {
+        if (closed || (pool.size() >= lowWatermark)) {
+            return;
+        }
+        // Only one refill step is ever queued, since each step queues the
+        // next until the high watermark is reached.
+        if (refillPending.compareAndSet(false, true)) {
+            try {
+                refiller.execute(refillStep);
+            } catch (RejectedExecutionException e) {
+                // Pool was closed in the meantime, or the executor is too
+                // busy; try again on the next request.
+                refillPending.set(false);
+            }
+        }
+    }
+}
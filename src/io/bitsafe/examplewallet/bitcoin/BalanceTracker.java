@@ -0,0 +1,201 @@
+/* This file is licensed as described by the file LICENCE. */
+
+package io.bitsafe.examplewallet.bitcoin;
+
+import com.google.bitcoin.core.AbstractWalletEventListener;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionConfidence.ConfidenceType;
+import com.google.bitcoin.core.Wallet;
+import java.math.BigInteger;
+import java.util.HashMap;
+
+/** Keeps track of a wallet's confirmed and unconfirmed balance without
+ * scanning the whole wallet on every change. Each transaction's net value
+ * is remembered, and when a transaction arrives or its confidence changes,
+ * only that transaction's contribution is moved between the totals.
+ *
+ * This is an approximation of what bitcoinj's coin selector considers
+ * spendable, so every RECONCILE_INTERVAL_MS, whether or not anything has
+ * happened, the totals are checked against a full recomputation from the
+ * wallet (see BitcoinJInterface, which runs reconcile() on a timer).
+ *
+ * The event methods should be called with the wallet lock held (ie. this
+ * should be registered with Threading.SAME_THREAD), so that the totals are
+ * up to date before any other listener hears about the change. Reading the
+ * totals never blocks.
+ *
+ * @author Chris Chua
+ */
+public class BalanceTracker extends AbstractWalletEventListener {
+    /** How often the incrementally updated totals are checked against a
+     * full recomputation, in milliseconds. */
+    public static final long RECONCILE_INTERVAL_MS = 60000;
+
+    /** Immutable pair of totals, so that readers always see a consistent
+     * pair. */
+    private static class Balances {
+        final BigInteger confirmed;
+        final BigInteger unconfirmed;
+
+        Balances(BigInteger inConfirmed, BigInteger inUnconfirmed) {
+            confirmed = inConfirmed;
+            unconfirmed = inUnconfirmed;
+        }
+    }
+
+    /** What a transaction currently contributes to the totals. */
+    private static class Contribution {
+        final BigInteger value;
+        final boolean confirmed;
+        final boolean counted;
+
+        Contribution(BigInteger inValue, boolean inConfirmed, boolean inCounted) {
+            value = inValue;
+            confirmed = inConfirmed;
+            counted = inCounted;
+        }
+    }
+
+    private final HashMap<Sha256Hash, Contribution> contributions;
+    private volatile Balances balances;
+    /** Incremented on every event, so that reconcile() can tell whether the
+     * wallet changed while it was recomputing. */
+    private long generation;
+    private int corrections;
+
+    public BalanceTracker() {
+        contributions = new HashMap<>();
+        balances = new Balances(BigInteger.ZERO, BigInteger.ZERO);
+        generation = 0;
+        corrections = 0;
+    }
+
+    /** Get confirmed balance in satoshi. */
+    public BigInteger getConfirmed() {
+        return balances.confirmed;
+    }
+
+    /** Get unconfirmed balance in satoshi. */
+    public BigInteger getUnconfirmed() {
+        return balances.unconfirmed;
+    }
+
+    /** Get the number of times a full recomputation disagreed with the
+     * incrementally updated totals. */
+    public synchronized int getCorrections() {
+        return corrections;
+    }
+
+    /** Forget everything and rebuild from a wallet. This walks the whole
+     * wallet, so it should only be needed when a wallet is attached.
+     * @param wallet Wallet to rebuild from
+     */
+    public void reset(Wallet wallet) {
+        HashMap<Sha256Hash, Contribution> rebuilt = new HashMap<>();
+        for (Transaction tx : wallet.getTransactions(true)) {
+            rebuilt.put(tx.getHash(), contributionOf(tx, tx.getValue(wallet)));
+        }
+        BigInteger c = wallet.getBalance(Wallet.BalanceType.AVAILABLE);
+        BigInteger u = wallet.getBalance(Wallet.BalanceType.ESTIMATED).subtract(c);
+        synchronized (this) {
+            contributions.clear();
+            contributions.putAll(rebuilt);
+            balances = new Balances(c, u);
+            generation++;
+        }
+    }
+
+    @Override
+    public void onCoinsReceived(Wallet wallet, Transaction tx, BigInteger prevBalance, BigInteger newBalance) {
+        update(wallet, tx);
+    }
+
+    @Override
+    public void onCoinsSent(Wallet wallet, Transaction tx, BigInteger prevBalance, BigInteger newBalance) {
+        update(wallet, tx);
+    }
+
+    @Override
+    public void onTransactionConfidenceChanged(Wallet wallet, Transaction tx) {
+        update(wallet, tx);
+    }
+
+    @Override
+    public void onReorganize(Wallet wallet) {
+        // A reorganisation can change the confidence of many transactions at
+        // once, so just start again.
+        reset(wallet);
+    }
+
+    private synchronized void update(Wallet wallet, Transaction tx) {
+        Contribution old = contributions.get(tx.getHash());
+        // A transaction's value doesn't change once it is in the wallet, so
+        // only work it out the first time it is seen. This matters because
+        // confidence changes for every transaction on every new block.
+        BigInteger value = (old != null) ? old.value : tx.getValue(wallet);
+        Contribution now = contributionOf(tx, value);
+        contributions.put(tx.getHash(), now);
+        generation++;
+        if ((old == null) || (old.counted != now.counted) || (old.confirmed != now.confirmed)) {
+            BigInteger c = balances.confirmed;
+            BigInteger u = balances.unconfirmed;
+            if ((old != null) && old.counted) {
+                if (old.confirmed) {
+                    c = c.subtract(old.value);
+                } else {
+                    u = u.subtract(old.value);
+                }
+            }
+            if (now.counted) {
+                if (now.confirmed) {
+                    c = c.add(now.value);
+                } else {
+                    u = u.add(now.value);
+                }
+            }
+            balances = new Balances(c, u);
+        }
+    }
+
+    /** Check the totals against a full recomputation from a wallet, and
+     * replace them if they differ. This takes the wallet lock, whereas the
+     * event methods are called with it held, so it must not be called with
+     * this object's lock held.
+     * @param wallet Wallet this is tracking
+     */
+    void reconcile(Wallet wallet) {
+        long before;
+        synchronized (this) {
+            before = generation;
+        }
+        BigInteger c = wallet.getBalance(Wallet.BalanceType.AVAILABLE);
+        BigInteger u = wallet.getBalance(Wallet.BalanceType.ESTIMATED).subtract(c);
+        synchronized (this) {
+            if (generation != before) {
+                // The wallet changed in the meantime, so the recomputation
+                // may already be out of date. Try again next time.
+                return;
+            }
+            Balances current = balances;
+            if ((c.compareTo(current.confirmed) != 0) || (u.compareTo(current.unconfirmed) != 0)) {
+                corrections++;
+                balances = new Balances(c, u);
+            }
+        }
+    }
+
+    private static Contribution contributionOf(Transaction tx, BigInteger value) {
+        ConfidenceType type = tx.getConfidence().getConfidenceType();
+        if (type == ConfidenceType.BUILDING) {
+            return new Contribution(value, true, true);
+        } else if (type == ConfidenceType.PENDING) {
+            // bitcoinj lets us spend change from our own pending
+            // transactions, so spends take effect immediately. Incoming
+            // payments don't count until they are in a block.
+            return new Contribution(value, value.signum() < 0, true);
+        } else {
+            return new Contribution(value, false, false);
+        }
+    }
+}
@@ -9,63 +9,120 @@ import com.google.bitcoin.core.DownloadListener;
 import com.google.bitcoin.core.ECKey;
 import com.google.bitcoin.core.InsufficientMoneyException;
 import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.PeerAddress;
 import com.google.bitcoin.core.PeerEventListener;
 import com.google.bitcoin.core.PeerGroup;
 import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionInput;
+import com.google.bitcoin.core.TransactionOutput;
 import com.google.bitcoin.core.Wallet;
 import com.google.bitcoin.net.discovery.DnsDiscovery;
 import com.google.bitcoin.params.TestNet3Params;
 import com.google.bitcoin.store.BlockStoreException;
 import com.google.bitcoin.store.SPVBlockStore;
 import com.google.bitcoin.store.UnreadableWalletException;
+import com.google.bitcoin.utils.Threading;
 import com.google.bitcoin.wallet.CoinSelector;
+import com.google.bitcoin.wallet.DefaultCoinSelector;
 import com.google.common.util.concurrent.AbstractIdleService;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.bitsafe.examplewallet.jfr.Trace;
+import io.bitsafe.examplewallet.metrics.Gauge;
+import io.bitsafe.examplewallet.metrics.Metrics;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
-import javax.swing.SwingUtilities;
 
 /** Lots of code has been copied from BitcoinJ's WalletAppKit.java
  *
  * @author Mike Hearn, Chris Chua
  */
 public class BitcoinJInterface extends AbstractIdleService implements AddressGenerator {
+    /** Minimum time between balance updates, in milliseconds. This is about
+     * one frame at 60 Hz. */
+    public static final long BALANCE_UPDATE_INTERVAL_MS = 16;
 
     private final String filePrefix;
     private final NetworkParameters params;
+    private final PeerAddress[] peerAddresses;
     private volatile BlockChain vChain;
     private volatile SPVBlockStore vStore;
-    private volatile Wallet vWallet;
+    private volatile HostedWallet vActive;
     private volatile PeerGroup vPeerGroup;
 
     private final File directory;
 
     private PeerEventListener downloadListener;
+    private final ConcurrentHashMap<Integer, HostedWallet> hostedWallets;
     private final MyWalletEventListener walletListener;
-    private final Executor runInUIThread;
+    private final CoalescingExecutor walletEventExecutor;
+    private final ScheduledExecutorService reconcileTimer;
     private volatile AddressGenerator addressGenerator;
 
     public BitcoinJInterface(String inDirectoryString, String inFilePrefix) {
-        params = TestNet3Params.get();
+        this(inDirectoryString, inFilePrefix, TestNet3Params.get(), null);
+    }
+
+    /**
+     * @param inDirectoryString Directory where data files go
+     * @param inFilePrefix Prefix of data filenames
+     * @param inParams Which network to use
+     * @param inPeerAddresses Connect only to these peers (eg. a local node),
+     *                        or null to discover peers using DNS. If this
+     *                        is empty, no connections are made.
+     */
+    public BitcoinJInterface(String inDirectoryString, String inFilePrefix,
+            NetworkParameters inParams, PeerAddress[] inPeerAddresses) {
+        params = inParams;
+        peerAddresses = inPeerAddresses;
         directory = new File(inDirectoryString);
         filePrefix = inFilePrefix;
-        walletListener = new MyWalletEventListener();
-        // Executor object to associate with wallet event listeners so that
-        // they always run in the Swing UI thread.
-        runInUIThread = new Executor() {
-            @Override public void execute(Runnable runnable) {
-                SwingUtilities.invokeLater(runnable);
-            }
-        };
+        hostedWallets = new ConcurrentHashMap<>();
+        // Wallet events can arrive thousands at a time during chain sync.
+        // Each one triggers a balance refresh, so merge the refreshes and
+        // compute the balance away from the Swing UI thread. The events
+        // themselves are still all delivered.
+        walletEventExecutor = new CoalescingExecutor("wallet-events",
+                BALANCE_UPDATE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        walletListener = new MyWalletEventListener(new BalanceTracker(), walletEventExecutor);
+        // Balance trackers are checked on a timer rather than on wallet
+        // events, so that a tracker which has gone wrong is put right even
+        // when nothing is happening.
+        reconcileTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("balance-reconcile")
+                .setDaemon(true)
+                .build());
         addressGenerator = this;
+        Metrics.REGISTRY.register("bitcoin_chain_height", "Height of the best known block.", new Gauge() {
+            @Override
+            public double get() {
+                BlockChain chain = vChain;
+                return (chain != null) ? chain.getBestChainHeight() : 0;
+            }
+        });
+        Metrics.REGISTRY.register("bitcoin_peers", "Number of connected Bitcoin peers.", new Gauge() {
+            @Override
+            public double get() {
+                PeerGroup peerGroup = vPeerGroup;
+                return (peerGroup != null) ? peerGroup.numConnectedPeers() : 0;
+            }
+        });
         startAndWait();
     }
 
@@ -80,7 +137,7 @@ public class BitcoinJInterface extends AbstractIdleService implements AddressGen
             // TODO: handle this better
             return null;
         }
-        vWallet.addKey(key);
+        wallet().addKey(key);
         return key.toAddress(params).toString();
     }
 
@@ -93,59 +150,236 @@ public class BitcoinJInterface extends AbstractIdleService implements AddressGen
     }
 
     /** Create, sign, commit and broadcast a transaction which spends to
-     * multiple recipients.
+     * multiple recipients. If the signer has an unfinished transaction
+     * which pays the same recipients and whose inputs can still be spent,
+     * that transaction is signed again instead of a new one being built,
+     * so that signatures it already has can be used.
      * @param recipients Who to send to
      * @param allowUnconfirmedSpend Whether to allow spending unconfirmed outputs
      * @param signer External transaction signer (can be null)
+     * @return The broadcast transaction, or null if the signer failed
      * @throws AddressFormatException 
      * @throws InsufficientMoneyException 
      * @throws InterruptedException 
      * @throws ExecutionException 
      */
-    public void sendMulti(SendRecipient[] recipients, boolean allowUnconfirmedSpend, TransactionSigner signer)
+    public Transaction sendMulti(SendRecipient[] recipients, boolean allowUnconfirmedSpend, TransactionSigner signer)
             throws AddressFormatException, InsufficientMoneyException,
             InterruptedException, ExecutionException {
-        // Create empty send request.
+        Object trace = Trace.beginOperation("SendMulti");
+        try {
+            // Populate output list with recipients.
+            List<TransactionOutput> outputs = new ArrayList<>(recipients.length);
+            Address addr;
+            for (SendRecipient recipient : recipients) {
+                addr = new Address(params, recipient.getAddress());
+                outputs.add(new TransactionOutput(params, null, recipient.getAmount(), addr));
+            }
+            Wallet w = wallet();
+            CoinSelector oldSelector = w.getCoinSelector();
+            Object stage;
+            long start = System.nanoTime();
+            Transaction unfinished = null;
+            if (signer != null) {
+                unfinished = resumeTransaction(signer.getUnfinishedTransaction(params), outputs,
+                        allowUnconfirmedSpend, w);
+            }
+            Wallet.SendRequest req;
+            if (unfinished != null) {
+                req = Wallet.SendRequest.forTx(unfinished);
+            } else {
+                // Create empty send request.
+                Transaction tx = new Transaction(params);
+                req = Wallet.SendRequest.forTx(tx);
+                for (TransactionOutput output : outputs) {
+                    tx.addOutput(new TransactionOutput(params, tx, output.getValue(), output.getScriptBytes()));
+                }
+                // Always generate a new change address. Its key goes into the
+                // wallet (and so the wallet file) so that the change is
+                // recognised, even if the transaction has to be picked up
+                // again after a restart.
+                stage = Trace.beginStage("changeAddress");
+                ECKey changeKey = addressGenerator.generateNewKey();
+                w.addKey(changeKey);
+                req.changeAddress = changeKey.toAddress(params);
+                start = endStage("changeAddress", start);
+                Trace.endStage(stage);
+                // Complete transaction by adding inputs, a change output and fees.
+                if (allowUnconfirmedSpend) {
+                    w.allowSpendingUnconfirmedTransactions();
+                }
+                stage = Trace.beginStage("completeTx");
+                w.completeTx(req);
+                start = endStage("completeTx", start);
+                Trace.endStage(stage);
+            }
+            boolean discardTransaction = false;
+            if (signer != null) {
+                stage = Trace.beginStage("sign");
+                discardTransaction = !signer.signTransaction(req.tx, w);
+                start = endStage("sign", start);
+                Trace.endStage(stage);
+            }
+
+            if (!discardTransaction) {
+                stage = Trace.beginStage("commitTx");
+                w.commitTx(req.tx);
+                if (signer != null) {
+                    signer.transactionCommitted(req.tx);
+                }
+                start = endStage("commitTx", start);
+                Trace.endStage(stage);
+                w.setCoinSelector(oldSelector);
+                // Broadcast the transaction.
+                stage = Trace.beginStage("broadcast");
+                ListenableFuture<Transaction> future = vPeerGroup.broadcastTransaction(req.tx);
+                future.get();
+                endStage("broadcast", start);
+                Trace.endStage(stage);
+                return req.tx;
+            }
+            return null;
+        } finally {
+            Trace.endOperation(trace);
+        }
+    }
+
+    /** Build an unfinished transaction again from the wallet, if it can
+     * still be sent in place of a new one: it must pay exactly the wanted
+     * outputs, plus at most one output (the change) to the wallet, and
+     * every input must spend an output of the wallet which is still
+     * available (and confirmed, unless unconfirmed spends are allowed).
+     * The rebuilt transaction's inputs are connected the way completeTx()
+     * connects them, so it can be signed and committed like a new one.
+     * @param unfinished Unfinished transaction from the signer, or null
+     * @param wanted Outputs to the recipients
+     * @param allowUnconfirmedSpend Whether to allow spending unconfirmed outputs
+     * @param w Wallet to spend from
+     * @return The rebuilt transaction, or null if it can't be used
+     */
+    private Transaction resumeTransaction(Transaction unfinished, List<TransactionOutput> wanted,
+            boolean allowUnconfirmedSpend, Wallet w) {
+        if ((unfinished == null) || (unfinished.getVersion() != new Transaction(params).getVersion())) {
+            return null;
+        }
+        List<TransactionOutput> unmatched = new ArrayList<>(wanted);
+        int change = 0;
+        for (TransactionOutput output : unfinished.getOutputs()) {
+            TransactionOutput match = null;
+            for (TransactionOutput candidate : unmatched) {
+                if (candidate.getValue().equals(output.getValue())
+                        && Arrays.equals(candidate.getScriptBytes(), output.getScriptBytes())) {
+                    match = candidate;
+                    break;
+                }
+            }
+            if (match != null) {
+                unmatched.remove(match);
+            } else if (output.isMine(w)) {
+                change++;
+            } else {
+                return null;
+            }
+        }
+        if (!unmatched.isEmpty() || (change > 1)) {
+            return null;
+        }
+
         Transaction tx = new Transaction(params);
-        Wallet.SendRequest req = Wallet.SendRequest.forTx(tx);
-        // Populate output list with recipients.
-        Address addr;
-        for (SendRecipient recipient : recipients) {
-            addr = new Address(params, recipient.getAddress());
-            tx.addOutput(recipient.getAmount(), addr);
+        for (TransactionInput input : unfinished.getInputs()) {
+            Transaction parent = w.getTransaction(input.getOutpoint().getHash());
+            long index = input.getOutpoint().getIndex();
+            if ((parent == null) || (index >= parent.getOutputs().size())) {
+                return null;
+            }
+            TransactionOutput spent = parent.getOutput((int)index);
+            if (!spent.isAvailableForSpending() || !spent.isMine(w)
+                    || !(allowUnconfirmedSpend || DefaultCoinSelector.isSelectable(parent))) {
+                return null;
+            }
+            tx.addInput(spent).setSequenceNumber(input.getSequenceNumber());
         }
-        // Always generate a new change address.
-        req.changeAddress = addressGenerator.generateNewKey().toAddress(params);
-        // Complete transaction by adding inputs, a change output and fees.
-        CoinSelector oldSelector = vWallet.getCoinSelector();
-        if (allowUnconfirmedSpend) {
-            vWallet.allowSpendingUnconfirmedTransactions();
+        for (TransactionOutput output : unfinished.getOutputs()) {
+            tx.addOutput(new TransactionOutput(params, tx, output.getValue(), output.getScriptBytes()));
         }
-        vWallet.completeTx(req);
-        boolean discardTransaction = false;
-        if (signer != null) {
-            discardTransaction = !signer.signTransaction(req.tx, vWallet);
+        tx.setLockTime(unfinished.getLockTime());
+        // Anything which didn't survive the rebuild makes it a different
+        // transaction.
+        if (!tx.getHash().equals(unfinished.getHash())) {
+            return null;
         }
+        return tx;
+    }
+
+    /** Record how long a stage of sendMulti() took.
+     * @param name Name of the stage
+     * @param start When the stage started, from System.nanoTime()
+     * @return When the stage ended, which is when the next one starts
+     */
+    private static long endStage(String name, long start) {
+        long end = System.nanoTime();
+        Metrics.sendStageDuration(name).record(end - start);
+        return end;
+    }
 
-        if (!discardTransaction) {
-            vWallet.commitTx(req.tx);
-            vWallet.setCoinSelector(oldSelector);
-            // Broadcast the transaction.
-            ListenableFuture<Transaction> future = vPeerGroup.broadcastTransaction(req.tx);
-            future.get();
+    /** A bitcoinj wallet which is attached to the block chain and peer group,
+     * along with its balance tracker. */
+    private static class HostedWallet {
+        final Wallet wallet;
+        final BalanceTracker tracker;
+        /** Runs tracker.reconcile() while the wallet is attached. */
+        ScheduledFuture<?> reconcileTask;
+
+        HostedWallet(Wallet inWallet) {
+            wallet = inWallet;
+            tracker = new BalanceTracker();
         }
     }
 
-    private void detachWallet() {
-        vWallet.removeEventListener(walletListener);
-        vChain.removeWallet(vWallet);
-        vPeerGroup.removeWallet(vWallet);
+    private void attachWallet(final HostedWallet h) {
+        vChain.addWallet(h.wallet);
+        // PeerGroup merges the bloom filters of all its wallets, so peers
+        // are sent one combined filter however many wallets are attached.
+        vPeerGroup.addWallet(h.wallet);
+        // The balance tracker runs with the wallet lock held, so that it is up
+        // to date by the time walletListener asks it for balances.
+        h.wallet.addEventListener(h.tracker, Threading.SAME_THREAD);
+        h.tracker.reset(h.wallet);
+        h.wallet.addEventListener(SupportingTransactionCache.SHARED, Threading.SAME_THREAD);
+        h.reconcileTask = reconcileTimer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                h.tracker.reconcile(h.wallet);
+            }
+        }, BalanceTracker.RECONCILE_INTERVAL_MS, BalanceTracker.RECONCILE_INTERVAL_MS, TimeUnit.MILLISECONDS);
     }
 
-    private void attachWallet(Wallet w) {
-        vChain.addWallet(w);
-        vPeerGroup.addWallet(w);
-        w.addEventListener(walletListener, runInUIThread);
+    private void detachWallet(HostedWallet h) {
+        h.reconcileTask.cancel(false);
+        h.wallet.removeEventListener(h.tracker);
+        h.wallet.removeEventListener(SupportingTransactionCache.SHARED);
+        vChain.removeWallet(h.wallet);
+        vPeerGroup.removeWallet(h.wallet);
+    }
+
+    /** Make a wallet the one which is shown in the UI and which is used for
+     * sending and receiving.
+     * @param h Wallet to make active. It must already be attached.
+     */
+    private void activateWallet(HostedWallet h) {
+        HostedWallet old = vActive;
+        if (old != null) {
+            old.wallet.removeEventListener(walletListener);
+            if (!hostedWallets.containsValue(old)) {
+                // Scratch wallet which doesn't belong to any BitSafe wallet,
+                // so there's no point in tracking it any more.
+                detachWallet(old);
+            }
+        }
+        walletListener.setTracker(h.tracker);
+        vActive = h;
+        h.wallet.addEventListener(walletListener, Threading.USER_THREAD);
+        walletListener.onChange();
     }
 
     public File getWalletFile(int inWalletNumber) {
@@ -153,29 +387,81 @@ public class BitcoinJInterface extends AbstractIdleService implements AddressGen
     }
 
     public void saveWallet(int inWalletNumber) throws IOException {
+        HostedWallet h = hostedWallets.get(inWalletNumber);
+        Wallet w = (h != null) ? h.wallet : wallet();
+        long start = System.nanoTime();
         try (FileOutputStream fos = new FileOutputStream(getWalletFile(inWalletNumber))) {
-            vWallet.saveToFileStream(fos);
+            w.saveToFileStream(fos);
+        } finally {
+            Metrics.BITCOINJ_SAVE_DURATION.recordSince(start);
         }
     }
 
-    public void loadWallet(int inWalletNumber) throws UnreadableWalletException, IOException {
-        try (FileInputStream fis = new FileInputStream(getWalletFile(inWalletNumber))) {
-            detachWallet();
-            vWallet = Wallet.loadFromFileStream(fis);
+    /** Make a wallet active, loading it and attaching it to the block chain
+     * if that hasn't been done yet. Wallets stay attached when another wallet
+     * is made active, so they don't miss any blocks and switching back to
+     * them doesn't need to reload them.
+     * @param inWalletNumber BitSafe wallet number
+     * @throws UnreadableWalletException
+     * @throws IOException
+     */
+    public synchronized void loadWallet(int inWalletNumber) throws UnreadableWalletException, IOException {
+        HostedWallet h = hostedWallets.get(inWalletNumber);
+        if (h == null) {
+            File f = getWalletFile(inWalletNumber);
+            Wallet w;
+            if (f.exists()) {
+                try (FileInputStream fis = new FileInputStream(f)) {
+                    w = Wallet.loadFromFileStream(fis);
+                }
+            } else {
+                // Newly created BitSafe wallet.
+                w = new Wallet(params);
+            }
+            h = new HostedWallet(w);
+            attachWallet(h);
+            w.autosaveToFile(f, 10, TimeUnit.SECONDS, null);
+            hostedWallets.put(inWalletNumber, h);
         }
-        attachWallet(vWallet);
-        walletListener.onWalletChanged(vWallet);
-        vWallet.autosaveToFile(getWalletFile(inWalletNumber), 10, TimeUnit.SECONDS, null);
+        activateWallet(h);
     }
 
-    public void deleteWallet(int inWalletNumber) {
+    /** Stop tracking a wallet. If it was the active wallet, an empty scratch
+     * wallet becomes active. Once this returns, nothing writes to the
+     * wallet's file any more.
+     * @param inWalletNumber BitSafe wallet number
+     */
+    public synchronized void closeWallet(int inWalletNumber) {
+        HostedWallet h = hostedWallets.remove(inWalletNumber);
+        if (h != null) {
+            // A pending autosave would otherwise write the file after it has
+            // been deleted, or save a wallet which is no longer being
+            // updated.
+            h.wallet.shutdownAutosaveAndWait();
+            if (vActive == h) {
+                // Activating another wallet detaches this one, since it is
+                // no longer in hostedWallets.
+                resetWallet();
+            } else {
+                detachWallet(h);
+            }
+        }
+    }
+
+    /** Get the numbers of all wallets which are being tracked. */
+    public SortedSet<Integer> getHostedWalletNumbers() {
+        return new TreeSet<>(hostedWallets.keySet());
+    }
+
+    public synchronized void deleteWallet(int inWalletNumber) {
+        closeWallet(inWalletNumber);
         getWalletFile(inWalletNumber).delete();
     }
 
-    public void resetWallet() {
-        detachWallet();
-        vWallet = new Wallet(params);
-        attachWallet(vWallet);
+    public synchronized void resetWallet() {
+        HostedWallet h = new HostedWallet(new Wallet(params));
+        attachWallet(h);
+        activateWallet(h);
     }
 
     @Override
@@ -192,11 +478,17 @@ public class BitcoinJInterface extends AbstractIdleService implements AddressGen
             vStore = new SPVBlockStore(params, chainFile);
             vChain = new BlockChain(params, vStore);
             vPeerGroup = new PeerGroup(params, vChain);
-            vWallet = new Wallet(params);
             // Set up peer addresses or discovery first, so if wallet extensions try to broadcast a transaction
             // before we're actually connected the broadcast waits for an appropriate number of connections.
-            vPeerGroup.addPeerDiscovery(new DnsDiscovery(params));
-            attachWallet(vWallet);
+            if (peerAddresses != null) {
+                for (PeerAddress address : peerAddresses) {
+                    vPeerGroup.addAddress(address);
+                }
+                vPeerGroup.setMaxConnections(peerAddresses.length);
+            } else {
+                vPeerGroup.addPeerDiscovery(new DnsDiscovery(params));
+            }
+            resetWallet();
 
             Futures.addCallback(vPeerGroup.start(), new FutureCallback<State>() {
                 @Override
@@ -222,9 +514,16 @@ public class BitcoinJInterface extends AbstractIdleService implements AddressGen
         // Runs in a separate thread.
         try {
             vPeerGroup.stopAndWait();
+            for (Integer walletNumber : hostedWallets.keySet()) {
+                hostedWallets.get(walletNumber).wallet.shutdownAutosaveAndWait();
+                saveWallet(walletNumber);
+            }
             vStore.close();
+            walletEventExecutor.shutdown();
+            reconcileTimer.shutdownNow();
             vPeerGroup = null;
-            vWallet = null;
+            vActive = null;
+            hostedWallets.clear();
             vStore = null;
             vChain = null;
         } catch (BlockStoreException e) {
@@ -233,11 +532,34 @@ public class BitcoinJInterface extends AbstractIdleService implements AddressGen
 
     }
 
+    /** Get the balance tracker of the active wallet. */
+    public BalanceTracker balanceTracker() {
+        HostedWallet h = vActive;
+        return (h != null) ? h.tracker : null;
+    }
+
+    /** Get the active wallet. */
     public Wallet wallet() {
-        return vWallet;
+        HostedWallet h = vActive;
+        return (h != null) ? h.wallet : null;
+    }
+
+    /** Get a wallet which is being tracked, whether it is active or not.
+     * @param inWalletNumber BitSafe wallet number
+     * @return The wallet, or null if it isn't being tracked
+     */
+    public Wallet wallet(int inWalletNumber) {
+        HostedWallet h = hostedWallets.get(inWalletNumber);
+        return (h != null) ? h.wallet : null;
     }
 
     public NetworkParameters params() {
         return params;
     }
+
+    /** Get the block chain, eg. to feed it blocks which didn't come from
+     * the peer group. */
+    public BlockChain chain() {
+        return vChain;
+    }
 }
@@ -0,0 +1,66 @@
+/* This file is licensed as described by the file LICENCE. */
+
+package io.bitsafe.examplewallet.bitcoin;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/** Executor which runs tasks on a background thread, at most once per
+ * interval. Tasks submitted while another is waiting to run replace the
+ * waiting task, so only the most recently submitted one runs. This is only
+ * suitable for tasks where later submissions make earlier ones redundant,
+ * such as "refresh the displayed balance".
+ *
+ * @author Chris Chua
+ */
+public class CoalescingExecutor implements Executor {
+    private final ScheduledExecutorService scheduler;
+    private final long intervalNanos;
+    private final AtomicReference<Runnable> pending;
+    private final Runnable drain;
+    private volatile long lastRunNanos;
+
+    /**
+     * @param name Name of the background thread
+     * @param interval Minimum time between two task runs
+     * @param unit Unit of interval
+     */
+    public CoalescingExecutor(String name, long interval, TimeUnit unit) {
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat(name)
+                .setDaemon(true)
+                .build());
+        intervalNanos = unit.toNanos(interval);
+        pending = new AtomicReference<>();
+        lastRunNanos = System.nanoTime() - intervalNanos;
+        drain = new Runnable() {
+            @Override
+            public void run() {
+                // Clearing pending before running allows the next execute()
+                // to schedule another drain.
+                Runnable task = pending.getAndSet(null);
+                lastRunNanos = System.nanoTime();
+                if (task != null) {
+                    task.run();
+                }
+            }
+        };
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        if (pending.getAndSet(task) == null) {
+            // Nothing was waiting, so no drain is scheduled.
+            long delay = lastRunNanos + intervalNanos - System.nanoTime();
+            scheduler.schedule(drain, Math.max(delay, 0), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    public void shutdown() {
+        scheduler.shutdown();
+    }
+}
@@ -7,24 +7,72 @@
 package io.bitsafe.examplewallet.bitcoin;
 
 import com.google.bitcoin.core.AbstractWalletEventListener;
-import com.google.bitcoin.core.Wallet;
 import java.math.BigInteger;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.swing.SwingUtilities;
 
-/**
+/** Passes wallet balances on to the observer in the Swing UI thread whenever
+ * the wallet changes. The balances come from a BalanceTracker, so no wallet
+ * scan is needed here.
+ *
+ * Every wallet event is handled (this class doesn't care which executor it
+ * is registered with), but the balance refresh it triggers is handed to a
+ * separate executor, which may merge refreshes. Since a refresh reads the
+ * tracker when it runs, merging them never loses a balance change.
  *
  * @author z
  */
 public class MyWalletEventListener extends AbstractWalletEventListener {
+    private volatile BalanceTracker tracker;
     private volatile WalletBalanceObserver observer;
+    private final Executor refreshExecutor;
+    /** Most recent {confirmed, unconfirmed} balances which haven't been
+     * passed to the observer yet. */
+    private final AtomicReference<BigInteger[]> latestBalances = new AtomicReference<>();
+    private final Runnable publishBalances = new Runnable() {
+        @Override
+        public void run() {
+            BigInteger[] balances = latestBalances.getAndSet(null);
+            if ((balances != null) && (observer != null)) {
+                observer.balanceChanged(balances[0], balances[1]);
+            }
+        }
+    };
+    private final Runnable refreshBalances = new Runnable() {
+        @Override
+        public void run() {
+            BigInteger c = tracker.getConfirmed();
+            BigInteger u = tracker.getUnconfirmed();
+            // Only queue one UI update at a time; if one is already queued,
+            // it will pick up these values.
+            if (latestBalances.getAndSet(new BigInteger[] {c, u}) == null) {
+                SwingUtilities.invokeLater(publishBalances);
+            }
+        }
+    };
+
+    /**
+     * @param inTracker Where balances come from
+     * @param inRefreshExecutor Runs balance refreshes; it may coalesce them
+     *                          (see CoalescingExecutor)
+     */
+    public MyWalletEventListener(BalanceTracker inTracker, Executor inRefreshExecutor) {
+        tracker = inTracker;
+        refreshExecutor = inRefreshExecutor;
+    }
 
+    /** Called by AbstractWalletEventListener for every kind of wallet event:
+     * coins received or sent, confidence changes, reorganisations, etc. */
     @Override
-    public void onWalletChanged(Wallet wallet) {
-        BigInteger c = wallet.getBalance(Wallet.BalanceType.AVAILABLE);
-        BigInteger u = wallet.getBalance(Wallet.BalanceType.ESTIMATED);
-        u = u.subtract(c);
-        if (observer != null) {
-            observer.balanceChanged(c, u);
-        }
+    public void onChange() {
+        refreshExecutor.execute(refreshBalances);
+    }
+
+    /** Change where balances come from, eg. when another wallet becomes
+     * active. */
+    public void setTracker(BalanceTracker newTracker) {
+        tracker = newTracker;
     }
 
     public void setObserver(WalletBalanceObserver newObserver) {
@@ -0,0 +1,125 @@
+/* This file is licensed as described by the file LICENCE. */
+
+package io.bitsafe.examplewallet.bitcoin;
+
+import com.google.bitcoin.core.AbstractWalletEventListener;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.Wallet;
+import io.bitsafe.examplewallet.metrics.Counter;
+import io.bitsafe.examplewallet.metrics.Gauge;
+import io.bitsafe.examplewallet.metrics.Metrics;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** Serialised parent transactions, by transaction ID, for building the
+ * stream which the BitSafe signs (see TransactionFormatter). The stream for
+ * every input includes the parent of every input, so without this, signing
+ * a transaction with n inputs serialises n * n parents, and a run of payouts
+ * funded by the same few transactions serialises those over and over.
+ *
+ * Entries are dropped, least recently used first, once the serialised
+ * transactions (plus ENTRY_OVERHEAD each) take up more than MAX_BYTES. A
+ * transaction ID is the hash of the serialised transaction, so an entry
+ * can't go out of date; the cache is still emptied whenever a wallet it is
+ * listening to sees a reorganisation, since the parents it holds are then
+ * unlikely to be spent any more.
+ *
+ * There is one cache, SHARED, used by every wallet and every signing path.
+ *
+ * @author Chris Chua
+ */
+public class SupportingTransactionCache extends AbstractWalletEventListener {
+    /** Most memory the cache uses, in bytes. */
+    public static long MAX_BYTES = 4 * 1024 * 1024;
+    /** Rough number of bytes each entry uses on top of the serialised
+     * transaction: the map entry, the key and the array header. */
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private static final Counter HITS = Metrics.REGISTRY.counter("bitsafe_supporting_transaction_cache_total",
+            "Lookups of serialised parent transactions while signing, by result.", "result", "hit");
+    private static final Counter MISSES = Metrics.REGISTRY.counter("bitsafe_supporting_transaction_cache_total",
+            "Lookups of serialised parent transactions while signing, by result.", "result", "miss");
+    private static final Counter EVICTIONS = Metrics.REGISTRY.counter(
+            "bitsafe_supporting_transaction_cache_evictions_total",
+            "Serialised parent transactions dropped to keep the cache within its size.");
+
+    public static final SupportingTransactionCache SHARED = new SupportingTransactionCache();
+
+    /** In order from least to most recently used. */
+    private final LinkedHashMap<Sha256Hash, byte[]> entries;
+    private long bytes;
+
+    private SupportingTransactionCache() {
+        entries = new LinkedHashMap<>(16, 0.75f, true);
+        Metrics.REGISTRY.register("bitsafe_supporting_transaction_cache_bytes",
+                "Memory used by serialised parent transactions kept for signing.", new Gauge() {
+            @Override
+            public double get() {
+                return getBytes();
+            }
+        });
+    }
+
+    /** Get a transaction's Bitcoin serialisation, serialising it if it
+     * isn't in the cache.
+     * @param tx The transaction
+     * @return The serialised transaction. This may be shared, so it must
+     *         not be modified.
+     */
+    public byte[] serialize(Transaction tx) {
+        Sha256Hash hash = tx.getHash();
+        synchronized (this) {
+            byte[] serialized = entries.get(hash);
+            if (serialized != null) {
+                HITS.inc();
+                return serialized;
+            }
+        }
+        MISSES.inc();
+        byte[] serialized = tx.bitcoinSerialize();
+        put(hash, serialized);
+        return serialized;
+    }
+
+    private synchronized void put(Sha256Hash hash, byte[] serialized) {
+        long size = serialized.length + ENTRY_OVERHEAD;
+        if (size > MAX_BYTES) {
+            return;
+        }
+        byte[] old = entries.put(hash, serialized);
+        if (old != null) {
+            // Serialised by two threads at once.
+            bytes -= old.length + ENTRY_OVERHEAD;
+        }
+        bytes += size;
+        Iterator<Map.Entry<Sha256Hash, byte[]>> iterator = entries.entrySet().iterator();
+        while (bytes > MAX_BYTES) {
+            byte[] evicted = iterator.next().getValue();
+            iterator.remove();
+            bytes -= evicted.length + ENTRY_OVERHEAD;
+            EVICTIONS.inc();
+        }
+    }
+
+    /** Drop every entry. */
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    /** Get the memory used by the cache, in bytes. */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public void onReorganize(Wallet wallet) {
+        clear();
+    }
+}
@@ -2,6 +2,7 @@
 
 package io.bitsafe.examplewallet.bitcoin;
 
+import com.google.bitcoin.core.NetworkParameters;
 import com.google.bitcoin.core.Transaction;
 import com.google.bitcoin.core.Wallet;
 
@@ -17,4 +18,21 @@ public interface TransactionSigner {
      *         the transaction)
      */
     public abstract boolean signTransaction(Transaction t, Wallet w);
+
+    /** Called once a transaction which signTransaction() signed has been
+     * committed to the wallet, so that anything kept in case signing had to
+     * be done again can be thrown away.
+     * @param t Transaction which was committed
+     */
+    public abstract void transactionCommitted(Transaction t);
+
+    /** Get a transaction which signTransaction() was given but which was
+     * never committed (eg. because signing was interrupted, or the program
+     * was restarted), so that the same transaction can be signed again
+     * instead of a new one being built.
+     * @param params Network the transaction is for
+     * @return The transaction with every input script blanked and no
+     *         inputs connected, or null if there isn't one
+     */
+    public abstract Transaction getUnfinishedTransaction(NetworkParameters params);
 }
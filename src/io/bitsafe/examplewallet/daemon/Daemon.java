@@ -0,0 +1,462 @@
+/* This file is licensed as described by the file LICENCE. */
+
+package io.bitsafe.examplewallet.daemon;
+
+import com.google.bitcoin.core.AddressFormatException;
+import com.google.bitcoin.core.InsufficientMoneyException;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.store.UnreadableWalletException;
+import io.bitsafe.examplewallet.bitcoin.AddressPool;
+import io.bitsafe.examplewallet.bitcoin.BalanceTracker;
+import io.bitsafe.examplewallet.bitcoin.BitcoinJInterface;
+import io.bitsafe.examplewallet.bitcoin.SendRecipient;
+import io.bitsafe.examplewallet.dev.Address;
+import io.bitsafe.examplewallet.dev.BitSafeDevice;
+import io.bitsafe.examplewallet.dev.BitSafeFailureException;
+import io.bitsafe.examplewallet.dev.Deadline;
+import io.bitsafe.examplewallet.dev.DeviceMonitor;
+import io.bitsafe.examplewallet.dev.DeviceScheduler;
+import io.bitsafe.examplewallet.dev.Messages.WalletInfo;
+import io.bitsafe.examplewallet.dev.PasswordSupplier;
+import io.bitsafe.examplewallet.dev.Session;
+import io.bitsafe.examplewallet.dev.UnexpectedResponseException;
+import io.bitsafe.examplewallet.dev.Wallet;
+import io.bitsafe.examplewallet.metrics.Metrics;
+import io.bitsafe.examplewallet.metrics.MetricsServer;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/** Headless wallet, controlled through JSON-RPC on a loopback port. This
+ * connects to the BitSafe, loads one wallet and then serves these methods:
+ * - "balance": returns {"confirmed": satoshis, "unconfirmed": satoshis}
+ * - "receive": returns a new receiving address
+ * - "send": params {"recipients": [{"address": a, "amount": satoshis}, ...],
+ *   "allowUnconfirmed": bool}, returns the transaction hash
+ * - "listAddresses": returns all addresses of the loaded wallet
+ * - "listWallets": returns [{"number": n, "name": s, "loaded": bool}, ...]
+ *
+ * Each request must carry, as "auth", the token in the cookie file, which
+ * is written afresh on each start and is readable only by the user the
+ * daemon runs as.
+ *
+ * Only one request can use the BitSafe at a time, so requests which need it
+ * wait in a bounded queue in front of the device (see DeviceScheduler).
+ * Requests go before refilling the address pool, which happens in the
+ * background. While nothing is using the BitSafe, it is pinged now and then
+ * (see DeviceMonitor), and if it stops responding, requests which need it
+ * are refused until it responds again.
+ *
+ * @author Chris Chua
+ */
+public class Daemon implements JsonRpcServer.Handler, PasswordSupplier {
+
+    /** Directory where data files (eg. blockchain store, wallets) will go. */
+    public static String DATA_DIR = ".";
+    /** Prefix of data filenames. */
+    public static String FILE_PREFIX = "example-wallet-testnet";
+    /** Default TCP port for JSON-RPC. */
+    public static int DEFAULT_PORT = 18339;
+    /** TCP port to serve Prometheus metrics on, or -1 to not serve them. */
+    public static int METRICS_PORT = 18340;
+    /** Suffix (after FILE_PREFIX) of the file which holds the token clients
+     * must send with each request. */
+    public static String COOKIE_SUFFIX = ".cookie";
+    /** Maximum number of clients served at once. */
+    public static int MAX_CLIENTS = 4;
+    /** Maximum number of clients waiting to be served. */
+    public static int MAX_QUEUED_CLIENTS = 16;
+    /** Longest JSON-RPC request accepted, in characters. */
+    public static int MAX_REQUEST_LENGTH = 1024 * 1024;
+    /** Clients which send nothing for this long, in milliseconds, are
+     * disconnected, so that they don't hold on to a worker. */
+    public static int CLIENT_IDLE_TIMEOUT_MS = 60000;
+    /** Maximum number of requests waiting for the device. */
+    public static int MAX_QUEUED_DEVICE_REQUESTS = 32;
+    /** Maximum number of background jobs waiting for the device, and
+     * separately, of refills (eg. of the address pool). */
+    public static int MAX_QUEUED_BACKGROUND_JOBS = 4;
+    /** Time a request has to finish using the BitSafe, in milliseconds. This
+     * includes waiting for other requests to finish, and waiting for the
+     * button to be pressed. */
+    public static long DEVICE_REQUEST_TIMEOUT_MS = 180000;
+    /** Address pool is refilled when it has fewer than this many addresses. */
+    public static int ADDRESS_POOL_LOW_WATERMARK = 2;
+    /** Address pool is refilled up to this many addresses. */
+    public static int ADDRESS_POOL_HIGH_WATERMARK = 5;
+    /** Environment variable to get the wallet password from, if there is no
+     * terminal to ask for it on. */
+    public static String PASSWORD_ENV = "BITSAFE_WALLET_PASSWORD";
+
+    /** Most digits an amount in satoshis can have (21 million bitcoins is
+     * 16 digits). */
+    private static final int MAX_AMOUNT_DIGITS = 16;
+    /** Most bits in the digits of an amount, however it is written. */
+    private static final int MAX_AMOUNT_BITS = 128;
+    /** Number of random bytes in the auth token. */
+    private static final int COOKIE_BYTES = 32;
+
+    private final StreamConsole console;
+    private final BitSafeDevice bitsafe;
+    private final BitcoinJInterface bitcoinj;
+    private Session session;
+    private DeviceScheduler scheduler;
+    private DeviceMonitor monitor;
+    private volatile Wallet currentBitSafeWallet;
+    private AddressPool addressPool;
+    private JsonRpcServer server;
+    private MetricsServer metricsServer;
+
+    public Daemon() throws IOException {
+        console = new StreamConsole(System.err);
+        bitsafe = new BitSafeDevice(console);
+        bitcoinj = new BitcoinJInterface(DATA_DIR, FILE_PREFIX);
+    }
+
+    /** Connect to the BitSafe, load a wallet and start serving requests.
+     * @param walletNumber Wallet to load
+     * @param port TCP port to listen on
+     * @return false if the wallet couldn't be loaded
+     * @throws IOException If the server couldn't be started
+     */
+    public boolean start(final int walletNumber, int port) throws IOException {
+        bitsafe.connect();
+        session = new Session(bitsafe, console);
+        session.initialize();
+        Wallet w = session.loadWallet(walletNumber, this);
+        if (w == null) {
+            return false;
+        }
+        w.loadFromFile(DATA_DIR, FILE_PREFIX);
+        w.openSigningJournal(DATA_DIR, FILE_PREFIX);
+        try {
+            bitcoinj.loadWallet(walletNumber);
+        } catch (UnreadableWalletException e) {
+            console.log(e);
+        }
+        w.sync(bitcoinj.wallet());
+        scheduler = new DeviceScheduler(session, MAX_QUEUED_DEVICE_REQUESTS, MAX_QUEUED_BACKGROUND_JOBS,
+                console);
+        addressPool = new AddressPool(w, ADDRESS_POOL_LOW_WATERMARK, ADDRESS_POOL_HIGH_WATERMARK,
+                scheduler.executor(DeviceScheduler.Priority.REFILL), w.takeUnusedKeys());
+        // Saved after the pool has taken the unused keys, so that they
+        // can't be handed out twice.
+        w.saveToFile(DATA_DIR, FILE_PREFIX);
+        monitor = new DeviceMonitor(session, scheduler, new DeviceMonitor.ResetHandler() {
+            @Override
+            public boolean deviceReset() {
+                // The device has forgotten the session and the loaded
+                // wallet; the host side of the wallet is still good.
+                session.initialize();
+                return session.loadWallet(walletNumber, Daemon.this) != null;
+            }
+        }, console);
+        monitor.start();
+        bitcoinj.setAddressGenerator(addressPool);
+        currentBitSafeWallet = w;
+        console.log("Loaded wallet " + walletNumber + "\n");
+
+        server = new JsonRpcServer(port, MAX_CLIENTS, MAX_QUEUED_CLIENTS,
+                MAX_REQUEST_LENGTH, CLIENT_IDLE_TIMEOUT_MS, writeCookie(), this, console);
+        server.start();
+        console.log("Listening on port " + server.getPort() + "; auth token is in "
+                + cookiePath() + "\n");
+        if (METRICS_PORT >= 0) {
+            metricsServer = new MetricsServer(Metrics.REGISTRY, METRICS_PORT);
+            metricsServer.start();
+            console.log("Serving metrics on port " + metricsServer.getPort() + "\n");
+        }
+        return true;
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.stop();
+            try {
+                Files.deleteIfExists(cookiePath());
+            } catch (IOException e) {
+                console.log(e);
+            }
+        }
+        if (metricsServer != null) {
+            metricsServer.stop();
+        }
+        if (monitor != null) {
+            monitor.stop();
+        }
+        if (scheduler != null) {
+            scheduler.stop();
+        }
+        if (addressPool != null) {
+            bitcoinj.setAddressGenerator(bitcoinj);
+            addressPool.close();
+            currentBitSafeWallet.setUnusedKeys(addressPool.takeUnused());
+        }
+        if (session != null) {
+            session.initialize();
+        }
+        if (currentBitSafeWallet != null) {
+            currentBitSafeWallet.saveToFile(DATA_DIR, FILE_PREFIX);
+            try {
+                bitcoinj.saveWallet(currentBitSafeWallet.getWalletNumber());
+            } catch (IOException e) {
+                console.log(e);
+            }
+        }
+        bitsafe.disconnect();
+        bitcoinj.stopAndWait();
+    }
+
+    private static Path cookiePath() {
+        return Paths.get(DATA_DIR, FILE_PREFIX + COOKIE_SUFFIX);
+    }
+
+    /** Write a new random auth token to the cookie file, which only this
+     * user can read or write.
+     * @return The token
+     */
+    private static String writeCookie() throws IOException {
+        byte[] random = new byte[COOKIE_BYTES];
+        new SecureRandom().nextBytes(random);
+        String token = Utils.bytesToHexString(random);
+        Path path = cookiePath();
+        // Start afresh, so that the permissions are set when it is created,
+        // before anything is written to it.
+        Files.deleteIfExists(path);
+        try {
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(
+                    PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX file system.
+            Files.createFile(path);
+            File file = path.toFile();
+            file.setReadable(false, false);
+            file.setWritable(false, false);
+            file.setReadable(true, true);
+            file.setWritable(true, true);
+        }
+        Files.write(path, token.getBytes(Charset.forName("UTF-8")));
+        return token;
+    }
+
+    @Override
+    public Object call(String method, Object params) throws JsonRpcException {
+        switch (method) {
+            case "balance":
+                return balance();
+            case "receive":
+                return receive();
+            case "send":
+                return send(params);
+            case "listAddresses":
+                return listAddresses();
+            case "listWallets":
+                return listWallets();
+            default:
+                throw new JsonRpcException(JsonRpcException.METHOD_NOT_FOUND, "No such method: " + method);
+        }
+    }
+
+    private Object balance() {
+        BalanceTracker tracker = bitcoinj.balanceTracker();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("confirmed", tracker.getConfirmed());
+        result.put("unconfirmed", tracker.getUnconfirmed());
+        return result;
+    }
+
+    private Object receive() throws JsonRpcException {
+        String address = onDevice(new Callable<String>() {
+            @Override
+            public String call() throws IOException {
+                String newAddress = bitcoinj.generateAddress();
+                if (newAddress != null) {
+                    currentBitSafeWallet.saveToFile(DATA_DIR, FILE_PREFIX);
+                    bitcoinj.saveWallet(currentBitSafeWallet.getWalletNumber());
+                }
+                return newAddress;
+            }
+        });
+        if (address == null) {
+            throw new JsonRpcException(JsonRpcException.SERVER_ERROR, "Could not generate address");
+        }
+        return address;
+    }
+
+    /** Convert an amount from a request to a positive whole number of
+     * satoshis. The amount's size is checked before anything else is done
+     * with it, since converting something like 1e999999999 or 1e-999999999
+     * to an integer would take forever.
+     */
+    private static BigInteger toSatoshis(BigDecimal amount) throws JsonRpcException {
+        if (amount.signum() <= 0) {
+            throw new JsonRpcException(JsonRpcException.INVALID_PARAMS, "Amount must be positive");
+        }
+        // Checking the digits and the exponent separately keeps every step
+        // below cheap.
+        if (amount.unscaledValue().bitLength() > MAX_AMOUNT_BITS) {
+            throw new JsonRpcException(JsonRpcException.INVALID_PARAMS, "Amount has too many digits");
+        }
+        // precision - scale is the number of digits before the decimal point.
+        if (amount.precision() - amount.scale() > MAX_AMOUNT_DIGITS) {
+            throw new JsonRpcException(JsonRpcException.INVALID_PARAMS, "Amount is too large");
+        }
+        BigDecimal stripped = amount.stripTrailingZeros();
+        if (stripped.scale() > 0) {
+            throw new JsonRpcException(JsonRpcException.INVALID_PARAMS, "Amount must be a whole number of satoshis");
+        }
+        return stripped.toBigIntegerExact();
+    }
+
+    private Object send(Object params) throws JsonRpcException {
+        if (!(params instanceof Map)) {
+            throw new JsonRpcException(JsonRpcException.INVALID_PARAMS, "Expected object");
+        }
+        Map<?, ?> paramsMap = (Map<?, ?>)params;
+        Object recipientsParam = paramsMap.get("recipients");
+        if (!(recipientsParam instanceof List) || ((List<?>)recipientsParam).isEmpty()) {
+            throw new JsonRpcException(JsonRpcException.INVALID_PARAMS, "Expected list of recipients");
+        }
+        List<?> recipientsList = (List<?>)recipientsParam;
+        final SendRecipient[] recipients = new SendRecipient[recipientsList.size()];
+        for (int i = 0; i < recipients.length; i++) {
+            Object r = recipientsList.get(i);
+            if (!(r instanceof Map)) {
+                throw new JsonRpcException(JsonRpcException.INVALID_PARAMS, "Expected recipient object");
+            }
+            Object address = ((Map<?, ?>)r).get("address");
+            Object amount = ((Map<?, ?>)r).get("amount");
+            if (!(address instanceof String) || !(amount instanceof BigDecimal)) {
+                throw new JsonRpcException(JsonRpcException.INVALID_PARAMS, "Recipient needs address and amount");
+            }
+            BigInteger satoshis = toSatoshis((BigDecimal)amount);
+            recipients[i] = new SendRecipient(satoshis, (String)address);
+        }
+        final boolean allowUnconfirmed = Boolean.TRUE.equals(paramsMap.get("allowUnconfirmed"));
+
+        Transaction tx = onDevice(new Callable<Transaction>() {
+            @Override
+            public Transaction call() throws AddressFormatException, InsufficientMoneyException,
+                    InterruptedException, ExecutionException, IOException {
+                Transaction sent = bitcoinj.sendMulti(recipients, allowUnconfirmed, currentBitSafeWallet);
+                currentBitSafeWallet.saveToFile(DATA_DIR, FILE_PREFIX);
+                bitcoinj.saveWallet(currentBitSafeWallet.getWalletNumber());
+                return sent;
+            }
+        });
+        if (tx == null) {
+            throw new JsonRpcException(JsonRpcException.SERVER_ERROR, "Transaction was not signed");
+        }
+        return tx.getHash().toString();
+    }
+
+    private Object listAddresses() {
+        List<Object> result = new ArrayList<>();
+        for (Address a : currentBitSafeWallet.getAddresses()) {
+            result.add(a.toECKey().toAddress(bitcoinj.params()).toString());
+        }
+        return result;
+    }
+
+    private Object listWallets() throws JsonRpcException {
+        List<WalletInfo> wallets = onDevice(new Callable<List<WalletInfo>>() {
+            @Override
+            public List<WalletInfo> call() throws IOException, BitSafeFailureException, UnexpectedResponseException {
+                return session.getWallets();
+            }
+        });
+        List<Object> result = new ArrayList<>();
+        for (WalletInfo walletInfo : wallets) {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("number", walletInfo.getWalletNumber());
+            entry.put("name", new String(walletInfo.getWalletName().toByteArray(), Charset.forName("UTF-8")));
+            entry.put("loaded", bitcoinj.getHostedWalletNumbers().contains(walletInfo.getWalletNumber()));
+            result.add(entry);
+        }
+        return result;
+    }
+
+    /** Run something which uses the BitSafe, after every other request
+     * which is waiting for the BitSafe, but before background work. It has
+     * DEVICE_REQUEST_TIMEOUT_MS to finish, from when it is queued.
+     */
+    private <T> T onDevice(Callable<T> task) throws JsonRpcException {
+        Future<T> future;
+        try {
+            future = scheduler.submit(DeviceScheduler.Priority.INTERACTIVE,
+                    Deadline.after(DEVICE_REQUEST_TIMEOUT_MS, TimeUnit.MILLISECONDS), task);
+        } catch (RejectedExecutionException e) {
+            throw new JsonRpcException(JsonRpcException.BUSY, e.getMessage());
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JsonRpcException(JsonRpcException.SERVER_ERROR, "Interrupted");
+        } catch (ExecutionException e) {
+            throw new JsonRpcException(JsonRpcException.SERVER_ERROR, e.getCause().toString());
+        }
+    }
+
+    @Override
+    public byte[] getPassword() {
+        java.io.Console terminal = System.console();
+        if (terminal != null) {
+            char[] password = terminal.readPassword("Wallet password: ");
+            if (password != null) {
+                return new String(password).getBytes(Charset.forName("UTF-8"));
+            }
+            return null;
+        }
+        String password = System.getenv(PASSWORD_ENV);
+        if (password != null) {
+            return password.getBytes(Charset.forName("UTF-8"));
+        }
+        return null;
+    }
+
+    /**
+     * @param args wallet number, then optionally the TCP port to listen on
+     */
+    public static void main(String args[]) {
+        if ((args.length < 1) || (args.length > 2)) {
+            System.err.println("Usage: Daemon <wallet number> [port]");
+            System.exit(1);
+        }
+        try {
+            int walletNumber = Integer.parseInt(args[0]);
+            int port = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_PORT;
+            final Daemon daemon = new Daemon();
+            if (!daemon.start(walletNumber, port)) {
+                daemon.stop();
+                System.exit(1);
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    daemon.stop();
+                }
+            }));
+        } catch (NumberFormatException | IOException e) {
+            System.err.println(e.toString());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,291 @@
+/* This file is licensed as described by the file LICENCE. */
+
+package io.bitsafe.examplewallet.daemon;
+
+import java.math.BigDecimal;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Minimal JSON reader and writer, just enough for JSON-RPC requests.
+ * Objects are read as Map, arrays as List, numbers as BigDecimal, and
+ * strings, booleans and null as their obvious Java counterparts. Writing
+ * accepts the same types, plus any other Number.
+ *
+ * Parsing is recursive, so arrays and objects may only be nested MAX_DEPTH
+ * deep; anything deeper is rejected instead of overflowing the stack.
+ *
+ * @author Chris Chua
+ */
+public class Json {
+    /** Deepest nesting of arrays and objects which parse() accepts. */
+    public static int MAX_DEPTH = 64;
+
+    private final String text;
+    private int pos;
+    /** Number of arrays and objects being read. */
+    private int depth;
+
+    private Json(String inText) {
+        text = inText;
+        pos = 0;
+    }
+
+    /** Parse a JSON value.
+     * @param text JSON text
+     * @return The value, using the types described in the class description
+     * @throws ParseException If text isn't valid JSON
+     */
+    public static Object parse(String text) throws ParseException {
+        Json parser = new Json(text);
+        Object value = parser.readValue();
+        parser.skipWhitespace();
+        if (parser.pos != text.length()) {
+            throw parser.error("Trailing characters");
+        }
+        return value;
+    }
+
+    /** Write a value as JSON.
+     * @param value Value using the types described in the class description
+     * @return JSON text
+     */
+    public static String write(Object value) {
+        StringBuilder sb = new StringBuilder();
+        writeValue(value, sb);
+        return sb.toString();
+    }
+
+    private ParseException error(String why) {
+        return new ParseException(why + " at position " + pos, pos);
+    }
+
+    private void skipWhitespace() {
+        while ((pos < text.length()) && Character.isWhitespace(text.charAt(pos))) {
+            pos++;
+        }
+    }
+
+    private char peek() throws ParseException {
+        skipWhitespace();
+        if (pos >= text.length()) {
+            throw error("Unexpected end of input");
+        }
+        return text.charAt(pos);
+    }
+
+    private void expect(char c) throws ParseException {
+        if (peek() != c) {
+            throw error("Expected '" + c + "'");
+        }
+        pos++;
+    }
+
+    private void expectWord(String word) throws ParseException {
+        if (!text.startsWith(word, pos)) {
+            throw error("Unexpected token");
+        }
+        pos += word.length();
+    }
+
+    private Object readValue() throws ParseException {
+        char c = peek();
+        switch (c) {
+            case '{':
+                return readObject();
+            case '[':
+                return readArray();
+            case '"':
+                return readString();
+            case 't':
+                expectWord("true");
+                return Boolean.TRUE;
+            case 'f':
+                expectWord("false");
+                return Boolean.FALSE;
+            case 'n':
+                expectWord("null");
+                return null;
+            default:
+                return readNumber();
+        }
+    }
+
+    private void enter() throws ParseException {
+        if (++depth > MAX_DEPTH) {
+            throw error("Nested more than " + MAX_DEPTH + " deep");
+        }
+    }
+
+    private Map<String, Object> readObject() throws ParseException {
+        LinkedHashMap<String, Object> map = new LinkedHashMap<>();
+        expect('{');
+        enter();
+        if (peek() == '}') {
+            pos++;
+            depth--;
+            return map;
+        }
+        while (true) {
+            if (peek() != '"') {
+                throw error("Expected string");
+            }
+            String key = readString();
+            expect(':');
+            map.put(key, readValue());
+            if (peek() == ',') {
+                pos++;
+            } else {
+                expect('}');
+                depth--;
+                return map;
+            }
+        }
+    }
+
+    private List<Object> readArray() throws ParseException {
+        ArrayList<Object> list = new ArrayList<>();
+        expect('[');
+        enter();
+        if (peek() == ']') {
+            pos++;
+            depth--;
+            return list;
+        }
+        while (true) {
+            list.add(readValue());
+            if (peek() == ',') {
+                pos++;
+            } else {
+                expect(']');
+                depth--;
+                return list;
+            }
+        }
+    }
+
+    private String readString() throws ParseException {
+        expect('"');
+        StringBuilder sb = new StringBuilder();
+        while (true) {
+            if (pos >= text.length()) {
+                throw error("Unterminated string");
+            }
+            char c = text.charAt(pos++);
+            if (c == '"') {
+                return sb.toString();
+            } else if (c == '\\') {
+                if (pos >= text.length()) {
+                    throw error("Unterminated string");
+                }
+                c = text.charAt(pos++);
+                switch (c) {
+                    case '"': sb.append('"'); break;
+                    case '\\': sb.append('\\'); break;
+                    case '/': sb.append('/'); break;
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'n': sb.append('\n'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'u':
+                        if (pos + 4 > text.length()) {
+                            throw error("Bad unicode escape");
+                        }
+                        try {
+                            sb.append((char)Integer.parseInt(text.substring(pos, pos + 4), 16));
+                        } catch (NumberFormatException e) {
+                            throw error("Bad unicode escape");
+                        }
+                        pos += 4;
+                        break;
+                    default:
+                        throw error("Bad escape");
+                }
+            } else {
+                sb.append(c);
+            }
+        }
+    }
+
+    private BigDecimal readNumber() throws ParseException {
+        int start = pos;
+        while (pos < text.length()) {
+            char c = text.charAt(pos);
+            if (((c >= '0') && (c <= '9')) || (c == '-') || (c == '+')
+                    || (c == '.') || (c == 'e') || (c == 'E')) {
+                pos++;
+            } else {
+                break;
+            }
+        }
+        if (start == pos) {
+            throw error("Unexpected character");
+        }
+        try {
+            return new BigDecimal(text.substring(start, pos));
+        } catch (NumberFormatException e) {
+            pos = start;
+            throw error("Bad number");
+        }
+    }
+
+    private static void writeValue(Object value, StringBuilder sb) {
+        if (value == null) {
+            sb.append("null");
+        } else if (value instanceof String) {
+            writeString((String)value, sb);
+        } else if ((value instanceof Number) || (value instanceof Boolean)) {
+            sb.append(value.toString());
+        } else if (value instanceof Map) {
+            sb.append('{');
+            Iterator<? extends Map.Entry<?, ?>> iterator = ((Map<?, ?>)value).entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<?, ?> entry = iterator.next();
+                writeString(entry.getKey().toString(), sb);
+                sb.append(':');
+                writeValue(entry.getValue(), sb);
+                if (iterator.hasNext()) {
+                    sb.append(',');
+                }
+            }
+            sb.append('}');
+        } else if (value instanceof List) {
+            sb.append('[');
+            Iterator<?> iterator = ((List<?>)value).iterator();
+            while (iterator.hasNext()) {
+                writeValue(iterator.next(), sb);
+                if (iterator.hasNext()) {
+                    sb.append(',');
+                }
+            }
+            sb.append(']');
+        } else {
+            writeString(value.toString(), sb);
+        }
+    }
+
+    private static void writeString(String s, StringBuilder sb) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int)c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+    }
+}
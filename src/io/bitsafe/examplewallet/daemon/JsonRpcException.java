@@ -0,0 +1,38 @@
+/* This file is licensed as described by the file LICENCE. */
+
+package io.bitsafe.examplewallet.daemon;
+
+/** A JSON-RPC call failed. The code is sent back to the client in the
+ * error object.
+ *
+ * @author Chris Chua
+ */
+public class JsonRpcException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    /** Request wasn't valid JSON. */
+    public static final int PARSE_ERROR         = -32700;
+    /** Request wasn't a valid JSON-RPC request object. */
+    public static final int INVALID_REQUEST     = -32600;
+    /** No such method. */
+    public static final int METHOD_NOT_FOUND    = -32601;
+    /** Method parameters were missing or malformed. */
+    public static final int INVALID_PARAMS      = -32602;
+    /** Method failed. */
+    public static final int SERVER_ERROR        = -32000;
+    /** Too many requests are waiting, so this one was rejected. */
+    public static final int BUSY                = -32001;
+    /** Request didn't carry the right auth token. */
+    public static final int UNAUTHORIZED        = -32002;
+
+    private final int code;
+
+    public JsonRpcException(int inCode, String why) {
+        super(why);
+        code = inCode;
+    }
+
+    public int getCode() {
+        return code;
+    }
+}
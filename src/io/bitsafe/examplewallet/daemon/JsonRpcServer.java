@@ -0,0 +1,309 @@
+/* This file is licensed as described by the file LICENCE. */
+
+package io.bitsafe.examplewallet.daemon;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.bitsafe.examplewallet.gui.Console;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.text.ParseException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/** JSON-RPC 2.0 server on a loopback TCP port. Each request and each
+ * response is one line of JSON. Each client connection is served by a
+ * thread from a bounded pool; connections beyond what the pool and its
+ * queue can hold are turned away with an error. So that a client can't hold
+ * on to a worker forever, or make it run out of memory, connections which
+ * are idle for too long are closed, and a request which is too long gets a
+ * parse error and then the connection is closed.
+ *
+ * Every request object must have an "auth" member holding the token passed
+ * to the constructor, so that only whoever can read that token (see
+ * Daemon's cookie file) can make calls. Because a web page can get a
+ * browser to send a request to a loopback port, a connection which sends
+ * anything that looks like HTTP is closed before its body is read.
+ *
+ * @author Chris Chua
+ */
+public class JsonRpcServer {
+    /** Does the actual work for each call. */
+    public interface Handler {
+        /**
+         * @param method Name of method to call
+         * @param params Method parameters (may be null)
+         * @return Result, using the types understood by Json
+         * @throws JsonRpcException
+         */
+        public abstract Object call(String method, Object params) throws JsonRpcException;
+    }
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    /** HTTP request line or header line. A JSON-RPC request starts with a
+     * brace, so can't match this. */
+    private static final Pattern HTTP_LINE =
+            Pattern.compile("[A-Z]+ \\S+ HTTP/\\d.*|[A-Za-z0-9-]+:.*");
+    /** Pause after accept() first fails, in milliseconds. */
+    private static final long MIN_ACCEPT_RETRY_MS = 10;
+    /** Longest pause between accept() retries, in milliseconds. */
+    private static final long MAX_ACCEPT_RETRY_MS = 5000;
+
+    private final ServerSocket serverSocket;
+    private final ThreadPoolExecutor workers;
+    private final int maxLineLength;
+    private final int idleTimeoutMs;
+    private final byte[] token;
+    private final Handler handler;
+    private final Console console;
+    private final Thread acceptThread;
+    private volatile boolean running;
+
+    /**
+     * @param port TCP port to listen on (loopback interface only)
+     * @param maxClients Maximum number of connections served at once
+     * @param maxQueuedClients Maximum number of connections waiting for a
+     *                         worker
+     * @param inMaxLineLength Longest request accepted, in characters
+     * @param inIdleTimeoutMs Connections are closed when nothing has been
+     *                        received on them for this long, in milliseconds
+     * @param inToken Token which every request must carry as "auth"
+     * @param inHandler Handles calls
+     * @param inConsole Where to log errors
+     * @throws IOException If the port couldn't be bound
+     */
+    public JsonRpcServer(int port, int maxClients, int maxQueuedClients, int inMaxLineLength,
+            int inIdleTimeoutMs, String inToken, Handler inHandler, Console inConsole) throws IOException {
+        serverSocket = new ServerSocket(port, maxQueuedClients, InetAddress.getLoopbackAddress());
+        workers = new ThreadPoolExecutor(maxClients, maxClients, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(maxQueuedClients),
+                new ThreadFactoryBuilder().setNameFormat("rpc-worker-%d").setDaemon(true).build());
+        maxLineLength = inMaxLineLength;
+        idleTimeoutMs = inIdleTimeoutMs;
+        token = inToken.getBytes(UTF8);
+        handler = inHandler;
+        console = inConsole;
+        acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "rpc-accept");
+        // The accept thread is not a daemon thread, so that it keeps the
+        // process alive until stop() is called.
+    }
+
+    public void start() {
+        running = true;
+        acceptThread.start();
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            console.log(e);
+        }
+        workers.shutdownNow();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    private void acceptLoop() {
+        long retryMs = 0;
+        while (running) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (!running) {
+                    break;
+                }
+                // Eg. out of file descriptors. Retrying straight away would
+                // most likely fail the same way, so wait, for longer each
+                // time, and only log the first failure.
+                if (retryMs == 0) {
+                    console.log(e);
+                    retryMs = MIN_ACCEPT_RETRY_MS;
+                } else {
+                    retryMs = Math.min(retryMs * 2, MAX_ACCEPT_RETRY_MS);
+                }
+                try {
+                    Thread.sleep(retryMs);
+                } catch (InterruptedException e2) {
+                    break;
+                }
+                continue;
+            }
+            if (retryMs != 0) {
+                console.log("Accepting connections again\n");
+                retryMs = 0;
+            }
+            try {
+                workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                try (Writer out = new OutputStreamWriter(socket.getOutputStream(), UTF8)) {
+                    out.write(Json.write(errorResponse(null,
+                            new JsonRpcException(JsonRpcException.BUSY, "Too many clients"))) + "\n");
+                } catch (IOException e2) {
+                    // Client has gone away anyway.
+                }
+                closeQuietly(socket);
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            socket.setSoTimeout(idleTimeoutMs);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), UTF8));
+            Writer out = new OutputStreamWriter(socket.getOutputStream(), UTF8);
+            while (running) {
+                String line;
+                try {
+                    line = readLine(in);
+                } catch (JsonRpcException e) {
+                    // There's no telling where the next request starts.
+                    out.write(Json.write(errorResponse(null, e)) + "\n");
+                    out.flush();
+                    break;
+                }
+                if (line == null) {
+                    break;
+                }
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                if (HTTP_LINE.matcher(line).matches()) {
+                    // Most likely a browser, sent here by a web page. Don't
+                    // read on, in case its body is a request.
+                    out.write(Json.write(errorResponse(null, new JsonRpcException(
+                            JsonRpcException.INVALID_REQUEST, "HTTP is not supported"))) + "\n");
+                    out.flush();
+                    break;
+                }
+                Map<String, Object> response = handleLine(line);
+                if (response != null) {
+                    out.write(Json.write(response) + "\n");
+                    out.flush();
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            // Idle client; let someone else have the worker.
+        } catch (IOException e) {
+            if (running) {
+                console.log(e);
+            }
+        } finally {
+            closeQuietly(socket);
+        }
+    }
+
+    /** Read a line, like BufferedReader.readLine(), but give up once it is
+     * longer than maxLineLength.
+     * @return The line without its terminator, or null at the end of the
+     *         stream
+     * @throws JsonRpcException If the line is too long
+     */
+    private String readLine(BufferedReader in) throws IOException, JsonRpcException {
+        StringBuilder sb = new StringBuilder();
+        while (true) {
+            int c = in.read();
+            if (c == -1) {
+                return (sb.length() > 0) ? sb.toString() : null;
+            } else if (c == '\n') {
+                int length = sb.length();
+                if ((length > 0) && (sb.charAt(length - 1) == '\r')) {
+                    sb.setLength(length - 1);
+                }
+                return sb.toString();
+            } else if (sb.length() >= maxLineLength) {
+                throw new JsonRpcException(JsonRpcException.PARSE_ERROR,
+                        "Request is longer than " + maxLineLength + " characters");
+            }
+            sb.append((char)c);
+        }
+    }
+
+    /** Handle one request.
+     * @return Response object, or null if the request was a notification
+     */
+    private Map<String, Object> handleLine(String line) {
+        Object id = null;
+        try {
+            Object request;
+            try {
+                request = Json.parse(line);
+            } catch (ParseException e) {
+                throw new JsonRpcException(JsonRpcException.PARSE_ERROR, e.getMessage());
+            }
+            if (!(request instanceof Map)) {
+                throw new JsonRpcException(JsonRpcException.INVALID_REQUEST, "Request must be an object");
+            }
+            Map<?, ?> requestMap = (Map<?, ?>)request;
+            id = requestMap.get("id");
+            Object auth = requestMap.get("auth");
+            if (!(auth instanceof String) || !MessageDigest.isEqual(token, ((String)auth).getBytes(UTF8))) {
+                throw new JsonRpcException(JsonRpcException.UNAUTHORIZED, "Missing or wrong auth token");
+            }
+            Object method = requestMap.get("method");
+            if (!(method instanceof String)) {
+                throw new JsonRpcException(JsonRpcException.INVALID_REQUEST, "Missing method");
+            }
+            Object result = handler.call((String)method, requestMap.get("params"));
+            if (!requestMap.containsKey("id")) {
+                return null;
+            }
+            Map<String, Object> response = new LinkedHashMap<>();
+            response.put("jsonrpc", "2.0");
+            response.put("result", result);
+            response.put("id", id);
+            return response;
+        } catch (JsonRpcException e) {
+            return errorResponse(id, e);
+        } catch (RuntimeException e) {
+            console.log(e);
+            return errorResponse(id, new JsonRpcException(JsonRpcException.SERVER_ERROR, e.toString()));
+        }
+    }
+
+    private static Map<String, Object> errorResponse(Object id, JsonRpcException e) {
+        Map<String, Object> error = new LinkedHashMap<>();
+        error.put("code", e.getCode());
+        error.put("message", e.getMessage());
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("jsonrpc", "2.0");
+        response.put("error", error);
+        response.put("id", id);
+        return response;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing more can be done.
+        }
+    }
+}
@@ -0,0 +1,29 @@
+/* This file is licensed as described by the file LICENCE. */
+
+package io.bitsafe.examplewallet.daemon;
+
+import io.bitsafe.examplewallet.gui.Console;
+import java.io.PrintStream;
+
+/** Console which writes to a stream, for use without a GUI.
+ *
+ * @author Chris Chua
+ */
+public class StreamConsole implements Console {
+    private final PrintStream out;
+
+    public StreamConsole(PrintStream inOut) {
+        out = inOut;
+    }
+
+    @Override
+    public synchronized void log(String text) {
+        out.print(text);
+        out.flush();
+    }
+
+    @Override
+    public void log(Exception e) {
+        log(e.toString() + "\n");
+    }
+}
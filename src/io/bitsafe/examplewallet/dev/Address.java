@@ -3,6 +3,9 @@
 package io.bitsafe.examplewallet.dev;
 
 import com.google.bitcoin.core.ECKey;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
 import io.bitsafe.examplewallet.dev.Messages.GetAddressAndPublicKey;
 import io.bitsafe.examplewallet.dev.Messages.Failure;
 import io.bitsafe.examplewallet.gui.Console;
@@ -14,6 +17,13 @@ import java.io.Serializable;
  * @author Chris Chua
  */
 public class Address implements Serializable {
+    private static final int ADDRESS_HANDLE_TAG =
+            (Messages.Address.ADDRESS_HANDLE_FIELD_NUMBER << 3) | WireFormat.WIRETYPE_VARINT;
+    private static final int PUBLIC_KEY_TAG =
+            (Messages.Address.PUBLIC_KEY_FIELD_NUMBER << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+    private static final int ADDRESS_TAG =
+            (Messages.Address.ADDRESS_FIELD_NUMBER << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+
     private final int addressHandle;
     private final byte[] publicKey;
     private final byte[] address;
@@ -26,16 +36,22 @@ public class Address implements Serializable {
 
     public Address(int inAddressHandle, PacketWrapper bitsafe, Console console)
             throws IOException, BitSafeFailureException, UnexpectedResponseException {
+        this(inAddressHandle, fetch(inAddressHandle, bitsafe));
+    }
+
+    private Address(int inAddressHandle, Address fetched) {
         addressHandle = inAddressHandle;
+        publicKey = fetched.publicKey;
+        address = fetched.address;
+    }
+
+    private static Address fetch(int addressHandle, PacketWrapper bitsafe)
+            throws IOException, BitSafeFailureException, UnexpectedResponseException {
         GetAddressAndPublicKey.Builder getAddress = GetAddressAndPublicKey.newBuilder();
         getAddress.setAddressHandle(addressHandle);
-        Packet p = new Packet(Packet.PACKET_TYPE_GET_ADDRESS_PUBKEY, getAddress.build().toByteArray());
-        bitsafe.sendPacket(p);
-        p = bitsafe.receivePacket();
+        Packet p = bitsafe.requestIdempotent(Packet.PACKET_TYPE_GET_ADDRESS_PUBKEY, getAddress);
         if (p.getType() == Packet.PACKET_TYPE_ADDRESS_PUBKEY) {
-            Messages.Address addrM = Messages.Address.parseFrom(p.getStorage());
-            publicKey = addrM.getPublicKey().toByteArray();
-            address = addrM.getAddress().toByteArray();
+            return parseFrom(p);
         } else if (p.getType() == Packet.PACKET_TYPE_FAILURE) {
             throw new BitSafeFailureException(Failure.parseFrom(p.getStorage()));
         } else {
@@ -43,6 +59,37 @@ public class Address implements Serializable {
         }
     }
 
+    /** Decode an Address message. This does the same as
+     * Messages.Address.parseFrom(), but the public key and address are
+     * copied straight out of the packet into the arrays which are kept,
+     * instead of into ByteStrings which then have to be copied again.
+     * @param p Packet containing an Address message
+     * @return The address
+     * @throws IOException If the message is malformed or incomplete
+     */
+    static Address parseFrom(Packet p) throws IOException {
+        CodedInputStream in = CodedInputStream.newInstance(p.getStorage());
+        int handle = -1;
+        byte[] decodedPublicKey = null;
+        byte[] decodedAddress = null;
+        int tag;
+        while ((tag = in.readTag()) != 0) {
+            if (tag == ADDRESS_HANDLE_TAG) {
+                handle = in.readUInt32();
+            } else if (tag == PUBLIC_KEY_TAG) {
+                decodedPublicKey = in.readRawBytes(in.readRawVarint32());
+            } else if (tag == ADDRESS_TAG) {
+                decodedAddress = in.readRawBytes(in.readRawVarint32());
+            } else if (!in.skipField(tag)) {
+                break;
+            }
+        }
+        if ((handle == -1) || (decodedPublicKey == null) || (decodedAddress == null)) {
+            throw new InvalidProtocolBufferException("Address message is missing required fields");
+        }
+        return new Address(handle, decodedPublicKey, decodedAddress);
+    }
+
     public ECKey toECKey() {
         byte[] privKeyBytes = new byte[32]; // use junk
         ECKey key = new ECKey(privKeyBytes, publicKey);
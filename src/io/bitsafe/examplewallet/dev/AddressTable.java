@@ -0,0 +1,314 @@
+/* This file is licensed as described by the file LICENCE. */
+
+package io.bitsafe.examplewallet.dev;
+
+import com.google.bitcoin.core.ECKey;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** The addresses of a wallet, stored as columns of primitive arrays instead
+ * of as Address objects. Row i of every column belongs to the same address:
+ * its handle is handles[i], its public key is the PUBLIC_KEY_WIDTH bytes at
+ * i * PUBLIC_KEY_WIDTH in publicKeys (of which the first keyLengths[i] are
+ * used) and its hash160 is the HASH160_LENGTH bytes at i * HASH160_LENGTH
+ * in hash160s.
+ *
+ * An Address with its two arrays takes about 200 bytes and three objects,
+ * all of which the garbage collector has to trace on every full collection.
+ * A row here takes 90 bytes, and however many addresses there are, the
+ * table is a handful of arrays with no references in them, so a wallet with
+ * a million addresses fits in a small heap and costs the collector next to
+ * nothing. Address objects are only made when something asks for one.
+ *
+ * Public keys are kept the way the device sent them. They aren't compressed
+ * any further, since the hash160 (and so the bitcoin address) depends on
+ * the form of the key, and turning a compressed key back into the original
+ * one would cost a square root on the curve every time a key is needed.
+ *
+ * Rows can be found by hash160 through an open addressing hash index, which
+ * is an int array too.
+ *
+ * This isn't thread-safe; Wallet guards its table with its own lock.
+ *
+ * @author Chris Chua
+ */
+class AddressTable implements Serializable {
+    /** The value this class had before it was declared, so that files
+     * written then can still be read. */
+    private static final long serialVersionUID = 625182021386575487L;
+
+    /** Longest public key which can be stored: an uncompressed one. */
+    public static final int PUBLIC_KEY_WIDTH = 65;
+    public static final int HASH160_LENGTH = 20;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private transient int size;
+    private transient int[] handles;
+    private transient byte[] keyLengths;
+    private transient byte[] publicKeys;
+    private transient byte[] hash160s;
+    /** Hash index: each slot holds a row number plus one, or 0 if it is
+     * empty. The length is a power of two, and at least twice size. */
+    private transient int[] index;
+
+    public AddressTable() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public AddressTable(int capacity) {
+        allocate(Math.max(capacity, 1));
+    }
+
+    /** Make a table holding a list of addresses, in the same order. */
+    public static AddressTable fromList(List<Address> addresses) {
+        AddressTable table = new AddressTable(addresses.size());
+        for (Address a : addresses) {
+            table.add(a);
+        }
+        return table;
+    }
+
+    private void allocate(int capacity) {
+        handles = new int[capacity];
+        keyLengths = new byte[capacity];
+        publicKeys = new byte[capacity * PUBLIC_KEY_WIDTH];
+        hash160s = new byte[capacity * HASH160_LENGTH];
+        index = new int[indexLength(capacity)];
+    }
+
+    private static int indexLength(int capacity) {
+        return Integer.highestOneBit(Math.max(capacity, 1)) << 2;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= handles.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, handles.length + (handles.length >> 1));
+        handles = Arrays.copyOf(handles, newCapacity);
+        keyLengths = Arrays.copyOf(keyLengths, newCapacity);
+        publicKeys = Arrays.copyOf(publicKeys, newCapacity * PUBLIC_KEY_WIDTH);
+        hash160s = Arrays.copyOf(hash160s, newCapacity * HASH160_LENGTH);
+        index = new int[indexLength(newCapacity)];
+        rebuildIndex();
+    }
+
+    /** Add an address to the end of the table. */
+    public void add(Address a) {
+        add(a.getAddressHandle(), a.getPublicKey(), a.getAddress());
+    }
+
+    /** Add an address to the end of the table.
+     * @param handle Address handle on the device
+     * @param publicKey Public key, at most PUBLIC_KEY_WIDTH bytes long
+     * @param hash160 Hash160 of the public key
+     */
+    public void add(int handle, byte[] publicKey, byte[] hash160) {
+        if (publicKey.length > PUBLIC_KEY_WIDTH) {
+            throw new IllegalArgumentException("Public key is " + publicKey.length + " bytes long");
+        }
+        if (hash160.length != HASH160_LENGTH) {
+            throw new IllegalArgumentException("Hash160 is " + hash160.length + " bytes long");
+        }
+        ensureCapacity(size + 1);
+        int row = size;
+        handles[row] = handle;
+        keyLengths[row] = (byte)publicKey.length;
+        System.arraycopy(publicKey, 0, publicKeys, row * PUBLIC_KEY_WIDTH, publicKey.length);
+        System.arraycopy(hash160, 0, hash160s, row * HASH160_LENGTH, HASH160_LENGTH);
+        size++;
+        addToIndex(row);
+    }
+
+    /** Insert all the rows of another table, before a given row of this
+     * one.
+     * @param position Row to insert before; size() to add to the end
+     * @param other Rows to insert
+     */
+    public void addAll(int position, AddressTable other) {
+        if ((position < 0) || (position > size)) {
+            throw new IndexOutOfBoundsException("Position " + position + " in table of " + size);
+        }
+        int n = other.size;
+        if (n == 0) {
+            return;
+        }
+        ensureCapacity(size + n);
+        int moved = size - position;
+        System.arraycopy(handles, position, handles, position + n, moved);
+        System.arraycopy(keyLengths, position, keyLengths, position + n, moved);
+        System.arraycopy(publicKeys, position * PUBLIC_KEY_WIDTH,
+                publicKeys, (position + n) * PUBLIC_KEY_WIDTH, moved * PUBLIC_KEY_WIDTH);
+        System.arraycopy(hash160s, position * HASH160_LENGTH,
+                hash160s, (position + n) * HASH160_LENGTH, moved * HASH160_LENGTH);
+        System.arraycopy(other.handles, 0, handles, position, n);
+        System.arraycopy(other.keyLengths, 0, keyLengths, position, n);
+        System.arraycopy(other.publicKeys, 0, publicKeys, position * PUBLIC_KEY_WIDTH, n * PUBLIC_KEY_WIDTH);
+        System.arraycopy(other.hash160s, 0, hash160s, position * HASH160_LENGTH, n * HASH160_LENGTH);
+        size += n;
+        if (moved == 0) {
+            for (int row = position; row < size; row++) {
+                addToIndex(row);
+            }
+        } else {
+            // Rows after the insertion point have new numbers.
+            rebuildIndex();
+        }
+    }
+
+    private void checkRow(int row) {
+        if ((row < 0) || (row >= size)) {
+            throw new IndexOutOfBoundsException("Row " + row + " in table of " + size);
+        }
+    }
+
+    public int getAddressHandle(int row) {
+        checkRow(row);
+        return handles[row];
+    }
+
+    /** Get a copy of the public key in a row. */
+    public byte[] getPublicKey(int row) {
+        checkRow(row);
+        int offset = row * PUBLIC_KEY_WIDTH;
+        return Arrays.copyOfRange(publicKeys, offset, offset + keyLengths[row]);
+    }
+
+    /** Get a copy of the hash160 in a row. */
+    public byte[] getAddress(int row) {
+        checkRow(row);
+        int offset = row * HASH160_LENGTH;
+        return Arrays.copyOfRange(hash160s, offset, offset + HASH160_LENGTH);
+    }
+
+    /** Make an Address for a row. */
+    public Address get(int row) {
+        return new Address(getAddressHandle(row), getPublicKey(row), getAddress(row));
+    }
+
+    /** Make a watch-only key for a row; see Address.toECKey(). */
+    public ECKey toECKey(int row) {
+        byte[] privKeyBytes = new byte[32]; // use junk
+        ECKey key = new ECKey(privKeyBytes, getPublicKey(row));
+        key.clearPrivateKey(); // convert into watch-only key
+        return key;
+    }
+
+    /** Make Address objects for every row. */
+    public ArrayList<Address> toList() {
+        ArrayList<Address> list = new ArrayList<>(size);
+        for (int row = 0; row < size; row++) {
+            list.add(get(row));
+        }
+        return list;
+    }
+
+    /** Find the row with a hash160.
+     * @param hash160 Hash160 to look for
+     * @return The first row with that hash160, or -1 if there isn't one
+     */
+    public int indexOf(byte[] hash160) {
+        if (hash160.length != HASH160_LENGTH) {
+            return -1;
+        }
+        int mask = index.length - 1;
+        for (int slot = hash(hash160, 0) & mask; index[slot] != 0; slot = (slot + 1) & mask) {
+            int row = index[slot] - 1;
+            if (hash160Equals(row, hash160)) {
+                return row;
+            }
+        }
+        return -1;
+    }
+
+    private boolean hash160Equals(int row, byte[] hash160) {
+        int offset = row * HASH160_LENGTH;
+        for (int i = 0; i < HASH160_LENGTH; i++) {
+            if (hash160s[offset + i] != hash160[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean sameHash160(int row1, int row2) {
+        int offset1 = row1 * HASH160_LENGTH;
+        int offset2 = row2 * HASH160_LENGTH;
+        for (int i = 0; i < HASH160_LENGTH; i++) {
+            if (hash160s[offset1 + i] != hash160s[offset2 + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Hash160s are already evenly spread, so their first four bytes make
+     * a good hash. */
+    private static int hash(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xff) << 24) | ((bytes[offset + 1] & 0xff) << 16)
+                | ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+    }
+
+    private void addToIndex(int row) {
+        int mask = index.length - 1;
+        int slot = hash(hash160s, row * HASH160_LENGTH) & mask;
+        while (index[slot] != 0) {
+            if (sameHash160(index[slot] - 1, row)) {
+                // Keep finding the first row with this hash160.
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        index[slot] = row + 1;
+    }
+
+    private void rebuildIndex() {
+        Arrays.fill(index, 0);
+        for (int row = 0; row < size; row++) {
+            addToIndex(row);
+        }
+    }
+
+    /** Columns are written as they are, up to size, instead of element by
+     * element, so that saving and loading a big table is quick. */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(size);
+        for (int row = 0; row < size; row++) {
+            out.writeInt(handles[row]);
+        }
+        out.write(keyLengths, 0, size);
+        out.write(publicKeys, 0, size * PUBLIC_KEY_WIDTH);
+        out.write(hash160s, 0, size * HASH160_LENGTH);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        int n = in.readInt();
+        if (n < 0) {
+            throw new IOException("Address table has " + n + " rows");
+        }
+        allocate(Math.max(n, 1));
+        for (int row = 0; row < n; row++) {
+            handles[row] = in.readInt();
+        }
+        in.readFully(keyLengths, 0, n);
+        in.readFully(publicKeys, 0, n * PUBLIC_KEY_WIDTH);
+        in.readFully(hash160s, 0, n * HASH160_LENGTH);
+        size = n;
+        rebuildIndex();
+    }
+}
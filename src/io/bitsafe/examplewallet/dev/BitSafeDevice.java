@@ -6,7 +6,9 @@ import com.codeminders.hidapi.ClassPathLibraryLoader;
 import com.codeminders.hidapi.HIDDevice;
 import com.codeminders.hidapi.HIDManager;
 import io.bitsafe.examplewallet.gui.Console;
+import io.bitsafe.examplewallet.jfr.Trace;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.Arrays;
 
 /** Lowest level (USB HID) access to BitSafe device.
@@ -20,6 +22,11 @@ public class BitSafeDevice {
     private static final int TARGET_PID = 0x0210;
     /** Maximum USB packet size for a USB full-speed Interrupt pipe. */
     public static final int MAX_PACKET_SIZE = 64;
+    /** Timeout for receiveReport() which means "wait forever". */
+    public static final long NO_TIMEOUT = -1;
+    /** Longest time a single read from the device blocks for, so that a
+     * waiting thread notices being interrupted. */
+    private static final int READ_SLICE_MILLIS = 100;
 
     private final HIDManager manager;
     private final Console console;
@@ -31,6 +38,17 @@ public class BitSafeDevice {
         console = inConsole;
     }
 
+    /** For subclasses which don't talk to a real USB HID device (eg.
+     * emulators), and so override connect(), disconnect(), sendReport() and
+     * receiveReport(long).
+     * @param inManager HID manager, or null if not using USB HID
+     * @param inConsole Where log messages go
+     */
+    protected BitSafeDevice(HIDManager inManager, Console inConsole) {
+        manager = inManager;
+        console = inConsole;
+    }
+
     public void connect() {
         try {
             if (device == null) {
@@ -67,16 +85,53 @@ public class BitSafeDevice {
     // Don't catch IOException so that upper layers can abort sending a
     // sequence of reports.
     public void sendReport(byte[] report) throws IOException {
+        Object trace = Trace.beginReport(true);
         device.write(report);
+        Trace.endReport(trace, report.length);
     }
 
     // Don't catch IOException so that upper layers can abort receiving a
     // sequence of reports.
     public byte[] receiveReport() throws IOException {
+        return receiveReport(NO_TIMEOUT);
+    }
+
+    /** Wait for a report from the device.
+     * @param timeoutMillis Longest time to wait, or NO_TIMEOUT
+     * @return The report
+     * @throws DeviceTimeoutException If no report arrived in time
+     * @throws InterruptedIOException If the thread was interrupted while
+     *                                waiting
+     * @throws IOException 
+     */
+    public byte[] receiveReport(long timeoutMillis) throws IOException {
         // At this point, the report size is unknown, so allocate a buffer
         // that can store all possible reports.
         byte[] buf = new byte[MAX_PACKET_SIZE];
-        int bytesRead = device.read(buf);
+        Object trace = Trace.beginReport(false);
+        long start = System.nanoTime();
+        int bytesRead;
+        while (true) {
+            if (Thread.interrupted()) {
+                throw new InterruptedIOException("Interrupted while waiting for device");
+            }
+            long slice = READ_SLICE_MILLIS;
+            if (timeoutMillis != NO_TIMEOUT) {
+                long remaining = timeoutMillis - (System.nanoTime() - start) / 1000000;
+                // Even once the time is up, take a report if there is one.
+                slice = Math.max(0, Math.min(slice, remaining));
+            }
+            // readTimeout() returns 0 if nothing arrived.
+            bytesRead = device.readTimeout(buf, (int)slice);
+            if (bytesRead < 0) {
+                throw new IOException("Couldn't read from device");
+            } else if (bytesRead > 0) {
+                break;
+            } else if ((timeoutMillis != NO_TIMEOUT) && (slice == 0)) {
+                throw new DeviceTimeoutException("Device didn't respond within " + timeoutMillis + " ms");
+            }
+        }
+        Trace.endReport(trace, bytesRead);
         // Resize buffer to correct length.
         return Arrays.copyOf(buf, bytesRead);
     }
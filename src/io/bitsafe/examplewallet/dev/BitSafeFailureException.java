@@ -3,6 +3,7 @@
 package io.bitsafe.examplewallet.dev;
 
 import io.bitsafe.examplewallet.dev.Messages.Failure;
+import io.bitsafe.examplewallet.metrics.Metrics;
 
 /** Wraps Failure message from the BitSafe.
  *
@@ -11,5 +12,6 @@ import io.bitsafe.examplewallet.dev.Messages.Failure;
 public class BitSafeFailureException extends Exception {
     public BitSafeFailureException(Failure failure) {
         super("Error " + failure.getErrorCode() + ": " + failure.getErrorMessage());
+        Metrics.failure(failure.getErrorCode());
     }
 }
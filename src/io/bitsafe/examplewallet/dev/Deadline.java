@@ -0,0 +1,57 @@
+/* This file is licensed as described by the file LICENCE. */
+
+package io.bitsafe.examplewallet.dev;
+
+import java.util.concurrent.TimeUnit;
+
+/** A point in time by which a device operation must be finished. Deadlines
+ * are measured with System.nanoTime(), so they aren't affected by the
+ * system clock being changed.
+ *
+ * @author Chris Chua
+ */
+public final class Deadline {
+    /** A deadline which never passes. */
+    public static final Deadline NONE = new Deadline(false, 0);
+
+    private final boolean bounded;
+    private final long nanos;
+
+    private Deadline(boolean inBounded, long inNanos) {
+        bounded = inBounded;
+        nanos = inNanos;
+    }
+
+    /** Get a deadline which passes some time from now. */
+    public static Deadline after(long timeout, TimeUnit unit) {
+        return new Deadline(true, System.nanoTime() + unit.toNanos(timeout));
+    }
+
+    /** Get whether this deadline will ever pass. */
+    public boolean isBounded() {
+        return bounded;
+    }
+
+    public boolean hasPassed() {
+        return bounded && (System.nanoTime() - nanos >= 0);
+    }
+
+    /** Get the number of milliseconds until this deadline passes, rounded
+     * up, or 0 if it has passed. If the deadline is unbounded, this is
+     * Long.MAX_VALUE. */
+    public long remainingMillis() {
+        if (!bounded) {
+            return Long.MAX_VALUE;
+        }
+        long remaining = nanos - System.nanoTime();
+        if (remaining <= 0) {
+            return 0;
+        }
+        return (remaining + 999999) / 1000000;
+    }
+
+    @Override
+    public String toString() {
+        return bounded ? ("Deadline(" + remainingMillis() + " ms)") : "Deadline(none)";
+    }
+}
@@ -0,0 +1,265 @@
+/* This file is licensed as described by the file LICENCE. */
+
+package io.bitsafe.examplewallet.dev;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.bitsafe.examplewallet.dev.Messages.PingResponse;
+import io.bitsafe.examplewallet.gui.Console;
+import io.bitsafe.examplewallet.metrics.Counter;
+import io.bitsafe.examplewallet.metrics.Gauge;
+import io.bitsafe.examplewallet.metrics.Metrics;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/** Keeps checking that a BitSafe is still responding, by pinging it when
+ * nothing else has used it for a while. Each ping has a greeting with a
+ * sequence number in it, which the device must echo, along with the session
+ * ID, so that a stale response or a device which has reset itself is
+ * noticed too.
+ *
+ * If a ping fails, the device is marked as not responding in the
+ * DeviceScheduler, which then refuses new work straight away, instead of
+ * letting it wait for a device which will time out anyway. Pings carry on
+ * while the device isn't responding, and the first one which succeeds
+ * clears the mark.
+ *
+ * A device which has reset itself answers pings, but has forgotten its
+ * session and wallet, so it stays marked as not responding until a
+ * ResetHandler has set it up again. That is tried straight away, and then
+ * on every ping until it works.
+ *
+ * Round trip times of the last RECENT_PINGS pings are kept, and a ping much
+ * slower than usual is logged, since a flaky USB link tends to show up as
+ * slow pings before anything fails.
+ *
+ * @author Chris Chua
+ */
+public class DeviceMonitor {
+    /** Sets a device up again after it has reset itself. */
+    public interface ResetHandler {
+        /** Called on the scheduler's thread, so nothing else is using the
+         * device, with a deadline of RESET_TIMEOUT_MS.
+         * @return true if the device is ready for work again
+         */
+        public abstract boolean deviceReset();
+    }
+
+    /** Device is pinged when it has been idle for this many milliseconds. */
+    public static long PING_INTERVAL_MS = 5000;
+    /** Time the device has to answer a ping, in milliseconds. */
+    public static long PING_TIMEOUT_MS = 2000;
+    /** Time a ResetHandler has to set the device up again, in milliseconds.
+     * This includes waiting for a password, if the wallet needs one. */
+    public static long RESET_TIMEOUT_MS = 60000;
+    /** Number of round trip times kept. */
+    public static int RECENT_PINGS = 32;
+    /** A ping is logged as slow if it takes this many times the median of
+     * recent pings. */
+    public static int SLOW_PING_FACTOR = 4;
+    /** Pings needed before any ping is considered slow. */
+    private static final int MIN_PINGS_FOR_MEDIAN = 8;
+
+    private static final Counter PINGS_OK = Metrics.REGISTRY.counter("bitsafe_keepalive_pings_total",
+            "Keepalive pings sent to the BitSafe, by result.", "result", "ok");
+    private static final Counter PINGS_FAILED = Metrics.REGISTRY.counter("bitsafe_keepalive_pings_total",
+            "Keepalive pings sent to the BitSafe, by result.", "result", "failed");
+
+    private final Session session;
+    private final PacketWrapper bitsafe;
+    private final DeviceScheduler scheduler;
+    private final ResetHandler resetHandler;
+    private final Console console;
+    private final ScheduledExecutorService timer;
+    /** Recent round trip times, in nanoseconds, as a ring; guarded by this
+     * monitor. */
+    private final long[] recentNanos;
+    private int recentCount;
+    private int recentNext;
+    /** Only used by pings, which run one at a time on the scheduler. */
+    private long sequence;
+    /** Whether the device has reset itself and hasn't been set up again
+     * yet. Only used by pings. */
+    private boolean resetPending;
+
+    /**
+     * @param inSession Session of the device to monitor
+     * @param inScheduler Scheduler which all work for the device goes
+     *                    through
+     * @param inResetHandler Sets the device up again after it has reset
+     *                       itself
+     * @param inConsole Where log messages go
+     */
+    public DeviceMonitor(Session inSession, DeviceScheduler inScheduler, ResetHandler inResetHandler,
+            Console inConsole) {
+        session = inSession;
+        bitsafe = inSession.getPacketWrapper();
+        scheduler = inScheduler;
+        resetHandler = inResetHandler;
+        console = inConsole;
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("device-monitor-%d")
+                .setDaemon(true)
+                .build());
+        recentNanos = new long[RECENT_PINGS];
+        Metrics.REGISTRY.register("bitsafe_device_responding",
+                "Whether the BitSafe answered the last keepalive ping.", new Gauge() {
+            @Override
+            public double get() {
+                return (scheduler.getStallReason() == null) ? 1 : 0;
+            }
+        });
+        Metrics.REGISTRY.register("bitsafe_keepalive_round_trip_seconds",
+                "Round trip time of recent keepalive pings.", new Gauge() {
+            @Override
+            public double get() {
+                return getRecentRoundTripNanos(0.5) / 1e9;
+            }
+        }, "quantile", "0.5");
+        Metrics.REGISTRY.register("bitsafe_keepalive_round_trip_seconds",
+                "Round trip time of recent keepalive pings.", new Gauge() {
+            @Override
+            public double get() {
+                return getRecentRoundTripNanos(1) / 1e9;
+            }
+        }, "quantile", "1");
+    }
+
+    /** Start pinging the device. */
+    public void start() {
+        timer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                check();
+            }
+        }, PING_INTERVAL_MS, PING_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /** Stop pinging the device. A ping which has already been queued still
+     * happens, unless the scheduler is stopped too. */
+    public void stop() {
+        timer.shutdownNow();
+        try {
+            timer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Get a quantile of recent round trip times.
+     * @param quantile Between 0 and 1, eg. 0.5 for the median
+     * @return Round trip time in nanoseconds, or 0 if there have been no
+     *         successful pings
+     */
+    public synchronized long getRecentRoundTripNanos(double quantile) {
+        if (recentCount == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(recentNanos, recentCount);
+        Arrays.sort(sorted);
+        return sorted[(int)Math.ceil(quantile * recentCount) - ((quantile > 0) ? 1 : 0)];
+    }
+
+    /** Add a round trip time to the recent ones.
+     * @return Median of the round trip times before this one, or
+     *         Long.MAX_VALUE if there weren't enough of them
+     */
+    private synchronized long addRoundTrip(long nanos) {
+        long medianNanos = (recentCount >= MIN_PINGS_FOR_MEDIAN) ? getRecentRoundTripNanos(0.5) : Long.MAX_VALUE;
+        recentNanos[recentNext] = nanos;
+        recentNext = (recentNext + 1) % recentNanos.length;
+        recentCount = Math.min(recentCount + 1, recentNanos.length);
+        return medianNanos;
+    }
+
+    /** Runs on the timer. Queue a ping if the device is idle. */
+    private void check() {
+        if (!scheduler.isIdle()) {
+            return;
+        }
+        if ((scheduler.getStallReason() == null) && (System.nanoTime() - scheduler.getLastFinishedNanos()
+                < TimeUnit.MILLISECONDS.toNanos(PING_INTERVAL_MS))) {
+            // Work has used the device recently, so it isn't worth checking
+            // yet.
+            return;
+        }
+        try {
+            scheduler.submitProbe(Deadline.after(PING_TIMEOUT_MS, TimeUnit.MILLISECONDS), new Callable<Void>() {
+                @Override
+                public Void call() {
+                    ping();
+                    return null;
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Too much background work is waiting; try again later.
+        }
+    }
+
+    /** Runs on the scheduler. */
+    private void ping() {
+        sequence++;
+        String greeting = "keepalive " + sequence;
+        try {
+            PingResponse response = session.sendPing(greeting);
+            long roundTripNanos = bitsafe.getLastRoundTripNanos();
+            if (!greeting.equals(response.getEchoedGreeting())) {
+                failed("Ping was answered with the wrong greeting");
+                return;
+            }
+            byte[] sessionId = session.getSessionId();
+            if ((sessionId != null) && !Arrays.equals(sessionId, response.getEchoedSessionId().toByteArray())) {
+                failed("Device has reset itself");
+                resetPending = true;
+            }
+            if (resetPending) {
+                recover();
+                return;
+            }
+            long medianNanos = addRoundTrip(roundTripNanos);
+            if (roundTripNanos / SLOW_PING_FACTOR > medianNanos) {
+                console.log("Slow ping: " + TimeUnit.NANOSECONDS.toMillis(roundTripNanos) + " ms, usually "
+                        + TimeUnit.NANOSECONDS.toMillis(medianNanos) + " ms\n");
+            }
+            PINGS_OK.inc();
+            if (scheduler.getStallReason() != null) {
+                console.log("Device is responding again\n");
+                scheduler.setStallReason(null);
+            }
+        } catch (DeviceTimeoutException e) {
+            failed("No answer to ping within " + PING_TIMEOUT_MS + " ms");
+        } catch (IOException | UnexpectedResponseException e) {
+            failed(e.toString());
+        }
+    }
+
+    /** Runs on the scheduler. Try to set the device up again after it has
+     * reset itself. */
+    private void recover() {
+        console.log("Setting the device up again after a reset\n");
+        bitsafe.setDeadline(Deadline.after(RESET_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        if (resetHandler.deviceReset()) {
+            resetPending = false;
+            console.log("Device is responding again\n");
+            scheduler.setStallReason(null);
+        } else {
+            // The ping itself worked, so this isn't counted as a failed
+            // ping, but the reason is kept distinct from a device which
+            // doesn't answer at all.
+            console.log("Couldn't set the device up again; trying again at the next ping\n");
+            scheduler.setStallReason("Device has reset itself and couldn't be set up again");
+        }
+    }
+
+    private void failed(String reason) {
+        PINGS_FAILED.inc();
+        if (scheduler.getStallReason() == null) {
+            console.log("Device is not responding: " + reason + "\n");
+        }
+        scheduler.setStallReason(reason);
+    }
+}
@@ -0,0 +1,306 @@
+/* This file is licensed as described by the file LICENCE. */
+
+package io.bitsafe.examplewallet.dev;
+
+import io.bitsafe.examplewallet.gui.Console;
+import io.bitsafe.examplewallet.metrics.LatencyHistogram;
+import io.bitsafe.examplewallet.metrics.Metrics;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/** Runs everything which uses one BitSafe, one thing at a time, on one
+ * thread, in order of priority. Work which a user is waiting for (eg.
+ * signing a payment or showing a receiving address) goes before background
+ * work (eg. syncing or checking the device is still there), which goes
+ * before refills (eg. topping up an address pool). Refills should do a
+ * little at a time and then queue the rest, so that other work which comes
+ * along in the meantime doesn't have to wait for the whole refill.
+ *
+ * Background work doesn't hold up user-facing work for long, even if it
+ * makes thousands of requests: every time background work is about to send
+ * a new request, any user-facing work which is waiting runs first, on the
+ * same thread. That way, user-facing work waits for at most one round trip.
+ * User-facing work must therefore be safe to run in the middle of any
+ * background work, between two of its requests; in particular, it must
+ * leave the same wallet loaded.
+ *
+ * Each priority has its own bounded queue, and work is refused straight
+ * away if its queue is full, rather than waiting for a long time. Each piece
+ * of work also has a deadline, which includes time spent waiting in the
+ * queue. Work which is still waiting when its deadline passes fails with
+ * DeviceTimeoutException without running; work which is running has the
+ * deadline applied to its PacketWrapper (see PacketWrapper.setDeadline()).
+ *
+ * While a DeviceMonitor says the device isn't responding, new work is
+ * refused straight away too, instead of waiting for it to time out.
+ *
+ * @author Chris Chua
+ */
+public class DeviceScheduler {
+    /** In order from most to least urgent. */
+    public enum Priority {
+        /** Someone is waiting for the result. */
+        INTERACTIVE,
+        /** Nobody is waiting; this can be interrupted between requests. */
+        BACKGROUND,
+        /** Stocking up on something for later; this only runs when nothing
+         * else is waiting, and can be interrupted between requests. */
+        REFILL
+    }
+
+    /** Work waiting for the device. */
+    private class Job<T> extends FutureTask<T> {
+        private final Priority priority;
+        private final Deadline deadline;
+        private final long queuedNanos;
+
+        Job(Priority inPriority, Deadline inDeadline, Callable<T> callable) {
+            super(callable);
+            priority = inPriority;
+            deadline = inDeadline;
+            queuedNanos = System.nanoTime();
+        }
+
+        void expire() {
+            setException(new DeviceTimeoutException("Waited too long for the device"));
+        }
+    }
+
+    private final PacketWrapper bitsafe;
+    private final Console console;
+    private final int[] maxQueued;
+    /** Waiting work, one queue per priority, by ordinal. */
+    private final ArrayList<ArrayDeque<Job<?>>> queues;
+    private final LatencyHistogram[] waitDurations;
+    private final Thread worker;
+    /** Work running on the worker thread, or null. Only used on the worker
+     * thread. */
+    private Job<?> current;
+    /** Whether a job is running; guarded by this scheduler. */
+    private boolean running;
+    /** When the last job finished, from System.nanoTime(). */
+    private volatile long lastFinishedNanos;
+    /** Why the device isn't responding, or null if it is. */
+    private volatile String stallReason;
+    private boolean stopped;
+
+    /**
+     * @param session Session whose device this schedules work for. All
+     *                work using the device, including through wallets
+     *                loaded by the session, should go through the scheduler.
+     * @param maxQueuedInteractive Most user-facing work which can wait
+     * @param maxQueuedBackground Most background work which can wait, and
+     *                            separately, most refills which can wait
+     * @param inConsole Where log messages go
+     */
+    public DeviceScheduler(Session session, int maxQueuedInteractive, int maxQueuedBackground,
+            Console inConsole) {
+        bitsafe = session.getPacketWrapper();
+        console = inConsole;
+        Priority[] priorities = Priority.values();
+        maxQueued = new int[priorities.length];
+        maxQueued[Priority.INTERACTIVE.ordinal()] = maxQueuedInteractive;
+        maxQueued[Priority.BACKGROUND.ordinal()] = maxQueuedBackground;
+        maxQueued[Priority.REFILL.ordinal()] = maxQueuedBackground;
+        queues = new ArrayList<>(priorities.length);
+        waitDurations = new LatencyHistogram[priorities.length];
+        for (Priority p : priorities) {
+            queues.add(new ArrayDeque<Job<?>>());
+            waitDurations[p.ordinal()] = Metrics.REGISTRY.histogram("bitsafe_scheduler_wait_seconds",
+                    "Time work waited for the BitSafe before it started.",
+                    "priority", p.name().toLowerCase());
+        }
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, "device-scheduler");
+        worker.setDaemon(true);
+        lastFinishedNanos = System.nanoTime();
+        bitsafe.setScheduler(this);
+        worker.start();
+    }
+
+    /** Queue work for the device.
+     * @param priority How urgent the work is
+     * @param deadline When the work must be finished by, including time
+     *                 spent waiting in the queue, or Deadline.NONE
+     * @param task The work
+     * @return The result of the work, once it has run
+     * @throws RejectedExecutionException If too much work with this
+     *                                    priority is already waiting
+     */
+    public <T> Future<T> submit(Priority priority, Deadline deadline, Callable<T> task) {
+        return submit(priority, deadline, task, false);
+    }
+
+    /** Queue a check of whether the device is responding. This is queued
+     * even if the device isn't responding, unlike other work. */
+    <T> Future<T> submitProbe(Deadline deadline, Callable<T> task) {
+        return submit(Priority.BACKGROUND, deadline, task, true);
+    }
+
+    private <T> Future<T> submit(Priority priority, Deadline deadline, Callable<T> task, boolean probe) {
+        Job<T> job = new Job<>(priority, deadline, task);
+        synchronized (this) {
+            if (stopped) {
+                throw new RejectedExecutionException("Device scheduler has been stopped");
+            }
+            String reason = stallReason;
+            if (!probe && (reason != null)) {
+                throw new RejectedExecutionException("Device is not responding: " + reason);
+            }
+            ArrayDeque<Job<?>> queue = queues.get(priority.ordinal());
+            if (queue.size() >= maxQueued[priority.ordinal()]) {
+                throw new RejectedExecutionException("Device is busy: " + queue.size() + " "
+                        + priority.name().toLowerCase() + " requests are already waiting");
+            }
+            queue.add(job);
+            notifyAll();
+        }
+        return job;
+    }
+
+    /** Get an Executor which queues work with no deadline, eg. for
+     * AddressPool to refill itself with REFILL priority.
+     * @param priority How urgent the work is
+     */
+    public Executor executor(final Priority priority) {
+        return new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                submit(priority, Deadline.NONE, new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        command.run();
+                        return null;
+                    }
+                });
+            }
+        };
+    }
+
+    /** Get whether nothing is running or waiting. */
+    public synchronized boolean isIdle() {
+        if (running) {
+            return false;
+        }
+        for (ArrayDeque<Job<?>> queue : queues) {
+            if (!queue.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Get when the last piece of work finished, or when the scheduler was
+     * created if nothing has run yet, from System.nanoTime(). */
+    public long getLastFinishedNanos() {
+        return lastFinishedNanos;
+    }
+
+    /** Set why the device isn't responding, or null once it is responding
+     * again. */
+    void setStallReason(String reason) {
+        stallReason = reason;
+    }
+
+    /** Get why the device isn't responding, or null if it is. */
+    public String getStallReason() {
+        return stallReason;
+    }
+
+    /** Stop running work. Work which is waiting is cancelled; work which is
+     * running is allowed to finish. */
+    public void stop() {
+        synchronized (this) {
+            stopped = true;
+            for (ArrayDeque<Job<?>> queue : queues) {
+                for (Job<?> job : queue) {
+                    job.cancel(false);
+                }
+                queue.clear();
+            }
+            notifyAll();
+        }
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Called by PacketWrapper before it sends a new request. If background
+     * work or a refill is running, this runs any user-facing work which is
+     * waiting. */
+    void beforeRequest() {
+        if ((Thread.currentThread() != worker) || (current == null)
+                || (current.priority == Priority.INTERACTIVE)) {
+            return;
+        }
+        Job<?> preempted = current;
+        Job<?> job;
+        while ((job = poll(Priority.INTERACTIVE)) != null) {
+            run(job);
+        }
+        current = preempted;
+        bitsafe.setDeadline(preempted.deadline);
+    }
+
+    private synchronized Job<?> poll(Priority priority) {
+        return queues.get(priority.ordinal()).poll();
+    }
+
+    /** Wait for the most urgent work.
+     * @return The work, or null if the scheduler has been stopped
+     */
+    private synchronized Job<?> take() throws InterruptedException {
+        running = false;
+        while (!stopped) {
+            for (ArrayDeque<Job<?>> queue : queues) {
+                Job<?> job = queue.poll();
+                if (job != null) {
+                    running = true;
+                    return job;
+                }
+            }
+            wait();
+        }
+        return null;
+    }
+
+    private void run(Job<?> job) {
+        waitDurations[job.priority.ordinal()].recordSince(job.queuedNanos);
+        if (job.deadline.hasPassed()) {
+            job.expire();
+            return;
+        }
+        current = job;
+        bitsafe.setDeadline(job.deadline);
+        try {
+            // Exceptions are kept by the job, for whoever waits for it.
+            job.run();
+        } finally {
+            bitsafe.setDeadline(Deadline.NONE);
+            current = null;
+            lastFinishedNanos = System.nanoTime();
+        }
+    }
+
+    private void work() {
+        try {
+            Job<?> job;
+            while ((job = take()) != null) {
+                run(job);
+            }
+        } catch (InterruptedException e) {
+            console.log("Device scheduler interrupted\n");
+        }
+    }
+}
@@ -0,0 +1,19 @@
+/* This file is licensed as described by the file LICENCE. */
+
+package io.bitsafe.examplewallet.dev;
+
+import java.io.InterruptedIOException;
+
+/** The device didn't send anything before a deadline passed. This isn't
+ * necessarily a communications error; the device may still be waiting for
+ * the user to press its button.
+ *
+ * @author Chris Chua
+ */
+public class DeviceTimeoutException extends InterruptedIOException {
+    private static final long serialVersionUID = 1L;
+
+    public DeviceTimeoutException(String why) {
+        super(why);
+    }
+}
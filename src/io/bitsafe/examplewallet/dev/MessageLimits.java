@@ -0,0 +1,278 @@
+/* This file is licensed as described by the file LICENCE. */
+
+package io.bitsafe.examplewallet.dev;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+import fi.kapsi.koti.jpa.nanopb.Nanopb;
+import fi.kapsi.koti.jpa.nanopb.Nanopb.NanoPBOptions;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Size limits of messages, as imposed by the device. The device firmware
+ * uses nanopb, which stores strings, bytes and repeated fields in
+ * fixed-size buffers whose sizes are given by the nanopb options in the
+ * message definitions (max_size and max_count). Those options are read
+ * here from the message descriptors, so that the host can reject a message
+ * which is too big before sending it, and can reject a packet claiming to
+ * be longer than its message type could be before reading all of it.
+ *
+ * Fields without a limit (eg. SignTransaction.transaction_data, which the
+ * firmware processes as it arrives) make the whole message unbounded.
+ *
+ * @author Chris Chua
+ */
+public class MessageLimits {
+    /** Returned by getMaxSize() for messages with no size limit. */
+    public static final int UNBOUNDED = -1;
+
+    /** Message type of each packet type, or null for unknown types. */
+    private static final Descriptor[] DESCRIPTORS = new Descriptor[256];
+    /** Maximum encoded size of the message in each packet type. */
+    private static final int[] MAX_SIZES = new int[DESCRIPTORS.length];
+    /** The fields of each message type which check() has to look at. */
+    private static final Map<Descriptor, FieldLimit[]> FIELD_LIMITS = new HashMap<>();
+
+    /** Limits of a field which either has a limit or contains messages
+     * which might. */
+    private static class FieldLimit {
+        final FieldDescriptor field;
+        final int maxSize;
+        final int maxCount;
+
+        FieldLimit(FieldDescriptor inField, int inMaxSize, int inMaxCount) {
+            field = inField;
+            maxSize = inMaxSize;
+            maxCount = inMaxCount;
+        }
+    }
+
+    static {
+        DESCRIPTORS[Packet.PACKET_TYPE_PING] = Messages.Ping.getDescriptor();
+        DESCRIPTORS[Packet.PACKET_TYPE_NEW_WALLET] = Messages.NewWallet.getDescriptor();
+        DESCRIPTORS[Packet.PACKET_TYPE_NEW_ADDRESS] = Messages.NewAddress.getDescriptor();
+        DESCRIPTORS[Packet.PACKET_TYPE_GET_NUM_ADDRESSES] = Messages.GetNumberOfAddresses.getDescriptor();
+        DESCRIPTORS[Packet.PACKET_TYPE_GET_ADDRESS_PUBKEY] = Messages.GetAddressAndPublicKey.getDescriptor();
+        DESCRIPTORS[Packet.PACKET_TYPE_SIGN_TRANSACTION] = Messages.SignTransaction.getDescriptor();
+        DESCRIPTORS[Packet.PACKET_TYPE_LOAD_WALLET] = Messages.LoadWallet.getDescriptor();
+        DESCRIPTORS[Packet.PACKET_TYPE_FORMAT] = Messages.FormatWalletArea.getDescriptor();
+        DESCRIPTORS[Packet.PACKET_TYPE_CHANGE_KEY] = Messages.ChangeEncryptionKey.getDescriptor();
+        DESCRIPTORS[Packet.PACKET_TYPE_CHANGE_NAME] = Messages.ChangeWalletName.getDescriptor();
+        DESCRIPTORS[Packet.PACKET_TYPE_LIST_WALLETS] = Messages.ListWallets.getDescriptor();
+        DESCRIPTORS[Packet.PACKET_TYPE_BACKUP_WALLET] = Messages.BackupWallet.getDescriptor();
+        DESCRIPTORS[Packet.PACKET_TYPE_RESTORE_WALLET] = Messages.RestoreWallet.getDescriptor();
+        DESCRIPTORS[Packet.PACKET_TYPE_GET_DEVICE_UUID] = Messages.GetDeviceUUID.getDescriptor();
+        DESCRIPTORS[Packet.PACKET_TYPE_GET_ENTROPY] = Messages.GetEntropy.getDescriptor();
+        DESCRIPTORS[Packet.PACKET_TYPE_GET_MASTER_KEY] = Messages.GetMasterPublicKey.getDescriptor();
+        DESCRIPTORS[Packet.PACKET_TYPE_DELETE_WALLET] = Messages.DeleteWallet.getDescriptor();
+        DESCRIPTORS[Packet.PACKET_TYPE_INITIALIZE] = Messages.Initialize.getDescriptor();
+        DESCRIPTORS[Packet.PACKET_TYPE_ADDRESS_PUBKEY] = Messages.Address.getDescriptor();
+        DESCRIPTORS[Packet.PACKET_TYPE_NUM_ADDRESSES] = Messages.NumberOfAddresses.getDescriptor();
+        DESCRIPTORS[Packet.PACKET_TYPE_WALLETS] = Messages.Wallets.getDescriptor();
+        DESCRIPTORS[Packet.PACKET_TYPE_PING_RESPONSE] = Messages.PingResponse.getDescriptor();
+        DESCRIPTORS[Packet.PACKET_TYPE_SUCCESS] = Messages.Success.getDescriptor();
+        DESCRIPTORS[Packet.PACKET_TYPE_FAILURE] = Messages.Failure.getDescriptor();
+        DESCRIPTORS[Packet.PACKET_TYPE_DEVICE_UUID] = Messages.DeviceUUID.getDescriptor();
+        DESCRIPTORS[Packet.PACKET_TYPE_ENTROPY] = Messages.Entropy.getDescriptor();
+        DESCRIPTORS[Packet.PACKET_TYPE_MASTER_KEY] = Messages.MasterPublicKey.getDescriptor();
+        DESCRIPTORS[Packet.PACKET_TYPE_SIGNATURE] = Messages.Signature.getDescriptor();
+        DESCRIPTORS[Packet.PACKET_TYPE_FEATURES] = Messages.Features.getDescriptor();
+        DESCRIPTORS[Packet.PACKET_TYPE_BUTTON_REQUEST] = Messages.ButtonRequest.getDescriptor();
+        DESCRIPTORS[Packet.PACKET_TYPE_BUTTON_ACK] = Messages.ButtonAck.getDescriptor();
+        DESCRIPTORS[Packet.PACKET_TYPE_BUTTON_CANCEL] = Messages.ButtonCancel.getDescriptor();
+        DESCRIPTORS[Packet.PACKET_TYPE_PIN_REQUEST] = Messages.PinRequest.getDescriptor();
+        DESCRIPTORS[Packet.PACKET_TYPE_PIN_ACK] = Messages.PinAck.getDescriptor();
+        DESCRIPTORS[Packet.PACKET_TYPE_PIN_CANCEL] = Messages.PinCancel.getDescriptor();
+        DESCRIPTORS[Packet.PACKET_TYPE_OTP_REQUEST] = Messages.OtpRequest.getDescriptor();
+        DESCRIPTORS[Packet.PACKET_TYPE_OTP_ACK] = Messages.OtpAck.getDescriptor();
+        DESCRIPTORS[Packet.PACKET_TYPE_OTP_CANCEL] = Messages.OtpCancel.getDescriptor();
+        for (int i = 0; i < DESCRIPTORS.length; i++) {
+            MAX_SIZES[i] = (DESCRIPTORS[i] != null) ? computeMaxSize(DESCRIPTORS[i]) : UNBOUNDED;
+        }
+        // Work out which fields to check up front, since going through the
+        // descriptors and their options for every message sent would cost
+        // more than the check itself.
+        for (Descriptor d : Messages.getDescriptor().getMessageTypes()) {
+            ArrayList<FieldLimit> limits = new ArrayList<>();
+            for (FieldDescriptor field : d.getFields()) {
+                NanoPBOptions options = field.getOptions().getExtension(Nanopb.nanopb);
+                int maxSize = options.hasMaxSize() ? options.getMaxSize() : UNBOUNDED;
+                int maxCount = options.hasMaxCount() ? options.getMaxCount() : UNBOUNDED;
+                if ((maxSize != UNBOUNDED) || (maxCount != UNBOUNDED)
+                        || (field.getJavaType() == FieldDescriptor.JavaType.MESSAGE)) {
+                    limits.add(new FieldLimit(field, maxSize, maxCount));
+                }
+            }
+            FIELD_LIMITS.put(d, limits.toArray(new FieldLimit[limits.size()]));
+        }
+    }
+
+    /** Get the message type which goes with a packet type.
+     * @param packetType One of the PACKET_TYPE_x constants from Packet
+     * @return The message type, or null if the packet type is unknown
+     */
+    public static Descriptor getDescriptor(int packetType) {
+        if ((packetType < 0) || (packetType >= DESCRIPTORS.length)) {
+            return null;
+        }
+        return DESCRIPTORS[packetType];
+    }
+
+    /** Get the maximum encoded size of the message in a packet.
+     * @param packetType One of the PACKET_TYPE_x constants from Packet
+     * @return Maximum size in bytes, or UNBOUNDED if the message has no
+     *         limit or the packet type is unknown
+     */
+    public static int getMaxSize(int packetType) {
+        if ((packetType < 0) || (packetType >= MAX_SIZES.length)) {
+            return UNBOUNDED;
+        }
+        return MAX_SIZES[packetType];
+    }
+
+    /** Check that every field of a message (and of the messages inside it)
+     * fits in the device's buffer for that field.
+     * @param message Message to check
+     * @throws MessageSizeException If a field is too long
+     */
+    public static void check(Message message) throws MessageSizeException {
+        FieldLimit[] limits = FIELD_LIMITS.get(message.getDescriptorForType());
+        if (limits == null) {
+            return;
+        }
+        for (FieldLimit limit : limits) {
+            FieldDescriptor field = limit.field;
+            if (field.isRepeated()) {
+                int count = message.getRepeatedFieldCount(field);
+                if ((limit.maxCount != UNBOUNDED) && (count > limit.maxCount)) {
+                    throw new MessageSizeException(describe(field) + " has " + count
+                            + " entries; the device allows at most " + limit.maxCount);
+                }
+                for (int i = 0; i < count; i++) {
+                    checkValue(limit, message.getRepeatedField(field, i));
+                }
+            } else if (message.hasField(field)) {
+                checkValue(limit, message.getField(field));
+            }
+        }
+    }
+
+    private static void checkValue(FieldLimit limit, Object value) throws MessageSizeException {
+        int length;
+        int maxLength;
+        if (value instanceof Message) {
+            check((Message)value);
+            return;
+        } else if (limit.maxSize == UNBOUNDED) {
+            return;
+        } else if (value instanceof String) {
+            length = utf8Length((String)value);
+            // nanopb strings are null-terminated, and max_size includes the
+            // terminator.
+            maxLength = limit.maxSize - 1;
+        } else if (value instanceof ByteString) {
+            length = ((ByteString)value).size();
+            maxLength = limit.maxSize;
+        } else {
+            return;
+        }
+        if (length > maxLength) {
+            throw new MessageSizeException(describe(limit.field) + " is " + length
+                    + " bytes; the device allows at most " + maxLength);
+        }
+    }
+
+    /** Get the length of a string encoded as UTF-8, without encoding it. */
+    private static int utf8Length(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && (i + 1 < s.length())
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static String describe(FieldDescriptor field) {
+        return field.getContainingType().getName() + "." + field.getName();
+    }
+
+    /** Work out the largest encoding of a message type which the device
+     * could store.
+     * @return Size in bytes, or UNBOUNDED
+     */
+    private static int computeMaxSize(Descriptor d) {
+        long total = 0;
+        for (FieldDescriptor field : d.getFields()) {
+            NanoPBOptions options = field.getOptions().getExtension(Nanopb.nanopb);
+            int count = 1;
+            if (field.isRepeated()) {
+                if (!options.hasMaxCount()) {
+                    return UNBOUNDED;
+                }
+                count = options.getMaxCount();
+            }
+            int valueSize;
+            switch (field.getType()) {
+                case BOOL:
+                    valueSize = 1;
+                    break;
+                case FIXED32:
+                case SFIXED32:
+                case FLOAT:
+                    valueSize = 4;
+                    break;
+                case FIXED64:
+                case SFIXED64:
+                case DOUBLE:
+                    valueSize = 8;
+                    break;
+                case UINT32:
+                case SINT32:
+                    valueSize = 5;
+                    break;
+                case INT32:
+                case INT64:
+                case UINT64:
+                case SINT64:
+                case ENUM:
+                    // Negative int32 and enum values are sign-extended to
+                    // 64 bits.
+                    valueSize = 10;
+                    break;
+                case STRING:
+                case BYTES:
+                    if (!options.hasMaxSize()) {
+                        return UNBOUNDED;
+                    }
+                    valueSize = CodedOutputStream.computeRawVarint32Size(options.getMaxSize())
+                            + options.getMaxSize();
+                    break;
+                case MESSAGE:
+                    int nested = computeMaxSize(field.getMessageType());
+                    if (nested == UNBOUNDED) {
+                        return UNBOUNDED;
+                    }
+                    valueSize = CodedOutputStream.computeRawVarint32Size(nested) + nested;
+                    break;
+                default:
+                    return UNBOUNDED;
+            }
+            total += (long)count * (CodedOutputStream.computeTagSize(field.getNumber()) + valueSize);
+        }
+        return (total > Integer.MAX_VALUE) ? UNBOUNDED : (int)total;
+    }
+}
@@ -0,0 +1,19 @@
+/* This file is licensed as described by the file LICENCE. */
+
+package io.bitsafe.examplewallet.dev;
+
+import java.io.IOException;
+
+/** A message has a field which is longer than the device can store. The
+ * device's buffers are fixed in size, so it would reject the message
+ * anyway, but only after all of it had been sent.
+ *
+ * @author Chris Chua
+ */
+public class MessageSizeException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public MessageSizeException(String why) {
+        super(why);
+    }
+}
@@ -2,6 +2,11 @@
 
 package io.bitsafe.examplewallet.dev;
 
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
+import java.io.IOException;
+
 /** A serialized protobuf message. This is a byte array with an attached
  * message type. A message type is needed because protobuf messages do not
  * contain sufficient information to distinguish message types from each other.
@@ -113,4 +118,33 @@ public class Packet {
     public byte[] getStorage() {
         return storage;
     }
+
+    /** Get a bytes field of the message, without parsing the rest of it.
+     * The field is copied straight out of the packet into an array of the
+     * right size, whereas parsing the message and then calling toByteArray()
+     * on the field would copy it twice.
+     * @param fieldNumber Field number, from the message's X_FIELD_NUMBER
+     *                    constant
+     * @return Contents of the field (its last occurrence, if it is there
+     *         more than once, as protobuf parsing would)
+     * @throws IOException If the field isn't there or the message is
+     *                     malformed
+     */
+    public byte[] getBytesField(int fieldNumber) throws IOException {
+        int wantedTag = (fieldNumber << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+        byte[] value = null;
+        CodedInputStream in = CodedInputStream.newInstance(storage);
+        int tag;
+        while ((tag = in.readTag()) != 0) {
+            if (tag == wantedTag) {
+                value = in.readRawBytes(in.readRawVarint32());
+            } else if (!in.skipField(tag)) {
+                break;
+            }
+        }
+        if (value == null) {
+            throw new InvalidProtocolBufferException("Field " + fieldNumber + " missing from packet type " + type);
+        }
+        return value;
+    }
 }
@@ -0,0 +1,171 @@
+/* This file is licensed as described by the file LICENCE. */
+
+package io.bitsafe.examplewallet.dev;
+
+/** Puts packets back together from the USB HID reports they were split
+ * into. Reports are added one at a time, as they arrive (see
+ * PacketWrapper).
+ *
+ * If a report is lost or garbled, the reports after it no longer line up
+ * with packet boundaries. So after any framing error, the assembler throws
+ * away everything until it finds the magic bytes of a header with a known
+ * packet type and a possible length, and starts again from there.
+ *
+ * @author Chris Chua
+ */
+class PacketAssembler {
+    /** Size of the packet header: two magic bytes, type and length. */
+    static final int HEADER_LENGTH = 8;
+
+    private final byte[] header;
+    private int headerPosition;
+    private int packetType;
+    /** Message of the packet being assembled, or null if the header hasn't
+     * all arrived yet. */
+    private byte[] message;
+    private int messagePosition;
+    /** Whether a framing error has happened, and the start of the next
+     * packet hasn't been found yet. */
+    private boolean scanning;
+
+    PacketAssembler() {
+        header = new byte[HEADER_LENGTH];
+    }
+
+    /** Get whether a packet is partly assembled. */
+    boolean isIdle() {
+        return (headerPosition == 0) && (message == null);
+    }
+
+    /** Get whether the assembler is looking for the start of a packet after
+     * a framing error. */
+    boolean isScanning() {
+        return scanning;
+    }
+
+    /** Throw away a partly assembled packet, and expect the next report to
+     * start a new one. Only do this when nothing more of the packet can
+     * arrive, eg. when the device has gone quiet. */
+    void reset() {
+        headerPosition = 0;
+        message = null;
+        messagePosition = 0;
+        scanning = false;
+    }
+
+    /** Throw away a partly assembled packet, and look for the start of the
+     * next one.
+     * @param why What went wrong
+     * @return An exception to throw
+     */
+    private ReportFormatException lostSync(String why) {
+        reset();
+        scanning = true;
+        return new ReportFormatException(why);
+    }
+
+    /** Look for a header which could be the start of a packet: the magic
+     * bytes, a known packet type and a length the device could send. The
+     * whole header has to be in the report.
+     * @return Offset of the header, or -1 if there isn't one
+     */
+    private static int findHeader(byte[] report, int offset, int end) {
+        for (int i = offset; i + HEADER_LENGTH <= end; i++) {
+            if ((report[i] != '#') || (report[i + 1] != '#')) {
+                continue;
+            }
+            int type = readType(report, i);
+            int length = readLength(report, i);
+            int maxSize = MessageLimits.getMaxSize(type);
+            if ((MessageLimits.getDescriptor(type) != null) && (length >= 0)
+                    && ((maxSize == MessageLimits.UNBOUNDED) || (length <= maxSize))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int readType(byte[] buf, int headerOffset) {
+        return (short)(((buf[headerOffset + 2] & 0xff) << 8) | (buf[headerOffset + 3] & 0xff));
+    }
+
+    private static int readLength(byte[] buf, int headerOffset) {
+        return ((buf[headerOffset + 4] & 0xff) << 24) | ((buf[headerOffset + 5] & 0xff) << 16)
+                | ((buf[headerOffset + 6] & 0xff) << 8) | (buf[headerOffset + 7] & 0xff);
+    }
+
+    /** Check that a USB HID report has the expected format (one report ID
+     * byte followed by report contents), and add its contents to the packet
+     * being assembled. Anything in the report after the end of the packet
+     * is ignored, since packets always start at the start of a report.
+     * @param report USB HID report to add
+     * @return The packet which this report completes, or null if the packet
+     *         isn't complete yet (or the start of a packet is still being
+     *         looked for)
+     * @throws ReportFormatException If the report or the packet header is
+     *                               malformed. The partly assembled packet
+     *                               is thrown away.
+     */
+    Packet add(byte[] report) throws ReportFormatException {
+        if (report.length < 1) {
+            throw lostSync("Report length is 0");
+        }
+        int reportID = report[0];
+        if ((reportID < 0) || (reportID > PacketWrapper.MAX_REPORT_SIZE) || (reportID > report.length - 1)) {
+            throw lostSync("Invalid report ID byte");
+        }
+        // Don't check that the report ID matches the report length, because
+        // on Windows systems, the USB HID driver always returns
+        // maximum-sized reports regardless of the true size of a report.
+        // Need to strip off report ID byte.
+        int offset = 1;
+        int end = 1 + reportID;
+        if (scanning) {
+            offset = findHeader(report, offset, end);
+            if (offset < 0) {
+                return null;
+            }
+            scanning = false;
+        }
+        if (message == null) {
+            int n = Math.min(HEADER_LENGTH - headerPosition, end - offset);
+            System.arraycopy(report, offset, header, headerPosition, n);
+            headerPosition += n;
+            offset += n;
+            if (headerPosition < HEADER_LENGTH) {
+                return null;
+            }
+            startMessage();
+        }
+        int n = Math.min(message.length - messagePosition, end - offset);
+        System.arraycopy(report, offset, message, messagePosition, n);
+        messagePosition += n;
+        if (messagePosition < message.length) {
+            return null;
+        }
+        Packet p = new Packet(packetType, message);
+        reset();
+        return p;
+    }
+
+    /** Read the header, and allocate space for the message. The message
+     * goes straight into the array which the finished Packet uses, so that
+     * it never has to be copied. */
+    private void startMessage() throws ReportFormatException {
+        if ((header[0] != '#') || (header[1] != '#')) {
+            throw lostSync("Header magic bytes not found");
+        }
+        packetType = readType(header, 0);
+        int messageLength = readLength(header, 0);
+        // Check the length before allocating anything based on it, in case
+        // it is garbage.
+        int maxSize = MessageLimits.getMaxSize(packetType);
+        if ((messageLength < 0)
+                || ((maxSize != MessageLimits.UNBOUNDED) && (messageLength > maxSize))) {
+            throw lostSync("Packet of type " + packetType + " has impossible length "
+                    + messageLength);
+        }
+        message = new byte[messageLength];
+        messagePosition = 0;
+    }
+}
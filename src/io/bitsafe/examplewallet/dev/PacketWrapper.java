@@ -2,37 +2,272 @@
 
 package io.bitsafe.examplewallet.dev;
 
-import com.google.protobuf.AbstractMessage.Builder;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Message;
+import io.bitsafe.examplewallet.dev.Messages.ButtonAck;
+import io.bitsafe.examplewallet.dev.Messages.ButtonCancel;
+import io.bitsafe.examplewallet.dev.Messages.OtpCancel;
+import io.bitsafe.examplewallet.dev.Messages.PinCancel;
+import io.bitsafe.examplewallet.jfr.Trace;
+import io.bitsafe.examplewallet.metrics.Metrics;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import org.spongycastle.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
 /** Wraps BitSafeDevice object to expose a higher level Packet based interface.
+ *
+ * Nothing waits for the device forever. The device has REPLY_TIMEOUT_MS to
+ * start answering whatever was last sent to it, except after a ButtonAck,
+ * when it has BUTTON_TIMEOUT_MS (the user has to press the button first).
+ * Callers can also set an overall deadline with setDeadline(). If a request
+ * is given up on, the device will still answer it eventually, so before the
+ * next request is sent, that answer is read and thrown away, and any
+ * interjections which come with it are cancelled. That way, a response is
+ * never mistaken for the response to a later request.
+ *
+ * If a packet arrives garbled (eg. a report was lost), receivePacket()
+ * throws ReportFormatException, but first waits for the rest of the packet
+ * and throws it away, so that the next packet is read properly. Requests
+ * which can safely be sent twice can use requestIdempotent(), which then
+ * sends the request again instead of failing.
+ *
+ * If a DeviceScheduler is in charge of the device, it gets a chance to run
+ * more urgent work before each new request is sent.
+ *
+ * A PacketWrapper isn't thread-safe, and a request, its interjections and
+ * its response must not be mixed up with those of another request. So
+ * whoever talks to the device (Session and Wallet) holds the PacketWrapper's
+ * monitor for the whole of each exchange, eg. while an AddressPool refill
+ * generates an address on one thread and the GUI lists wallets on another.
  *
  * @author Chris Chua
  */
 public class PacketWrapper {
     /** Maximum size of a single USB HID report. */
     public static final int MAX_REPORT_SIZE = 63;
+    /** Time the device has to start answering a request (or a response to
+     * an interjection), in milliseconds. */
+    public static long REPLY_TIMEOUT_MS = 10000;
+    /** Time the device has to answer after a ButtonAck, which includes the
+     * user pressing the button, in milliseconds. */
+    public static long BUTTON_TIMEOUT_MS = 120000;
+    /** Once the start of a packet has arrived, the rest of it follows
+     * straight away. This is how long to wait for each report of the rest,
+     * in milliseconds. */
+    public static long PACKET_TIMEOUT_MS = 1000;
+    /** After a framing error, reports are thrown away until the device has
+     * sent nothing for this many milliseconds. */
+    public static long RESYNC_QUIET_MS = 50;
+    /** Number of times requestIdempotent() sends a request again if the
+     * response is garbled. */
+    public static int IDEMPOTENT_RETRIES = 2;
 
     private final BitSafeDevice dev;
+    private final PacketAssembler assembler;
+    /** Type of the last packet sent, for tracing. */
+    private int lastSentType;
+    /** Type of the request awaiting a response, or -1 if there is none. */
+    private int pendingRequestType = -1;
+    /** When the request awaiting a response was sent, from System.nanoTime(). */
+    private long pendingRequestNanos;
+    /** Time taken for the device to answer the last request it answered. */
+    private long lastRoundTripNanos;
+    /** Deadline for everything done through this wrapper. */
+    private Deadline deadline = Deadline.NONE;
+    /** When the last packet was sent, from System.nanoTime(). */
+    private long lastSentNanos;
+    /** Time the device has to start answering the last packet sent, or
+     * BitSafeDevice.NO_TIMEOUT if nothing is waiting for an answer. */
+    private long replyTimeoutMillis = BitSafeDevice.NO_TIMEOUT;
+    /** Number of requests which were given up on, and whose responses
+     * haven't arrived yet. */
+    private int abandonedRequests;
+    /** Type of the interjection received last, if it hasn't been answered,
+     * or -1. */
+    private int unansweredInterjection = -1;
+    /** Scheduler in charge of the device, or null. */
+    private DeviceScheduler scheduler;
 
     public PacketWrapper(BitSafeDevice newDev) {
         dev = newDev;
+        assembler = new PacketAssembler();
+    }
+
+    /** Set the deadline for everything done through this wrapper from now
+     * on. Once it passes, waiting for the device fails with
+     * DeviceTimeoutException, and button requests are cancelled instead of
+     * acknowledged.
+     * @param newDeadline The deadline, or Deadline.NONE to only use the
+     *                    timeouts
+     */
+    public void setDeadline(Deadline newDeadline) {
+        deadline = newDeadline;
+    }
+
+    public Deadline getDeadline() {
+        return deadline;
+    }
+
+    void setScheduler(DeviceScheduler newScheduler) {
+        scheduler = newScheduler;
+    }
+
+    /** Get the time from sending the last request which was answered to
+     * receiving its answer, in nanoseconds. */
+    long getLastRoundTripNanos() {
+        return lastRoundTripNanos;
+    }
+
+    /** Answer a ButtonRequest from the device. This acknowledges it, unless
+     * the deadline has passed, in which case it is cancelled, and the device
+     * will respond with a Failure.
+     * @throws IOException 
+     */
+    public void answerButtonRequest() throws IOException {
+        if (deadline.hasPassed()) {
+            sendPacket(Packet.PACKET_TYPE_BUTTON_CANCEL, ButtonCancel.newBuilder());
+        } else {
+            sendPacket(Packet.PACKET_TYPE_BUTTON_ACK, ButtonAck.newBuilder());
+        }
+    }
+
+    private void cancelInterjection(int interjectionType) throws IOException {
+        switch (interjectionType) {
+            case Packet.PACKET_TYPE_BUTTON_REQUEST:
+                sendPacket(Packet.PACKET_TYPE_BUTTON_CANCEL, ButtonCancel.newBuilder());
+                break;
+            case Packet.PACKET_TYPE_PIN_REQUEST:
+                sendPacket(Packet.PACKET_TYPE_PIN_CANCEL, PinCancel.newBuilder());
+                break;
+            case Packet.PACKET_TYPE_OTP_REQUEST:
+                sendPacket(Packet.PACKET_TYPE_OTP_CANCEL, OtpCancel.newBuilder());
+                break;
+            default:
+                throw new IllegalArgumentException("Not an interjection: " + interjectionType);
+        }
+    }
+
+    /** Get back to where the device is waiting for a new request: cancel
+     * any interjection which was left unanswered, then read and discard
+     * responses to requests which were given up on.
+     * @throws DeviceTimeoutException If the device still hasn't answered;
+     *                                it is safe to try again later
+     * @throws IOException 
+     */
+    private void recover() throws IOException {
+        if (unansweredInterjection >= 0) {
+            cancelInterjection(unansweredInterjection);
+            if (pendingRequestType >= 0) {
+                // The request will now fail, but the Failure still has to
+                // be read.
+                abandonedRequests++;
+                pendingRequestType = -1;
+            }
+        }
+        while (abandonedRequests > 0) {
+            if (replyTimeoutMillis == BitSafeDevice.NO_TIMEOUT) {
+                lastSentNanos = System.nanoTime();
+                replyTimeoutMillis = REPLY_TIMEOUT_MS;
+            }
+            Packet p = receivePacket();
+            if (isInterjection(p.getType())) {
+                cancelInterjection(p.getType());
+            } else {
+                abandonedRequests--;
+            }
+        }
+    }
+
+    /** Get back in step with the device after a framing error, by throwing
+     * away reports until the device goes quiet. Whatever was waiting for a
+     * response has lost it. */
+    private void resync() {
+        Metrics.FRAMING_ERRORS.inc();
+        long start = System.nanoTime();
+        long limit = TimeUnit.MILLISECONDS.toNanos(REPLY_TIMEOUT_MS);
+        try {
+            while (System.nanoTime() - start < limit) {
+                dev.receiveReport(RESYNC_QUIET_MS);
+                Metrics.REPORTS_RECEIVED.inc();
+            }
+        } catch (DeviceTimeoutException e) {
+            // Quiet, so the next report starts a packet.
+        } catch (IOException e) {
+            // Whatever is wrong will show up again on the next read.
+        }
+        assembler.reset();
+        pendingRequestType = -1;
+        unansweredInterjection = -1;
+        replyTimeoutMillis = BitSafeDevice.NO_TIMEOUT;
+    }
+
+    /** Send a request which does the same thing however many times it is
+     * sent, and wait for the response. If the response is garbled, the
+     * request is sent again, up to IDEMPOTENT_RETRIES times. Only use this
+     * for requests which are answered without any interjections, eg.
+     * GetAddressAndPublicKey, Ping and ListWallets.
+     * @param messageType One of the PACKET_TYPE_x constants from Packet
+     * @param messageBuilder Builder for the protocol buffer message
+     * @return The response
+     * @throws IOException 
+     */
+    public Packet requestIdempotent(int messageType, Message.Builder messageBuilder) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            sendPacket(messageType, messageBuilder);
+            try {
+                return receivePacket();
+            } catch (ReportFormatException e) {
+                if (attempt >= IDEMPOTENT_RETRIES) {
+                    throw e;
+                }
+                Metrics.RETRIES.inc();
+            }
+        }
+    }
+
+    /** Get how long to wait for the start of the next packet, in
+     * milliseconds, or BitSafeDevice.NO_TIMEOUT to wait forever. */
+    private long headerTimeout() {
+        long timeout = deadline.remainingMillis();
+        if (replyTimeoutMillis != BitSafeDevice.NO_TIMEOUT) {
+            long elapsed = (System.nanoTime() - lastSentNanos) / 1000000;
+            timeout = Math.min(timeout, Math.max(0, replyTimeoutMillis - elapsed));
+        }
+        return (timeout == Long.MAX_VALUE) ? BitSafeDevice.NO_TIMEOUT : timeout;
     }
 
     public void sendPacket(Packet p) throws IOException {
-        // Prepend header.
         int messageLength = p.getStorage().length;
-        int totalLength = messageLength + 8;
-        byte[] buf = new byte[totalLength];
+        checkLength(p.getType(), messageLength);
+        byte[] buf = new byte[messageLength + 8];
+        System.arraycopy(p.getStorage(), 0, buf, 8, messageLength);
+        sendFrame(p.getType(), buf);
+    }
+
+    /** Add the header to the start of a packet, then divide the packet into
+     * HID reports and send them.
+     * @param type One of the PACKET_TYPE_x constants from Packet
+     * @param buf The packet, with 8 bytes at the start for the header
+     * @throws IOException 
+     */
+    private void sendFrame(int type, byte[] buf) throws IOException {
+        boolean interjectionResponse = isInterjectionResponse(type);
+        if (!interjectionResponse && (scheduler != null)) {
+            // Between requests is the only time the device can be used for
+            // something else.
+            scheduler.beforeRequest();
+        }
+        if (!interjectionResponse && ((abandonedRequests > 0) || (unansweredInterjection >= 0))) {
+            recover();
+        }
+        Object trace = Trace.beginPacket(true, lastSentType);
+        int totalLength = buf.length;
         ByteBuffer bb = ByteBuffer.wrap(buf).order(ByteOrder.BIG_ENDIAN);
         bb.put((byte)'#');
         bb.put((byte)'#');
-        bb.putShort((short)p.getType());
-        bb.putInt(messageLength);
-        bb.put(p.getStorage());
+        bb.putShort((short)type);
+        bb.putInt(totalLength - 8);
 
         // Divide into HID reports and send them.
         int reportLength;
@@ -47,77 +282,121 @@ public class PacketWrapper {
             report[0] = (byte)reportLength;
             System.arraycopy(buf, index, report, 1, reportLength);
             dev.sendReport(report);
+            Metrics.REPORTS_SENT.inc();
             totalLength -= reportLength;
             index += reportLength;
         }
+        lastSentType = type;
+        Metrics.BYTES_SENT.add(buf.length);
+        lastSentNanos = System.nanoTime();
+        if (interjectionResponse) {
+            unansweredInterjection = -1;
+        } else {
+            pendingRequestType = type;
+            pendingRequestNanos = lastSentNanos;
+        }
+        replyTimeoutMillis = (type == Packet.PACKET_TYPE_BUTTON_ACK) ? BUTTON_TIMEOUT_MS : REPLY_TIMEOUT_MS;
+        Trace.endPacket(trace, type, buf.length);
     }
 
-    /** Wrapper around sendPacket() which sends empty protocol buffer messages.
+    /** Refuse to send a message which is bigger than the device could
+     * possibly accept for its type, since the device would only reject it
+     * once it had all arrived. */
+    private static void checkLength(int type, int messageLength) throws MessageSizeException {
+        int maxSize = MessageLimits.getMaxSize(type);
+        if ((maxSize != MessageLimits.UNBOUNDED) && (messageLength > maxSize)) {
+            throw new MessageSizeException("Message of type " + type + " is " + messageLength
+                    + " bytes; the device allows at most " + maxSize);
+        }
+    }
+
+    /** Interjections (eg. "press the button") happen in the middle of a
+     * request, so the host's replies to them aren't requests in their own
+     * right. */
+    private static boolean isInterjectionResponse(int type) {
+        return (type >= Packet.PACKET_TYPE_BUTTON_ACK) && (type <= Packet.PACKET_TYPE_OTP_CANCEL)
+                && (type != Packet.PACKET_TYPE_PIN_REQUEST) && (type != Packet.PACKET_TYPE_OTP_REQUEST);
+    }
+
+    private static boolean isInterjection(int type) {
+        return (type == Packet.PACKET_TYPE_BUTTON_REQUEST) || (type == Packet.PACKET_TYPE_PIN_REQUEST)
+                || (type == Packet.PACKET_TYPE_OTP_REQUEST);
+    }
+
+    /** Build a protocol buffer message and send it. The message is checked
+     * against the device's field size limits (see MessageLimits) first, and
+     * is encoded straight into the packet, after the header.
      * @param messageType One of the PACKET_TYPE_x constants from Packet
      * @param messageBuilder Builder for the protocol buffer message
+     * @throws MessageSizeException If a field is too big for the device
      * @throws IOException 
      */
-    public void sendPacket(int messageType, Builder messageBuilder) throws IOException {
-        Packet p = new Packet(messageType, messageBuilder.build().toByteArray());
-        sendPacket(p);
+    public void sendPacket(int messageType, Message.Builder messageBuilder) throws IOException {
+        Message message = messageBuilder.build();
+        MessageLimits.check(message);
+        int messageLength = message.getSerializedSize();
+        checkLength(messageType, messageLength);
+        byte[] buf = new byte[messageLength + 8];
+        CodedOutputStream out = CodedOutputStream.newInstance(buf, 8, messageLength);
+        message.writeTo(out);
+        out.checkNoSpaceLeft();
+        sendFrame(messageType, buf);
     }
 
-    /** Check that a USB HID report has the expected format (one report ID byte
-     * followed by report contents), and add the contents to a ByteBuffer.
-     * @param report USB HID report to check
-     * @param bb ByteBuffer to add contents to. The contents of a report are
-     *           all bytes of the report except for the first byte.
-     * @throws ReportFormatException 
+    /** Wait for the next packet from the device.
+     * @throws DeviceTimeoutException If the device didn't answer in time.
+     *                                If a request was waiting for a
+     *                                response, it is given up on.
+     * @throws IOException 
      */
-    private void checkAndAddReport(byte[] report, ByteBuffer bb) throws ReportFormatException {
-        if (report.length < 1) {
-            throw new ReportFormatException("Report length is 0");
-        } else {
-            int reportID = report[0];
-            if ((reportID < 0) || (reportID > MAX_REPORT_SIZE)) {
-                throw new ReportFormatException("Invalid report ID byte");
-            }
-            // Skip this check because on Windows systems, the USB HID
-            // driver always returns maximum-sized reports regardless of the
-            // true size of a report.
-            //if (reportID != (report.length - 1)) {
-            //    throw new ReportFormatException("Report length doesn't match report ID");
-            //}
-            // Need to strip off report ID byte.
-            bb.put(report, 1, reportID);
-        }
-    }
-
     public Packet receivePacket() throws IOException, ReportFormatException {
-        // Need to read the header to know the length of the packet.
-        // Try to read the first 8 bytes.
-        // Allocating buf with a size of MAX_REPORT_SIZE * 2 guarantees that
-        // it won't overflow, since we abort after 8 bytes.
-        byte[] headerBuf = new byte[MAX_REPORT_SIZE * 2];
-        ByteBuffer header = ByteBuffer.wrap(headerBuf).order(ByteOrder.BIG_ENDIAN);
-        while (header.position() < 8) {
-            checkAndAddReport(dev.receiveReport(), header);
-        }
-        header.flip();
-
-        // Read the header.
-        for (int i = 0; i < 2; i++) {
-            if (header.get() != '#') {
-                throw new ReportFormatException("Header magic bytes not found");
+        Object trace = Trace.beginPacket(false, lastSentType);
+        Packet p;
+        try {
+            p = assembler.add(dev.receiveReport(headerTimeout()));
+        } catch (DeviceTimeoutException e) {
+            if (pendingRequestType >= 0) {
+                abandonedRequests++;
+                pendingRequestType = -1;
             }
+            replyTimeoutMillis = BitSafeDevice.NO_TIMEOUT;
+            throw e;
+        } catch (ReportFormatException e) {
+            resync();
+            throw e;
         }
-        int packetType = header.getShort();
-        int messageLength = header.getInt();
-        int totalLength = messageLength + 8;
-
-        // Now the rest of the packet can be read.
-        byte[] buf = new byte[totalLength];
-        ByteBuffer entirePacket = ByteBuffer.wrap(buf).order(ByteOrder.BIG_ENDIAN);
-        entirePacket.put(headerBuf, 0, header.limit());
-        while (entirePacket.position() < totalLength) {
-            checkAndAddReport(dev.receiveReport(), entirePacket);
+        Metrics.REPORTS_RECEIVED.inc();
+        try {
+            while (p == null) {
+                p = assembler.add(dev.receiveReport(PACKET_TIMEOUT_MS));
+                Metrics.REPORTS_RECEIVED.inc();
+            }
+        } catch (DeviceTimeoutException e) {
+            // The device stopped sending part way through the packet, so
+            // some of it must have been lost.
+            resync();
+            throw new ReportFormatException("Packet was cut short");
+        } catch (ReportFormatException e) {
+            resync();
+            throw e;
+        } catch (IOException e) {
+            // Don't add the rest of this packet to the next one.
+            assembler.reset();
+            throw e;
         }
+        int packetType = p.getType();
+        int totalLength = p.getStorage().length + PacketAssembler.HEADER_LENGTH;
 
-        return new Packet(packetType, Arrays.copyOfRange(buf, 8, totalLength));
+        Metrics.BYTES_RECEIVED.add(totalLength);
+        replyTimeoutMillis = BitSafeDevice.NO_TIMEOUT;
+        if (isInterjection(packetType)) {
+            unansweredInterjection = packetType;
+        } else if (pendingRequestType >= 0) {
+            lastRoundTripNanos = System.nanoTime() - pendingRequestNanos;
+            Metrics.requestDuration(pendingRequestType).record(lastRoundTripNanos);
+            pendingRequestType = -1;
+        }
+        Trace.endPacket(trace, packetType, totalLength);
+        return p;
     }
 }
@@ -3,10 +3,11 @@
 package io.bitsafe.examplewallet.dev;
 
 import com.google.protobuf.ByteString;
-import io.bitsafe.examplewallet.dev.Messages.ButtonAck;
 import io.bitsafe.examplewallet.dev.Messages.DeleteWallet;
+import io.bitsafe.examplewallet.dev.Messages.DeviceUUID;
 import io.bitsafe.examplewallet.dev.Messages.Failure;
 import io.bitsafe.examplewallet.dev.Messages.Features;
+import io.bitsafe.examplewallet.dev.Messages.GetDeviceUUID;
 import io.bitsafe.examplewallet.dev.Messages.Initialize;
 import io.bitsafe.examplewallet.dev.Messages.ListWallets;
 import io.bitsafe.examplewallet.dev.Messages.LoadWallet;
@@ -20,43 +21,160 @@ import io.bitsafe.examplewallet.dev.Messages.PingResponse;
 import io.bitsafe.examplewallet.dev.Messages.WalletInfo;
 import io.bitsafe.examplewallet.dev.Messages.Wallets;
 import io.bitsafe.examplewallet.gui.Console;
+import io.bitsafe.examplewallet.jfr.Trace;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.Iterator;
+import java.util.List;
 
-/**
+/** Talks to a BitSafe about things other than one wallet.
+ *
+ * What a device reports about itself (its UUID, Features and list of
+ * wallets) is cached by the session, so that it isn't asked for again every
+ * time it is needed. The UUID is asked for once per connection, by the
+ * first initialize(); later ones (eg. on unload or close) only send
+ * Initialize, and keep the cache unless the device reports different
+ * Features, which means it isn't the device the cache is for. The cache
+ * lasts until clearCache(), which should be called when the device is
+ * disconnected. The wallet list is also forgotten whenever a wallet is
+ * created or deleted through the session; nothing else can change it while
+ * the device is connected.
+ *
+ * Every exchange with the device holds the PacketWrapper's monitor, so that
+ * a session can be used from one thread while its wallets are used from
+ * another.
  *
  * @author Chris Chua
  */
 public class Session {
-
     private final PacketWrapper bitsafe;
     // TODO: decouple from GUI by not using console
     private final Console console;
+    /** Session ID sent with the last Initialize, or null. */
+    private byte[] sessionId;
+    /** UUID of the device, or null if it hasn't been asked for yet (or the
+     * device didn't say). */
+    private ByteString deviceUuid;
+    /** Features of the device, without the echoed session ID, or null if
+     * it hasn't been initialised. */
+    private Features features;
+    /** Wallets on the device, or null if they haven't been asked for since
+     * the cache was last cleared. */
+    private List<WalletInfo> wallets;
 
     public Session(BitSafeDevice newDev, Console inConsole) {
         bitsafe = new PacketWrapper(newDev);
         console = inConsole;
     }
 
+    /** Set the deadline for device operations from now on, including those
+     * of wallets created or loaded through this session. See
+     * PacketWrapper.setDeadline().
+     * @param deadline The deadline, or Deadline.NONE for no deadline
+     */
+    public void setDeadline(Deadline deadline) {
+        bitsafe.setDeadline(deadline);
+    }
+
+    PacketWrapper getPacketWrapper() {
+        return bitsafe;
+    }
+
     public void initialize(byte[] sessionId) {
-        // TODO: Ensure that initialize is called (and is successful) before
-        // allowing anything else.
-        Initialize.Builder initialize = Initialize.newBuilder();
-        initialize.setSessionId(ByteString.copyFrom(sessionId));
-        Packet p = new Packet(Packet.PACKET_TYPE_INITIALIZE, initialize.build().toByteArray());
-        try {
-            bitsafe.sendPacket(p);
-            p = bitsafe.receivePacket();
-            if (p.getType() == Packet.PACKET_TYPE_FEATURES) {
-                Features features = Features.parseFrom(p.getStorage());
-                console.log("Features:\n");
-                console.log(features.toString());
-            } else {
-                throw new UnexpectedResponseException(p.getType(), "Initialize");
+        synchronized (bitsafe) {
+            // TODO: Ensure that initialize is called (and is successful) before
+            // allowing anything else.
+            Initialize.Builder initialize = Initialize.newBuilder();
+            initialize.setSessionId(ByteString.copyFrom(sessionId));
+            this.sessionId = sessionId.clone();
+            Features oldFeatures = features;
+            Object trace = Trace.beginOperation("Initialize");
+            try {
+                bitsafe.sendPacket(Packet.PACKET_TYPE_INITIALIZE, initialize);
+                Packet p = bitsafe.receivePacket();
+                if (p.getType() == Packet.PACKET_TYPE_FEATURES) {
+                    features = Features.parseFrom(p.getStorage()).toBuilder().clearEchoedSessionId().buildPartial();
+                } else {
+                    throw new UnexpectedResponseException(p.getType(), "Initialize");
+                }
+                // Only log features when they're new, since formatting them is
+                // slow and they hardly ever change.
+                if (!features.equals(oldFeatures)) {
+                    if (oldFeatures != null) {
+                        // Another device, or new firmware.
+                        deviceUuid = null;
+                        wallets = null;
+                    }
+                    console.log("Features:\n");
+                    console.log(features.toString());
+                }
+                if (deviceUuid == null) {
+                    deviceUuid = requestDeviceUuid();
+                }
+            } catch (IOException | UnexpectedResponseException | BitSafeFailureException e) {
+                console.log(e);
+            } finally {
+                Trace.endOperation(trace);
             }
-        } catch (IOException | UnexpectedResponseException e) {
-            console.log(e);
+        }
+    }
+
+    private ByteString requestDeviceUuid()
+            throws IOException, BitSafeFailureException, UnexpectedResponseException {
+        Packet p = bitsafe.requestIdempotent(Packet.PACKET_TYPE_GET_DEVICE_UUID, GetDeviceUUID.newBuilder());
+        if (p.getType() == Packet.PACKET_TYPE_DEVICE_UUID) {
+            return DeviceUUID.parseFrom(p.getStorage()).getDeviceUuid();
+        } else if (p.getType() == Packet.PACKET_TYPE_FAILURE) {
+            throw new BitSafeFailureException(Failure.parseFrom(p.getStorage()));
+        } else {
+            throw new UnexpectedResponseException(p.getType(), "GetDeviceUUID");
+        }
+    }
+
+    /** Get the UUID of the device, or null if it isn't known (eg. because
+     * the session hasn't been initialised). */
+    public ByteString getDeviceUuid() {
+        return deviceUuid;
+    }
+
+    /** Get the features which the device reported when the session was last
+     * initialised, without the echoed session ID, or null if it hasn't been
+     * initialised. */
+    public Features getFeatures() {
+        return features;
+    }
+
+    /** Get whether the device's firmware is at least some version, so that
+     * version-specific behaviour can key off it. This is false if the device
+     * didn't say which version it has.
+     */
+    public boolean isFirmwareAtLeast(int major, int minor) {
+        synchronized (bitsafe) {
+            if ((features == null) || !features.hasMajorVersion()) {
+                return false;
+            }
+            if (features.getMajorVersion() != major) {
+                return features.getMajorVersion() > major;
+            }
+            return features.hasMinorVersion() && (features.getMinorVersion() >= minor);
+        }
+    }
+
+    /** Forget the cached list of wallets, eg. because a wallet has been
+     * created, deleted, renamed or the device has been formatted. */
+    public void invalidateWallets() {
+        synchronized (bitsafe) {
+            wallets = null;
+        }
+    }
+
+    /** Forget everything cached about the device, eg. because it has been
+     * disconnected, so another device may be connected next. */
+    public void clearCache() {
+        synchronized (bitsafe) {
+            deviceUuid = null;
+            features = null;
+            wallets = null;
         }
     }
 
@@ -64,20 +182,41 @@ public class Session {
         initialize(Double.toString(Math.random()).getBytes());
     }
 
+    /** Get the session ID sent with the last Initialize, which the device
+     * echoes in PingResponse, or null if there hasn't been one. */
+    byte[] getSessionId() {
+        return sessionId;
+    }
+
+    /** Ping the device.
+     * @param greeting Greeting for the device to echo
+     * @return The device's response
+     * @throws IOException
+     * @throws UnexpectedResponseException
+     */
+    public PingResponse sendPing(String greeting) throws IOException, UnexpectedResponseException {
+        synchronized (bitsafe) {
+            Ping.Builder ping = Ping.newBuilder();
+            ping.setGreeting(greeting);
+            Object trace = Trace.beginOperation("Ping");
+            try {
+                Packet p = bitsafe.requestIdempotent(Packet.PACKET_TYPE_PING, ping);
+                if (p.getType() == Packet.PACKET_TYPE_PING_RESPONSE) {
+                    return PingResponse.parseFrom(p.getStorage());
+                } else {
+                    throw new UnexpectedResponseException(p.getType(), "Ping");
+                }
+            } finally {
+                Trace.endOperation(trace);
+            }
+        }
+    }
+
     public void ping(String greeting) {
-        Ping.Builder ping = Ping.newBuilder();
-        ping.setGreeting(greeting);
-        Packet p = new Packet(Packet.PACKET_TYPE_PING, ping.build().toByteArray());
         try {
-            bitsafe.sendPacket(p);
-            p = bitsafe.receivePacket();
-            if (p.getType() == Packet.PACKET_TYPE_PING_RESPONSE) {
-                PingResponse pingResponse = PingResponse.parseFrom(p.getStorage());
-                console.log("PingResponse:\n");
-                console.log(pingResponse.toString());
-            } else {
-                throw new UnexpectedResponseException(p.getType(), "Ping");
-            }
+            PingResponse pingResponse = sendPing(greeting);
+            console.log("PingResponse:\n");
+            console.log(pingResponse.toString());
         } catch (IOException | UnexpectedResponseException e) {
             console.log(e);
         }
@@ -85,89 +224,142 @@ public class Session {
 
     // TODO: Maybe refactor all the wallets stuff into WalletManager?
     public void deleteWallet(int walletNumber, PasswordSupplier passwordSupplier) {
-        DeleteWallet.Builder deleteWallet = DeleteWallet.newBuilder();
-        deleteWallet.setWalletHandle(walletNumber);
-        Packet p = new Packet(Packet.PACKET_TYPE_DELETE_WALLET, deleteWallet.build().toByteArray());
-        try {
-            bitsafe.sendPacket(p);
-            while (true) {
-                p = bitsafe.receivePacket();
-                if (p.getType() == Packet.PACKET_TYPE_SUCCESS) {
-                    // TODO: should return something to indicate success
-                    console.log("Deleted wallet " + walletNumber + "\n");
-                    return;
-                } else if (p.getType() == Packet.PACKET_TYPE_FAILURE) {
-                    throw new BitSafeFailureException(Failure.parseFrom(p.getStorage()));
-                } else if (p.getType() == Packet.PACKET_TYPE_BUTTON_REQUEST) {
-                    bitsafe.sendPacket(Packet.PACKET_TYPE_BUTTON_ACK, ButtonAck.newBuilder());
-                } else if (p.getType() == Packet.PACKET_TYPE_OTP_REQUEST) {
-                    // One-time password required.
-                    byte[] password = passwordSupplier.getPassword();
-                    if (password != null) {
-                        OtpAck.Builder otpAck = OtpAck.newBuilder();
-                        otpAck.setOtp(new String(password));
-                        p = new Packet(Packet.PACKET_TYPE_OTP_ACK, otpAck.build().toByteArray());
-                        bitsafe.sendPacket(p);
+        synchronized (bitsafe) {
+            DeleteWallet.Builder deleteWallet = DeleteWallet.newBuilder();
+            deleteWallet.setWalletHandle(walletNumber);
+            Object trace = Trace.beginOperation("DeleteWallet");
+            try {
+                bitsafe.sendPacket(Packet.PACKET_TYPE_DELETE_WALLET, deleteWallet);
+                while (true) {
+                    Packet p = bitsafe.receivePacket();
+                    if (p.getType() == Packet.PACKET_TYPE_SUCCESS) {
+                        // TODO: should return something to indicate success
+                        console.log("Deleted wallet " + walletNumber + "\n");
+                        return;
+                    } else if (p.getType() == Packet.PACKET_TYPE_FAILURE) {
+                        throw new BitSafeFailureException(Failure.parseFrom(p.getStorage()));
+                    } else if (p.getType() == Packet.PACKET_TYPE_BUTTON_REQUEST) {
+                        bitsafe.answerButtonRequest();
+                    } else if (p.getType() == Packet.PACKET_TYPE_OTP_REQUEST) {
+                        // One-time password required.
+                        byte[] password = passwordSupplier.getPassword();
+                        // Getting the password can take a while.
+                        if ((password != null) && !bitsafe.getDeadline().hasPassed()) {
+                            OtpAck.Builder otpAck = OtpAck.newBuilder();
+                            otpAck.setOtp(new String(password));
+                            bitsafe.sendPacket(Packet.PACKET_TYPE_OTP_ACK, otpAck);
+                        } else {
+                            bitsafe.sendPacket(Packet.PACKET_TYPE_OTP_CANCEL, OtpCancel.newBuilder());
+                        }
                     } else {
-                        bitsafe.sendPacket(Packet.PACKET_TYPE_OTP_CANCEL, OtpCancel.newBuilder());
+                        throw new UnexpectedResponseException(p.getType(), "Ping");
                     }
-                } else {
-                    throw new UnexpectedResponseException(p.getType(), "Ping");
                 }
+            } catch (IOException | UnexpectedResponseException | BitSafeFailureException e) {
+                console.log(e);
+            } finally {
+                invalidateWallets();
+                Trace.endOperation(trace);
             }
-        } catch (IOException | UnexpectedResponseException | BitSafeFailureException e) {
-            console.log(e);
         }
     }
 
     public Wallet createWallet(int walletNumber, String walletName, boolean doEncrypt, String password) {
-        NewWallet.Builder newWallet = NewWallet.newBuilder();
-        newWallet.setWalletNumber(walletNumber);
-        if (doEncrypt) {
-            newWallet.setPassword(ByteString.copyFromUtf8(password));
+        synchronized (bitsafe) {
+            NewWallet.Builder newWallet = NewWallet.newBuilder();
+            newWallet.setWalletNumber(walletNumber);
+            if (doEncrypt) {
+                newWallet.setPassword(ByteString.copyFromUtf8(password));
+            }
+            if (walletName != null) {
+                newWallet.setWalletName(ByteString.copyFromUtf8(walletName));
+            }
+            newWallet.setIsHidden(false);
+            Object trace = Trace.beginOperation("NewWallet");
+            try {
+                invalidateWallets();
+                bitsafe.sendPacket(Packet.PACKET_TYPE_NEW_WALLET, newWallet);
+                while (true) {
+                    Packet p = bitsafe.receivePacket();
+                    if (p.getType() == Packet.PACKET_TYPE_SUCCESS) {
+                        return identify(new Wallet(bitsafe, console, walletNumber));
+                    } else if (p.getType() == Packet.PACKET_TYPE_FAILURE) {
+                        throw new BitSafeFailureException(Failure.parseFrom(p.getStorage()));
+                    } else if (p.getType() == Packet.PACKET_TYPE_BUTTON_REQUEST) {
+                        bitsafe.answerButtonRequest();
+                    } else {
+                        throw new UnexpectedResponseException(p.getType(), "Ping");
+                    }
+                }
+            } catch (IOException | UnexpectedResponseException | BitSafeFailureException e) {
+                console.log(e);
+            } finally {
+                Trace.endOperation(trace);
+            }
+            return null;
         }
-        if (walletName != null) {
-            newWallet.setWalletName(ByteString.copyFromUtf8(walletName));
+    }
+
+    /** Tell a wallet its device and wallet UUIDs, if they can be found out,
+     * so that it can check its address file against them.
+     * @return The wallet
+     */
+    private Wallet identify(Wallet w) {
+        if (deviceUuid == null) {
+            return w;
         }
-        newWallet.setIsHidden(false);
-        Packet p = new Packet(Packet.PACKET_TYPE_NEW_WALLET, newWallet.build().toByteArray());
         try {
-            bitsafe.sendPacket(p);
-            while (true) {
-                p = bitsafe.receivePacket();
-                if (p.getType() == Packet.PACKET_TYPE_SUCCESS) {
-                    return new Wallet(bitsafe, console, walletNumber);
+            for (WalletInfo walletInfo : getWallets()) {
+                if (walletInfo.getWalletNumber() == w.getWalletNumber()) {
+                    w.setIdentity(deviceUuid, walletInfo.getWalletUuid());
+                }
+            }
+        } catch (IOException | BitSafeFailureException | UnexpectedResponseException e) {
+            console.log(e);
+        }
+        return w;
+    }
+
+    /** Get public information about all wallets on the device. This is only
+     * asked for once per connection, unless the list has been invalidated
+     * since.
+     * @return One WalletInfo per wallet
+     * @throws IOException
+     * @throws BitSafeFailureException
+     * @throws UnexpectedResponseException
+     */
+    public List<WalletInfo> getWallets()
+            throws IOException, BitSafeFailureException, UnexpectedResponseException {
+        synchronized (bitsafe) {
+            if (wallets != null) {
+                return wallets;
+            }
+            Object trace = Trace.beginOperation("ListWallets");
+            try {
+                Packet p = bitsafe.requestIdempotent(Packet.PACKET_TYPE_LIST_WALLETS, ListWallets.newBuilder());
+                if (p.getType() == Packet.PACKET_TYPE_WALLETS) {
+                    wallets = Wallets.parseFrom(p.getStorage()).getWalletInfoList();
+                    return wallets;
                 } else if (p.getType() == Packet.PACKET_TYPE_FAILURE) {
                     throw new BitSafeFailureException(Failure.parseFrom(p.getStorage()));
-                } else if (p.getType() == Packet.PACKET_TYPE_BUTTON_REQUEST) {
-                    bitsafe.sendPacket(Packet.PACKET_TYPE_BUTTON_ACK, ButtonAck.newBuilder());
                 } else {
-                    throw new UnexpectedResponseException(p.getType(), "Ping");
+                    throw new UnexpectedResponseException(p.getType(), "ListWallets");
                 }
+            } finally {
+                Trace.endOperation(trace);
             }
-        } catch (IOException | UnexpectedResponseException | BitSafeFailureException e) {
-            console.log(e);
         }
-        return null;
     }
 
     public void listWallets() {
         try {
-            bitsafe.sendPacket(Packet.PACKET_TYPE_LIST_WALLETS, ListWallets.newBuilder());
-            Packet p = bitsafe.receivePacket();
-            if (p.getType() == Packet.PACKET_TYPE_WALLETS) {
-                Wallets wallets = Wallets.parseFrom(p.getStorage());
-                console.log("Wallets:\n");
-                Iterator<WalletInfo> iterator = wallets.getWalletInfoList().iterator();
-                while (iterator.hasNext()) {
-                    WalletInfo walletInfo = iterator.next();
-                    String walletName = new String(walletInfo.getWalletName().toByteArray(), Charset.forName("UTF-8"));
-                    console.log(walletInfo.getWalletNumber() + ": " + walletName + "\n");
-                }
-            } else if (p.getType() == Packet.PACKET_TYPE_FAILURE) {
-                throw new BitSafeFailureException(Failure.parseFrom(p.getStorage()));
-            } else {
-                throw new UnexpectedResponseException(p.getType(), "ListWallets");
+            List<WalletInfo> wallets = getWallets();
+            console.log("Wallets:\n");
+            Iterator<WalletInfo> iterator = wallets.iterator();
+            while (iterator.hasNext()) {
+                WalletInfo walletInfo = iterator.next();
+                String walletName = new String(walletInfo.getWalletName().toByteArray(), Charset.forName("UTF-8"));
+                console.log(walletInfo.getWalletNumber() + ": " + walletName + "\n");
             }
         } catch (IOException | BitSafeFailureException | UnexpectedResponseException e) {
             console.log(e);
@@ -175,35 +367,44 @@ public class Session {
     }
 
     public Wallet loadWallet(int walletNumber, PasswordSupplier passwordSupplier) {
-        LoadWallet.Builder loadWallet = LoadWallet.newBuilder();
-        loadWallet.setWalletNumber(walletNumber);
-        Packet p = new Packet(Packet.PACKET_TYPE_LOAD_WALLET, loadWallet.build().toByteArray());
-        try {
-            bitsafe.sendPacket(p);
-            while (true) {
-                p = bitsafe.receivePacket();
-                if (p.getType() == Packet.PACKET_TYPE_SUCCESS) {
-                    return new Wallet(bitsafe, console, walletNumber);
-                } else if (p.getType() == Packet.PACKET_TYPE_FAILURE) {
-                    throw new BitSafeFailureException(Failure.parseFrom(p.getStorage()));
-                } else if (p.getType() == Packet.PACKET_TYPE_PIN_REQUEST) {
-                    // Wallet requires a password.
-                    byte[] password = passwordSupplier.getPassword();
-                    if (password != null) {
-                        PinAck.Builder pinAck = PinAck.newBuilder();
-                        pinAck.setPassword(ByteString.copyFrom(password));
-                        p = new Packet(Packet.PACKET_TYPE_PIN_ACK, pinAck.build().toByteArray());
-                        bitsafe.sendPacket(p);
-                    } else {
-                        bitsafe.sendPacket(Packet.PACKET_TYPE_PIN_CANCEL, PinCancel.newBuilder());
+        synchronized (bitsafe) {
+            LoadWallet.Builder loadWallet = LoadWallet.newBuilder();
+            loadWallet.setWalletNumber(walletNumber);
+            Object trace = Trace.beginOperation("LoadWallet");
+            try {
+                bitsafe.sendPacket(Packet.PACKET_TYPE_LOAD_WALLET, loadWallet);
+                while (true) {
+                    Packet p = bitsafe.receivePacket();
+                    if (p.getType() == Packet.PACKET_TYPE_SUCCESS) {
+                        // The wallet UUID decides whether the address file
+                        // can be trusted without checking it against the
+                        // device. A cached wallet list will do: it was
+                        // fetched during this connection, and every change
+                        // made since (through this session) dropped it.
+                        return identify(new Wallet(bitsafe, console, walletNumber));
+                    } else if (p.getType() == Packet.PACKET_TYPE_FAILURE) {
+                        throw new BitSafeFailureException(Failure.parseFrom(p.getStorage()));
+                    } else if (p.getType() == Packet.PACKET_TYPE_PIN_REQUEST) {
+                        // Wallet requires a password.
+                        byte[] password = passwordSupplier.getPassword();
+                        // Getting the password can take a while.
+                        if ((password != null) && !bitsafe.getDeadline().hasPassed()) {
+                            PinAck.Builder pinAck = PinAck.newBuilder();
+                            pinAck.setPassword(ByteString.copyFrom(password));
+                            bitsafe.sendPacket(Packet.PACKET_TYPE_PIN_ACK, pinAck);
+                        } else {
+                            bitsafe.sendPacket(Packet.PACKET_TYPE_PIN_CANCEL, PinCancel.newBuilder());
+                        }
+                    }  else {
+                        throw new UnexpectedResponseException(p.getType(), "LoadWallet");
                     }
-                }  else {
-                    throw new UnexpectedResponseException(p.getType(), "LoadWallet");
                 }
+            } catch (IOException | BitSafeFailureException | UnexpectedResponseException e) {
+                console.log(e);
+            } finally {
+                Trace.endOperation(trace);
             }
-        } catch (IOException | BitSafeFailureException | UnexpectedResponseException e) {
-            console.log(e);
+            return null;
         }
-        return null;
     }
 }
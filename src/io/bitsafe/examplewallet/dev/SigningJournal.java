@@ -0,0 +1,268 @@
+/* This file is licensed as described by the file LICENCE. */
+
+package io.bitsafe.examplewallet.dev;
+
+import com.google.bitcoin.core.Sha256Hash;
+import io.bitsafe.examplewallet.gui.Console;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/** Signatures which the BitSafe has returned for a transaction that hasn't
+ * been committed yet, kept in a file so that if signing is interrupted
+ * (eg. the program crashes, or the device times out on the 200th input of
+ * a 300 input transaction), the same transaction can be signed again and
+ * only needs the device for the inputs which weren't signed.
+ *
+ * The journal holds one transaction: its serialisation with every input
+ * script blanked (which doesn't change as it gets signed), so that it can
+ * be rebuilt after a restart, and signatures for it keyed by input index
+ * and sighash type. Starting on a different transaction throws away what
+ * was there. Whoever uses a signature from the journal must check that it
+ * is valid, since the journal can't tell whether the key it was made with
+ * is still the right one.
+ *
+ * The transaction and each signature are appended to the file as records
+ * with a CRC, and the file is synced before the signature is used, so a
+ * crash leaves at worst one torn record at the end, which is dropped when
+ * the journal is opened.
+ *
+ * @author Chris Chua
+ */
+class SigningJournal {
+    private static final int HASH_LENGTH = 32;
+    /** Record holding the unsigned transaction. */
+    private static final int TRANSACTION_RECORD = 1;
+    /** Record holding one signature. */
+    private static final int SIGNATURE_RECORD = 2;
+    /** Longest unsigned transaction which is read back; anything longer
+     * means the file is corrupt. */
+    private static final int MAX_TRANSACTION_LENGTH = 4 * 1024 * 1024;
+
+    private final File file;
+    private final Console console;
+    /** Hash of the unsigned transaction the signatures are for, or null. */
+    private Sha256Hash transaction;
+    /** The unsigned transaction, or null. */
+    private byte[] transactionBytes;
+    /** Signatures, by input index and sighash type (see key()). */
+    private final HashMap<Long, byte[]> signatures;
+
+    /** Open a journal, reading whatever is already in it.
+     * @param inFile Journal file; it doesn't have to exist
+     * @param inConsole Where log messages go
+     */
+    SigningJournal(File inFile, Console inConsole) {
+        file = inFile;
+        console = inConsole;
+        signatures = new HashMap<>();
+        if (file.exists()) {
+            try {
+                if (!read()) {
+                    console.log("Signing journal " + file + " ends with a torn record; dropping it\n");
+                    rewrite();
+                }
+            } catch (IOException e) {
+                console.log(e);
+                clear();
+            }
+        }
+    }
+
+    private static long key(int inputIndex, int sigHash) {
+        return ((long)inputIndex << 8) | (sigHash & 0xff);
+    }
+
+    /** Read records until the end of the file. Signatures which don't
+     * belong to the last transaction record before them are ignored.
+     * @return false if the file ends with a partial or corrupt record
+     */
+    private boolean read() throws IOException {
+        CheckedInputStream checked = new CheckedInputStream(new FileInputStream(file), new CRC32());
+        try (DataInputStream in = new DataInputStream(checked)) {
+            byte[] hash = new byte[HASH_LENGTH];
+            while (true) {
+                checked.getChecksum().reset();
+                int type = in.read();
+                if (type < 0) {
+                    return true;
+                }
+                try {
+                    in.readFully(hash);
+                    Sha256Hash recordTransaction = new Sha256Hash(hash.clone());
+                    if (type == TRANSACTION_RECORD) {
+                        int length = in.readInt();
+                        if ((length < 0) || (length > MAX_TRANSACTION_LENGTH)) {
+                            return false;
+                        }
+                        byte[] bytes = new byte[length];
+                        in.readFully(bytes);
+                        if (!checksumMatches(checked, in)) {
+                            return false;
+                        }
+                        transaction = recordTransaction;
+                        transactionBytes = bytes;
+                        signatures.clear();
+                    } else if (type == SIGNATURE_RECORD) {
+                        int inputIndex = in.readInt();
+                        int sigHash = in.readUnsignedByte();
+                        byte[] signature = new byte[in.readUnsignedShort()];
+                        in.readFully(signature);
+                        if (!checksumMatches(checked, in)) {
+                            return false;
+                        }
+                        if (recordTransaction.equals(transaction)) {
+                            signatures.put(key(inputIndex, sigHash), signature);
+                        }
+                    } else {
+                        return false;
+                    }
+                } catch (EOFException e) {
+                    return false;
+                }
+            }
+        }
+    }
+
+    /** Read the CRC at the end of a record and compare it with the one
+     * worked out over the rest of the record. */
+    private static boolean checksumMatches(CheckedInputStream checked, DataInputStream in) throws IOException {
+        long expected = checked.getChecksum().getValue();
+        return (in.readInt() & 0xffffffffL) == expected;
+    }
+
+    private static byte[] transactionRecord(Sha256Hash transaction, byte[] transactionBytes) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(transactionBytes.length + 64);
+        CheckedOutputStream checked = new CheckedOutputStream(bytes, new CRC32());
+        DataOutputStream out = new DataOutputStream(checked);
+        out.writeByte(TRANSACTION_RECORD);
+        out.write(transaction.getBytes());
+        out.writeInt(transactionBytes.length);
+        out.write(transactionBytes);
+        out.writeInt((int)checked.getChecksum().getValue());
+        return bytes.toByteArray();
+    }
+
+    private static byte[] signatureRecord(Sha256Hash transaction, int inputIndex, int sigHash, byte[] signature)
+            throws IOException {
+        if (signature.length > 0xffff) {
+            throw new IOException("Signature is " + signature.length + " bytes long");
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CheckedOutputStream checked = new CheckedOutputStream(bytes, new CRC32());
+        DataOutputStream out = new DataOutputStream(checked);
+        out.writeByte(SIGNATURE_RECORD);
+        out.write(transaction.getBytes());
+        out.writeInt(inputIndex);
+        out.writeByte(sigHash);
+        out.writeShort(signature.length);
+        out.write(signature);
+        out.writeInt((int)checked.getChecksum().getValue());
+        return bytes.toByteArray();
+    }
+
+    /** Write the file again with just the transaction and signatures which
+     * were read. */
+    private void rewrite() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        if (transaction != null) {
+            bytes.write(transactionRecord(transaction, transactionBytes));
+            for (Map.Entry<Long, byte[]> e : signatures.entrySet()) {
+                bytes.write(signatureRecord(transaction, (int)(e.getKey() >>> 8), (int)(e.getKey() & 0xff),
+                        e.getValue()));
+            }
+        }
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            bytes.writeTo(fos);
+            fos.getFD().sync();
+        }
+    }
+
+    private void append(byte[] record) throws IOException {
+        try (FileOutputStream fos = new FileOutputStream(file, true)) {
+            fos.write(record);
+            fos.getFD().sync();
+        }
+    }
+
+    /** Start (or carry on) signing a transaction. If the journal holds a
+     * different transaction, it and its signatures are thrown away and the
+     * new one is written in their place.
+     * @param unsignedHash Hash of the transaction with every input script
+     *                     blanked
+     * @param unsignedTransaction Serialisation of the transaction with every
+     *                            input script blanked
+     * @throws IOException If the transaction couldn't be written; the
+     *                     journal still takes signatures, but they won't
+     *                     survive a restart
+     */
+    public void begin(Sha256Hash unsignedHash, byte[] unsignedTransaction) throws IOException {
+        if (unsignedHash.equals(transaction)) {
+            return;
+        }
+        clear();
+        transaction = unsignedHash;
+        transactionBytes = unsignedTransaction;
+        append(transactionRecord(unsignedHash, unsignedTransaction));
+    }
+
+    /** Get the number of signatures held for the current transaction. */
+    public int size() {
+        return signatures.size();
+    }
+
+    /** Get a signature for an input of the current transaction.
+     * @return The signature, or null if the journal doesn't have one
+     */
+    public byte[] get(int inputIndex, int sigHash) {
+        return signatures.get(key(inputIndex, sigHash));
+    }
+
+    /** Add a signature for an input of the current transaction. This
+     * returns once the signature is on disk.
+     * @param inputIndex Which input was signed
+     * @param sigHash Sighash type of the signature
+     * @param signature Bitcoin-encoded signature from the device
+     * @throws IOException If the journal couldn't be written
+     */
+    public void put(int inputIndex, int sigHash, byte[] signature) throws IOException {
+        if (transaction == null) {
+            throw new IllegalStateException("No transaction has been begun");
+        }
+        append(signatureRecord(transaction, inputIndex, sigHash, signature));
+        signatures.put(key(inputIndex, sigHash), signature);
+    }
+
+    /** Throw away the transaction and every signature, eg. once the
+     * transaction has been committed. */
+    public void clear() {
+        transaction = null;
+        transactionBytes = null;
+        signatures.clear();
+        if (file.exists() && !file.delete()) {
+            console.log("Couldn't delete signing journal " + file + "\n");
+        }
+    }
+
+    /** Get the hash of the unsigned transaction which the journal holds
+     * signatures for, or null if it is empty. */
+    public Sha256Hash getTransaction() {
+        return transaction;
+    }
+
+    /** Get the serialisation of the unsigned transaction which the journal
+     * holds, or null if it is empty. This must not be modified. */
+    public byte[] getTransactionBytes() {
+        return transactionBytes;
+    }
+}
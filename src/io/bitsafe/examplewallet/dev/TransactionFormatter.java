@@ -9,6 +9,8 @@ import com.google.bitcoin.crypto.TransactionSignature;
 import com.google.bitcoin.script.Script;
 import com.google.bitcoin.script.ScriptOpCodes;
 import io.bitsafe.examplewallet.bitcoin.BitcoinJInterface;
+import io.bitsafe.examplewallet.bitcoin.SupportingTransactionCache;
+import io.bitsafe.examplewallet.jfr.Trace;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -23,8 +25,10 @@ public class TransactionFormatter {
         // Write BitSafe supporting transaction header.
         os.write(0x01); // is_ref = 1 (is supporting transaction)
         Utils.uint32ToByteStreamLE(ti.getOutpoint().getIndex(), os);
-        // Write serialised supporting transaction.
-        ti.getOutpoint().getConnectedOutput().getParentTransaction().bitcoinSerialize(os);
+        // Write serialised supporting transaction. The same parents come up
+        // for every input, and often for many transactions in a row.
+        os.write(SupportingTransactionCache.SHARED.serialize(
+                ti.getOutpoint().getConnectedOutput().getParentTransaction()));
     }
 
     /** Get old (Bitcoin serialisation) transaction data for BitSafe
@@ -37,6 +41,7 @@ public class TransactionFormatter {
      * @warning This will mangle the input scripts of t
      */
     public static byte[] getSignTransactionStream(Transaction t, int inputIndex) throws IOException {
+        Object trace = Trace.beginSignStream(inputIndex);
         ByteArrayOutputStream os = new ByteArrayOutputStream();
         Iterator<TransactionInput> iterator = t.getInputs().iterator();
         while (iterator.hasNext()) {
@@ -59,6 +64,8 @@ public class TransactionFormatter {
         int hashType = TransactionSignature.calcSigHashValue(Transaction.SigHash.ALL, false);
         Utils.uint32ToByteStreamLE(hashType & 0x000000ff, os);
 
-        return os.toByteArray();
+        byte[] stream = os.toByteArray();
+        Trace.endSignStream(trace, t.getInputs().size(), stream.length);
+        return stream;
     }
 }
@@ -3,13 +3,17 @@
 package io.bitsafe.examplewallet.dev;
 
 import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.ProtocolException;
+import com.google.bitcoin.core.Sha256Hash;
 import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionInput;
 import com.google.bitcoin.crypto.TransactionSignature;
+import com.google.bitcoin.script.Script;
 import com.google.bitcoin.script.ScriptBuilder;
 import com.google.protobuf.ByteString;
 import io.bitsafe.examplewallet.bitcoin.AddressGenerator;
 import io.bitsafe.examplewallet.bitcoin.TransactionSigner;
-import io.bitsafe.examplewallet.dev.Messages.ButtonAck;
 import io.bitsafe.examplewallet.dev.Messages.Failure;
 import io.bitsafe.examplewallet.dev.Messages.GetNumberOfAddresses;
 import io.bitsafe.examplewallet.dev.Messages.NewAddress;
@@ -17,6 +21,9 @@ import io.bitsafe.examplewallet.dev.Messages.NumberOfAddresses;
 import io.bitsafe.examplewallet.dev.Messages.SignTransaction;
 import io.bitsafe.examplewallet.dev.Messages.Signature;
 import io.bitsafe.examplewallet.gui.Console;
+import io.bitsafe.examplewallet.jfr.Trace;
+import io.bitsafe.examplewallet.metrics.Metrics;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -24,9 +31,32 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import org.spongycastle.util.Arrays;
-/**
+/** A BitSafe wallet. All methods which talk to the device or touch the
+ * address list are synchronized, since keys may be generated from a
+ * background thread (see AddressPool) while a transaction is being signed.
+ * Methods which talk to the device also hold the PacketWrapper's monitor,
+ * which is shared with the Session and any other wallet on the device.
+ *
+ * The address file records which device and wallet (by UUID) the addresses
+ * came from, so that sync() only has to fetch addresses which are new since
+ * the file was saved, and can tell when the wallet on the device has been
+ * replaced (eg. wiped, or restored from a different backup), in which case
+ * every address is fetched again.
+ *
+ * Addresses are kept in an AddressTable rather than as Address objects, so
+ * that wallets with very many addresses don't take up much of the heap.
+ *
+ * If a SigningJournal has been opened (see openSigningJournal()), the
+ * unsigned transaction and every signature the device returns are recorded
+ * in it until the transaction is committed, so that after an interruption
+ * the same transaction can be picked up again (see
+ * getUnfinishedTransaction()) and signing it skips the inputs which were
+ * already signed.
  *
  * @author Chris Chua
  */
@@ -36,48 +66,196 @@ public class Wallet implements AddressGenerator, TransactionSigner {
     private transient final Console console;
     private final int walletNumber;
 
+    /** Marks an address file which starts with device and wallet UUIDs.
+     * Older address files start with the number of addresses instead. */
+    private static final int FILE_FORMAT_WITH_UUIDS = -2;
+    /** Like FILE_FORMAT_WITH_UUIDS, but the addresses are an AddressTable
+     * instead of a list of Address objects. */
+    private static final int FILE_FORMAT_TABLE = -3;
+    /** Like FILE_FORMAT_TABLE, but followed by the hash160s of unused
+     * addresses. */
+    private static final int FILE_FORMAT_UNUSED = -4;
+    /** Every input is signed with SIGHASH_ALL; see TransactionFormatter. */
+    private static final int SIGHASH_ALL = TransactionSignature.calcSigHashValue(Transaction.SigHash.ALL, false);
+
     private int numberOfAddresses;
-    private ArrayList<Address> addresses;
+    private AddressTable addresses;
+    /** UUIDs of the device and of this wallet on it, or null if they aren't
+     * known. */
+    private byte[] deviceUuid;
+    private byte[] walletUuid;
+    /** UUIDs of the device and wallet which the addresses came from, or
+     * null if they aren't known (eg. the address file is an old one). */
+    private byte[] addressesDeviceUuid;
+    private byte[] addressesWalletUuid;
+    /** Hash160s, one after another, of addresses which were generated for
+     * an AddressPool but never handed out; see setUnusedKeys(). */
+    private byte[] unusedHash160s;
+    /** Signatures for the transaction being signed, or null if they
+     * aren't being kept. */
+    private transient SigningJournal journal;
+    /** Transaction most recently signed in full, until it is committed. */
+    private transient Transaction signed;
 
     public Wallet(PacketWrapper inBitsafe, Console inConsole, int inWalletNumber) {
         bitsafe = inBitsafe;
         console = inConsole;
         walletNumber = inWalletNumber;
-        addresses = new ArrayList<>();
+        addresses = new AddressTable();
+        unusedHash160s = new byte[0];
     }
 
+    /** Tell the wallet which device it is on, and its UUID there.
+     * @param inDeviceUuid From GetDeviceUUID
+     * @param inWalletUuid From the wallet's WalletInfo
+     */
+    synchronized void setIdentity(ByteString inDeviceUuid, ByteString inWalletUuid) {
+        deviceUuid = inDeviceUuid.toByteArray();
+        walletUuid = inWalletUuid.toByteArray();
+    }
+
+    /** Bring the address list up to date with the device, and make sure
+     * the bitcoinj wallet has keys for all addresses. If the address list
+     * was loaded from a file which matches the wallet on the device, this
+     * costs one round trip, plus one per new address.
+     */
     // Should this be done in constructor? It can take a long time, especially
     // if the wallet has lots of addresses.
-    public void sync(com.google.bitcoin.core.Wallet bitcoinjWallet) {
-        try {
-            // Synchronise number of addresses.
-            bitsafe.sendPacket(Packet.PACKET_TYPE_GET_NUM_ADDRESSES, GetNumberOfAddresses.newBuilder());
-            Packet p = bitsafe.receivePacket();
-            if (p.getType() == Packet.PACKET_TYPE_NUM_ADDRESSES) {
-                NumberOfAddresses numAddresses = NumberOfAddresses.parseFrom(p.getStorage());
-                numberOfAddresses = numAddresses.getNumberOfAddresses();
-            } else if (p.getType() == Packet.PACKET_TYPE_FAILURE) {
-                throw new BitSafeFailureException(Messages.Failure.parseFrom(p.getStorage()));
-            } else {
-                throw new UnexpectedResponseException(p.getType(), "GetNumberOfAddresses");
-            }
-            // Get all addresses that we don't have.
-            for (int i = addresses.size(); i < numberOfAddresses; i++) {
-                // Address handles start at 1 and are sequential.
-                Address addr = new Address(i + 1, bitsafe, console);
-                addresses.add(addr);
-            }
-        } catch (IOException | BitSafeFailureException | UnexpectedResponseException e) {
-            console.log(e);
+    public synchronized void sync(com.google.bitcoin.core.Wallet bitcoinjWallet) {
+        synchronized (bitsafe) {
+            Object trace = Trace.beginOperation("Sync");
+            AddressTable replaced = null;
+            int known = 0;
+            boolean complete = false;
+            try {
+                // Synchronise number of addresses.
+                Packet p = bitsafe.requestIdempotent(Packet.PACKET_TYPE_GET_NUM_ADDRESSES,
+                        GetNumberOfAddresses.newBuilder());
+                int target;
+                if (p.getType() == Packet.PACKET_TYPE_NUM_ADDRESSES) {
+                    NumberOfAddresses numAddresses = NumberOfAddresses.parseFrom(p.getStorage());
+                    target = numAddresses.getNumberOfAddresses();
+                    numberOfAddresses = target;
+                } else if (p.getType() == Packet.PACKET_TYPE_FAILURE) {
+                    throw new BitSafeFailureException(Messages.Failure.parseFrom(p.getStorage()));
+                } else {
+                    throw new UnexpectedResponseException(p.getType(), "GetNumberOfAddresses");
+                }
+                if (!addressesMatch(target)) {
+                    console.log("Address file doesn't match wallet " + walletNumber
+                            + " on the device; fetching all addresses again\n");
+                    replaced = addresses;
+                    addresses = new AddressTable();
+                    unusedHash160s = new byte[0];
+                }
+                addressesDeviceUuid = deviceUuid;
+                addressesWalletUuid = walletUuid;
+                known = addresses.size();
+                // Get all addresses that we don't have. If this is background
+                // work, a DeviceScheduler may generate new addresses on this
+                // thread in the meantime; those come after the ones being
+                // fetched, so the fetched ones are put in front of them.
+                int first = addresses.size();
+                AddressTable fetched = new AddressTable(target - first);
+                try {
+                    for (int i = first; i < target; i++) {
+                        // Address handles start at 1 and are sequential.
+                        fetched.add(new Address(i + 1, bitsafe, console));
+                        Metrics.ADDRESSES_SYNCED.inc();
+                    }
+                } finally {
+                    addresses.addAll(first, fetched);
+                }
+                complete = true;
+            } catch (IOException | BitSafeFailureException | UnexpectedResponseException e) {
+                console.log(e);
+            } finally {
+                Trace.endOperation(trace);
+            }
+
+            if ((replaced != null) && complete) {
+                removeKeys(bitcoinjWallet, replaced);
+            }
+            // Ensure the bitcoinj wallet has all the keys in there.
+            importKeys(bitcoinjWallet, known);
+        }
+    }
+
+    /** Check whether the address list belongs to the wallet on the device,
+     * as far as can be told. If the UUIDs it came from aren't known, the
+     * last address is fetched from the device and compared.
+     * @param deviceCount Number of addresses the device has
+     */
+    private boolean addressesMatch(int deviceCount)
+            throws IOException, BitSafeFailureException, UnexpectedResponseException {
+        if (addresses.isEmpty()) {
+            return true;
+        }
+        if (deviceCount < addresses.size()) {
+            return false;
+        }
+        if ((walletUuid != null) && (addressesWalletUuid != null)) {
+            return Arrays.areEqual(deviceUuid, addressesDeviceUuid)
+                    && Arrays.areEqual(walletUuid, addressesWalletUuid);
+        }
+        int last = addresses.size() - 1;
+        Address onDevice = new Address(addresses.getAddressHandle(last), bitsafe, console);
+        return addresses.indexOf(onDevice.getAddress()) == last;
+    }
+
+    /** Remove keys for addresses which are no longer in the wallet from a
+     * bitcoinj wallet.
+     * @param bitcoinjWallet The bitcoinj wallet to remove keys from
+     * @param old Addresses the wallet used to have
+     */
+    private void removeKeys(com.google.bitcoin.core.Wallet bitcoinjWallet, AddressTable old) {
+        int removed = 0;
+        for (int i = 0; i < old.size(); i++) {
+            if ((addresses.indexOf(old.getAddress(i)) < 0) && bitcoinjWallet.removeKey(old.toECKey(i))) {
+                removed++;
+            }
         }
+        if (removed > 0) {
+            console.log("Removed " + removed + " keys which are no longer in wallet " + walletNumber + "\n");
+        }
+    }
 
-        // Ensure the bitcoinj wallet has all the keys in there.
-        for (int i = 0; i < numberOfAddresses; i++) {
-            Address addr = addresses.get(i);
-            if (addr != null) {
-                bitcoinjWallet.addKey(addresses.get(i).toECKey());
+    /** Add keys for all known addresses to a bitcoinj wallet, skipping the
+     * ones it already has. Keys are added in one batch, so that bitcoinj
+     * only recalculates its bloom filter once.
+     * @param bitcoinjWallet The bitcoinj wallet to add keys to
+     * @param imported Number of addresses, from the start of the list, which
+     *                 the bitcoinj wallet has probably been given before. If
+     *                 it has the last of them, none of them are checked.
+     * @return Number of keys which were added
+     */
+    private int importKeys(com.google.bitcoin.core.Wallet bitcoinjWallet, int imported) {
+        int count = Math.min(numberOfAddresses, addresses.size());
+        int from = 0;
+        if ((imported > 0) && (imported <= count) && (bitcoinjWallet.getKeychainSize() >= imported)
+                && (bitcoinjWallet.findKeyFromPubHash(addresses.getAddress(imported - 1)) != null)) {
+            from = imported;
+        }
+        if (from == count) {
+            return 0;
+        }
+        // Compare by hash160, which bitcoinj caches for existing keys and
+        // which is already stored in the table, so no ECKey needs to be
+        // constructed for addresses that bitcoinj already knows about.
+        HashSet<ByteBuffer> knownHashes = new HashSet<>();
+        for (ECKey key : bitcoinjWallet.getKeys()) {
+            knownHashes.add(ByteBuffer.wrap(key.getPubKeyHash()));
+        }
+        ArrayList<ECKey> newKeys = new ArrayList<>();
+        for (int i = from; i < count; i++) {
+            if (knownHashes.add(ByteBuffer.wrap(addresses.getAddress(i)))) {
+                newKeys.add(addresses.toECKey(i));
             }
         }
+        if (newKeys.isEmpty()) {
+            return 0;
+        }
+        return bitcoinjWallet.addKeys(newKeys);
     }
 
     public static File getWalletFile(String directoryPrefix, String filePrefix, int inWalletNumber) {
@@ -85,26 +263,68 @@ public class Wallet implements AddressGenerator, TransactionSigner {
         return new File(directory, filePrefix + ".addresses" + inWalletNumber);
     }
 
-    public void saveToFile(String directoryPrefix, String filePrefix) {
+    public synchronized void saveToFile(String directoryPrefix, String filePrefix) {
         File f = getWalletFile(directoryPrefix, filePrefix, walletNumber);
+        long start = System.nanoTime();
         try {
             FileOutputStream fos = new FileOutputStream(f);
             try (ObjectOutputStream oos = new ObjectOutputStream(fos)) {
+                oos.writeInt(FILE_FORMAT_UNUSED);
+                oos.writeObject(addressesDeviceUuid);
+                oos.writeObject(addressesWalletUuid);
                 oos.writeInt(numberOfAddresses);
                 oos.writeObject(addresses);
+                oos.writeObject(unusedHash160s);
             }
         } catch (IOException e) {
             console.log(e);
+        } finally {
+            Metrics.ADDRESS_SAVE_DURATION.recordSince(start);
+        }
+    }
+
+    public static File getJournalFile(String directoryPrefix, String filePrefix, int inWalletNumber) {
+        File directory = new File(directoryPrefix);
+        return new File(directory, filePrefix + ".signatures" + inWalletNumber);
+    }
+
+    /** Start keeping signatures in a journal next to the address file, and
+     * pick up any left there by signing which was interrupted.
+     */
+    public synchronized void openSigningJournal(String directoryPrefix, String filePrefix) {
+        journal = new SigningJournal(getJournalFile(directoryPrefix, filePrefix, walletNumber), console);
+        if (journal.getTransaction() != null) {
+            console.log("Signing journal has an unfinished transaction " + journal.getTransaction()
+                    + " with " + journal.size() + " signatures\n");
         }
     }
 
-    public void loadFromFile(String directoryPrefix, String filePrefix) {
+    public synchronized void loadFromFile(String directoryPrefix, String filePrefix) {
         File f = getWalletFile(directoryPrefix, filePrefix, walletNumber);
         try {
             FileInputStream fis = new FileInputStream(f);
             try (ObjectInputStream ois = new ObjectInputStream(fis)) {
-                numberOfAddresses = ois.readInt();
-                addresses = (ArrayList<Address>)ois.readObject();
+                int first = ois.readInt();
+                if ((first == FILE_FORMAT_UNUSED) || (first == FILE_FORMAT_TABLE)
+                        || (first == FILE_FORMAT_WITH_UUIDS)) {
+                    addressesDeviceUuid = (byte[])ois.readObject();
+                    addressesWalletUuid = (byte[])ois.readObject();
+                    numberOfAddresses = ois.readInt();
+                } else {
+                    addressesDeviceUuid = null;
+                    addressesWalletUuid = null;
+                    numberOfAddresses = first;
+                }
+                if ((first == FILE_FORMAT_UNUSED) || (first == FILE_FORMAT_TABLE)) {
+                    addresses = (AddressTable)ois.readObject();
+                } else {
+                    addresses = AddressTable.fromList((ArrayList<Address>)ois.readObject());
+                }
+                if (first == FILE_FORMAT_UNUSED) {
+                    unusedHash160s = (byte[])ois.readObject();
+                } else {
+                    unusedHash160s = new byte[0];
+                }
             }
         } catch (IOException | ClassNotFoundException e) {
             console.log(e);
@@ -112,118 +332,248 @@ public class Wallet implements AddressGenerator, TransactionSigner {
     }
 
     @Override
-    public ECKey generateNewKey() {
-        try {
-            bitsafe.sendPacket(Packet.PACKET_TYPE_NEW_ADDRESS, NewAddress.newBuilder());
-            while (true) {
-                Packet p = bitsafe.receivePacket();
-                if (p.getType() == Packet.PACKET_TYPE_ADDRESS_PUBKEY) {
-                    Messages.Address addrM = Messages.Address.parseFrom(p.getStorage());
-                    Address newAddr = new Address(
-                            addrM.getAddressHandle(),
-                            addrM.getPublicKey().toByteArray(),
-                            addrM.getAddress().toByteArray());
-                    addresses.add(newAddr);
-                    numberOfAddresses++;
-                    return newAddr.toECKey();
-                } else if (p.getType() == Packet.PACKET_TYPE_FAILURE) {
-                    throw new BitSafeFailureException(Messages.Failure.parseFrom(p.getStorage()));
-                } else if (p.getType() == Packet.PACKET_TYPE_BUTTON_REQUEST) {
-                    bitsafe.sendPacket(Packet.PACKET_TYPE_BUTTON_ACK, ButtonAck.newBuilder());
-                } else {
-                    throw new UnexpectedResponseException(p.getType(), "NewAddress");
+    public synchronized ECKey generateNewKey() {
+        synchronized (bitsafe) {
+            Object trace = Trace.beginOperation("NewAddress");
+            try {
+                bitsafe.sendPacket(Packet.PACKET_TYPE_NEW_ADDRESS, NewAddress.newBuilder());
+                while (true) {
+                    Packet p = bitsafe.receivePacket();
+                    if (p.getType() == Packet.PACKET_TYPE_ADDRESS_PUBKEY) {
+                        Address newAddr = Address.parseFrom(p);
+                        addresses.add(newAddr);
+                        numberOfAddresses++;
+                        return newAddr.toECKey();
+                    } else if (p.getType() == Packet.PACKET_TYPE_FAILURE) {
+                        throw new BitSafeFailureException(Messages.Failure.parseFrom(p.getStorage()));
+                    } else if (p.getType() == Packet.PACKET_TYPE_BUTTON_REQUEST) {
+                        bitsafe.answerButtonRequest();
+                    } else {
+                        throw new UnexpectedResponseException(p.getType(), "NewAddress");
+                    }
                 }
+            } catch (IOException | BitSafeFailureException | UnexpectedResponseException e) {
+                console.log(e);
+            } finally {
+                Trace.endOperation(trace);
             }
-        } catch (IOException | BitSafeFailureException | UnexpectedResponseException e) {
-            console.log(e);
+            return null;
         }
-        return null;
     }
 
-    public ArrayList<Address> getAddresses() {
-        return addresses;
+    /** Get a snapshot of all known addresses. Addresses can be added by other
+     * threads (eg. an AddressPool refill), so this returns a copy. An
+     * Address is made for every address, so for a big wallet, this takes
+     * far more memory than the wallet itself.
+     */
+    public synchronized ArrayList<Address> getAddresses() {
+        return addresses.toList();
     }
 
-    public int getWalletNumber() {
-        return walletNumber;
+    public synchronized int getAddressCount() {
+        return addresses.size();
     }
 
-    private Address getAddressByHash160(byte[] in) {
-        // TODO: use HashMap for addresses
-        for (int i = 0; i < addresses.size(); i++) {
-            Address a = addresses.get(i);
-            if (Arrays.areEqual(in, a.getAddress())) {
-                return a;
+    /** Remember keys of this wallet which were generated for an
+     * AddressPool but never handed out (see AddressPool.takeUnused()), so
+     * that the next pool can start with them instead of using up more of
+     * the device's addresses. They are kept in the address file, replacing
+     * any remembered before.
+     * @param keys The unused keys; keys which aren't in this wallet are
+     *             ignored
+     */
+    public synchronized void setUnusedKeys(List<ECKey> keys) {
+        ByteArrayOutputStream hashes = new ByteArrayOutputStream(keys.size() * AddressTable.HASH160_LENGTH);
+        for (ECKey key : keys) {
+            byte[] hash160 = key.getPubKeyHash();
+            if (addresses.indexOf(hash160) >= 0) {
+                hashes.write(hash160, 0, hash160.length);
             }
         }
-        return null;
+        unusedHash160s = hashes.toByteArray();
     }
 
-    @Override
-    public boolean signTransaction(Transaction t, com.google.bitcoin.core.Wallet w) {
-        int numInputs = t.getInputs().size();
-        byte[][] signatures = new byte[numInputs][];
-        ECKey[] pubKeys = new ECKey[numInputs];
-        boolean[] signaturesValid = new boolean[numInputs];
-
-        for (int i = 0; i < numInputs; i++) {
-            signaturesValid[i] = false;
+    /** Get the keys remembered by setUnusedKeys(), and forget them, so
+     * that they are only handed to one pool. The address file should be
+     * saved once the pool has been made, otherwise they could be handed
+     * out again after a restart.
+     * @return The unused keys, which may be empty
+     */
+    public synchronized List<ECKey> takeUnusedKeys() {
+        ArrayList<ECKey> keys = new ArrayList<>();
+        for (int offset = 0; offset < unusedHash160s.length; offset += AddressTable.HASH160_LENGTH) {
+            int row = addresses.indexOf(Arrays.copyOfRange(unusedHash160s, offset,
+                    offset + AddressTable.HASH160_LENGTH));
+            if (row >= 0) {
+                keys.add(addresses.toECKey(row));
+            }
         }
+        unusedHash160s = new byte[0];
+        return keys;
+    }
+
+    public int getWalletNumber() {
+        return walletNumber;
+    }
+
+    /** Package-private so that it can be benchmarked. */
+    Address getAddressByHash160(byte[] in) {
+        int row = addresses.indexOf(in);
+        return (row < 0) ? null : addresses.get(row);
+    }
+
+    @Override
+    public synchronized boolean signTransaction(Transaction t, com.google.bitcoin.core.Wallet w) {
+        synchronized (bitsafe) {
+            int numInputs = t.getInputs().size();
+            byte[][] signatures = new byte[numInputs][];
+            ECKey[] pubKeys = new ECKey[numInputs];
+            boolean[] signaturesValid = new boolean[numInputs];
 
-        // Collect Bitcoin-encoded signatures from BitSafe.
-        try {
             for (int i = 0; i < numInputs; i++) {
-                // getSignTransactionStream mangles the input scripts of t.
-                // But that doesn't matter since the actual signatures are
-                // included in a separate loop below.
-                byte[] transactionData = TransactionFormatter.getSignTransactionStream(t, i);
-                SignTransaction.Builder signTransaction = SignTransaction.newBuilder();
-                ECKey key = t.getInput(i).getOutpoint().getConnectedKey(w);
-                pubKeys[i] = key;
-                // TODO: deal with possible null
-                signTransaction.setAddressHandle(getAddressByHash160(key.getPubKeyHash()).getAddressHandle());
-                signTransaction.setTransactionData(ByteString.copyFrom(transactionData));
-                Packet p = new Packet(Packet.PACKET_TYPE_SIGN_TRANSACTION, signTransaction.build().toByteArray());
-                bitsafe.sendPacket(p);
-                while (true) {
-                    p = bitsafe.receivePacket();
-                    if (p.getType() == Packet.PACKET_TYPE_SIGNATURE) {
-                        Signature signature = Signature.parseFrom(p.getStorage());
-                        signatures[i] = signature.getSignatureData().toByteArray();
-                        signaturesValid[i] = true;
-                        break;
-                    } else if (p.getType() == Packet.PACKET_TYPE_FAILURE) {
-                        throw new BitSafeFailureException(Failure.parseFrom(p.getStorage()));
-                    } else if (p.getType() == Packet.PACKET_TYPE_BUTTON_REQUEST) {
-                        bitsafe.sendPacket(Packet.PACKET_TYPE_BUTTON_ACK, ButtonAck.newBuilder());
-                    } else {
-                        throw new UnexpectedResponseException(p.getType(), "SignTransaction");
+                signaturesValid[i] = false;
+            }
+
+            if (journal != null) {
+                // The input scripts are blanked while signing anyway; doing it
+                // first means the hash is the same however far signing got.
+                for (int i = 0; i < numInputs; i++) {
+                    t.getInput(i).setScriptSig(new Script(new byte[0]));
+                }
+                try {
+                    journal.begin(t.getHash(), t.bitcoinSerialize());
+                } catch (IOException e) {
+                    // Signing can go ahead; it just can't be picked up again
+                    // after a restart.
+                    console.log(e);
+                }
+            }
+            int resumed = 0;
+
+            // Collect Bitcoin-encoded signatures from BitSafe.
+            Object trace = Trace.beginOperation("SignTransaction");
+            try {
+                for (int i = 0; i < numInputs; i++) {
+                    ECKey key = t.getInput(i).getOutpoint().getConnectedKey(w);
+                    pubKeys[i] = key;
+                    if (journal != null) {
+                        byte[] journaled = journal.get(i, SIGHASH_ALL);
+                        if ((journaled != null) && isValidSignature(t, i, key, journaled)) {
+                            signatures[i] = journaled;
+                            signaturesValid[i] = true;
+                            resumed++;
+                            continue;
+                        }
                     }
+                    // getSignTransactionStream mangles the input scripts of t.
+                    // But that doesn't matter since the actual signatures are
+                    // included in a separate loop below.
+                    byte[] transactionData = TransactionFormatter.getSignTransactionStream(t, i);
+                    SignTransaction.Builder signTransaction = SignTransaction.newBuilder();
+                    // TODO: deal with possible null
+                    signTransaction.setAddressHandle(getAddressByHash160(key.getPubKeyHash()).getAddressHandle());
+                    signTransaction.setTransactionData(ByteString.copyFrom(transactionData));
+                    bitsafe.sendPacket(Packet.PACKET_TYPE_SIGN_TRANSACTION, signTransaction);
+                    while (true) {
+                        Packet p = bitsafe.receivePacket();
+                        if (p.getType() == Packet.PACKET_TYPE_SIGNATURE) {
+                            signatures[i] = p.getBytesField(Signature.SIGNATURE_DATA_FIELD_NUMBER);
+                            signaturesValid[i] = true;
+                            Metrics.SIGNATURES.inc();
+                            journalSignature(i, signatures[i]);
+                            break;
+                        } else if (p.getType() == Packet.PACKET_TYPE_FAILURE) {
+                            throw new BitSafeFailureException(Failure.parseFrom(p.getStorage()));
+                        } else if (p.getType() == Packet.PACKET_TYPE_BUTTON_REQUEST) {
+                            bitsafe.answerButtonRequest();
+                        } else {
+                            throw new UnexpectedResponseException(p.getType(), "SignTransaction");
+                        }
+                    }
+                }
+            } catch (IOException | BitSafeFailureException | UnexpectedResponseException e) {
+                console.log(e);
+                return false;
+            } finally {
+                Trace.endOperation(trace);
+                if (resumed > 0) {
+                    console.log("Used " + resumed + " signatures from the signing journal\n");
                 }
             }
-        } catch (IOException | BitSafeFailureException | UnexpectedResponseException e) {
-            console.log(e);
-            return false;
+
+            // Sanity check.
+            for (int i = 0; i < numInputs; i++) {
+                if (!signaturesValid[i]) {
+                    return false;
+                }
+            }
+
+            console.log("Sent:\n");
+            for (int i = 0; i < t.getOutputs().size(); i++) {
+                console.log(t.getOutput(i) + "\n");
+            }
+
+            // Include signatures in transaction.
+            for (int i = 0; i < numInputs; i++) {
+                TransactionSignature txSig = TransactionSignature.decodeFromBitcoin(signatures[i], true);
+                t.getInput(i).setScriptSig(ScriptBuilder.createInputScript(txSig, pubKeys[i]));
+            }
+            signed = t;
+            return true;
         }
+    }
 
-        // Sanity check.
-        for (int i = 0; i < numInputs; i++) {
-            if (!signaturesValid[i]) {
+    /** Check a signature from the journal, since it may have been made
+     * with a key other than the one which the input needs now. */
+    private static boolean isValidSignature(Transaction t, int inputIndex, ECKey key, byte[] signature) {
+        TransactionInput input = t.getInput(inputIndex);
+        try {
+            TransactionSignature txSig = TransactionSignature.decodeFromBitcoin(signature, true);
+            if (txSig.sighashFlags != SIGHASH_ALL) {
                 return false;
             }
+            Sha256Hash hash = t.hashForSignature(inputIndex,
+                    input.getOutpoint().getConnectedOutput().getScriptBytes(), Transaction.SigHash.ALL, false);
+            return key.verify(hash, txSig);
+        } catch (RuntimeException e) {
+            // Undecodable signatures are just not used.
+            return false;
         }
+    }
+
+    private void journalSignature(int inputIndex, byte[] signature) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.put(inputIndex, SIGHASH_ALL, signature);
+        } catch (IOException e) {
+            // The signature is still good; it just can't be reused if
+            // signing is interrupted.
+            console.log(e);
+        }
+    }
 
-        console.log("Sent:\n");
-        for (int i = 0; i < t.getOutputs().size(); i++) {
-            console.log(t.getOutput(i) + "\n");
+    @Override
+    public synchronized void transactionCommitted(Transaction t) {
+        if ((t == signed) && (journal != null)) {
+            journal.clear();
         }
+        signed = null;
+    }
 
-        // Include signatures in transaction.
-        for (int i = 0; i < numInputs; i++) {
-            TransactionSignature txSig = TransactionSignature.decodeFromBitcoin(signatures[i], true);
-            t.getInput(i).setScriptSig(ScriptBuilder.createInputScript(txSig, pubKeys[i]));
+    @Override
+    public synchronized Transaction getUnfinishedTransaction(NetworkParameters params) {
+        if ((journal == null) || (journal.getTransactionBytes() == null)) {
+            return null;
+        }
+        try {
+            return new Transaction(params, journal.getTransactionBytes());
+        } catch (ProtocolException e) {
+            console.log(e);
+            journal.clear();
+            return null;
         }
-        return true;
     }
 
 }
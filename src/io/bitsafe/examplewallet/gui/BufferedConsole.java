@@ -0,0 +1,144 @@
+/* This file is licensed as described by the file LICENCE. */
+
+package io.bitsafe.examplewallet.gui;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.HierarchyEvent;
+import java.awt.event.HierarchyListener;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.swing.JTextArea;
+import javax.swing.Timer;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Element;
+
+/** Console which can be logged to from any thread without blocking. Logged
+ * text is queued and then appended to a text area in the Swing UI thread,
+ * in one batch per refresh interval. The text area is kept to a maximum
+ * number of lines by throwing away the oldest lines.
+ *
+ * The refresh timer only runs while the text area is displayable, so once
+ * its window is disposed the timer no longer keeps the UI thread busy.
+ *
+ * @author Chris Chua
+ */
+public class BufferedConsole implements Console {
+    /** How often queued text is appended to the text area, in milliseconds.
+     * This is about one frame at 60 Hz. */
+    public static final int REFRESH_INTERVAL_MS = 16;
+    /** Put in place of the lines cut off a message which is too long to be
+     * queued whole. */
+    private static final String TRIMMED_MARKER = "[...]\n";
+
+    private final JTextArea view;
+    private final int maxLines;
+    private final int maxPendingChars;
+    private final ConcurrentLinkedQueue<String> pending;
+    private final AtomicInteger pendingChars;
+    private final Timer timer;
+
+    /**
+     * @param inView Text area to display text in
+     * @param inMaxLines Maximum number of lines to keep in the text area
+     * @param inMaxPendingChars Maximum amount of text which can be waiting
+     *                          to be displayed; beyond this the oldest
+     *                          waiting text (or the oldest lines of a
+     *                          message which is too long on its own) is
+     *                          dropped
+     */
+    public BufferedConsole(JTextArea inView, int inMaxLines, int inMaxPendingChars) {
+        view = inView;
+        maxLines = inMaxLines;
+        maxPendingChars = inMaxPendingChars;
+        pending = new ConcurrentLinkedQueue<>();
+        pendingChars = new AtomicInteger(0);
+        timer = new Timer(REFRESH_INTERVAL_MS, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                flush();
+            }
+        });
+        timer.setCoalesce(true);
+        view.addHierarchyListener(new HierarchyListener() {
+            @Override
+            public void hierarchyChanged(HierarchyEvent e) {
+                if ((e.getChangeFlags() & HierarchyEvent.DISPLAYABILITY_CHANGED) != 0) {
+                    if (view.isDisplayable()) {
+                        timer.start();
+                    } else {
+                        stop();
+                    }
+                }
+            }
+        });
+        if (view.isDisplayable()) {
+            timer.start();
+        }
+    }
+
+    @Override
+    public void log(String text) {
+        if (text.length() > maxPendingChars) {
+            text = trimToFit(text);
+        }
+        pending.offer(text);
+        // If the UI thread can't keep up, don't let the queue grow forever.
+        if (pendingChars.addAndGet(text.length()) > maxPendingChars) {
+            String dropped;
+            while ((pendingChars.get() > maxPendingChars) && ((dropped = pending.poll()) != null)) {
+                pendingChars.addAndGet(-dropped.length());
+            }
+        }
+    }
+
+    @Override
+    public void log(Exception e) {
+        log(e.toString() + "\n");
+    }
+
+    /** Cut the oldest lines off a message which is longer than
+     * maxPendingChars, so that the newest part of it can still be shown. */
+    private String trimToFit(String text) {
+        int keep = maxPendingChars - TRIMMED_MARKER.length();
+        if (keep <= 0) {
+            return text.substring(text.length() - maxPendingChars);
+        }
+        int start = text.length() - keep;
+        // Start at a line boundary if there is one.
+        int newline = text.indexOf('\n', start - 1);
+        if ((newline >= 0) && (newline < text.length() - 1)) {
+            start = newline + 1;
+        }
+        return TRIMMED_MARKER + text.substring(start);
+    }
+
+    public void stop() {
+        timer.stop();
+    }
+
+    /** Move queued text into the text area. Must be called from the Swing UI
+     * thread. */
+    private void flush() {
+        String s = pending.poll();
+        if (s == null) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        do {
+            sb.append(s);
+            pendingChars.addAndGet(-s.length());
+        } while ((s = pending.poll()) != null);
+        view.append(sb.toString());
+
+        Element root = view.getDocument().getDefaultRootElement();
+        int excess = root.getElementCount() - maxLines;
+        if (excess > 0) {
+            try {
+                view.getDocument().remove(0, root.getElement(excess - 1).getEndOffset());
+            } catch (BadLocationException e) {
+                // Can't happen, since the offset came from the document.
+            }
+        }
+    }
+}
@@ -6,6 +6,7 @@ import com.google.bitcoin.core.AddressFormatException;
 import com.google.bitcoin.core.InsufficientMoneyException;
 import com.google.bitcoin.core.Utils;
 import com.google.bitcoin.store.UnreadableWalletException;
+import io.bitsafe.examplewallet.bitcoin.AddressPool;
 import io.bitsafe.examplewallet.bitcoin.BitcoinJInterface;
 import io.bitsafe.examplewallet.bitcoin.WalletBalanceObserver;
 import io.bitsafe.examplewallet.dev.Address;
@@ -22,7 +23,6 @@ import java.math.BigInteger;
 import java.nio.charset.Charset;
 import java.util.Iterator;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.locks.ReentrantLock;
 
 /**
  *
@@ -35,18 +35,29 @@ public class MainFrame extends javax.swing.JFrame
     public static String DATA_DIR = ".";
     /** Prefix of data filenames. */
     public static String FILE_PREFIX = "example-wallet-testnet";
+    /** Address pool is refilled when it has fewer than this many addresses. */
+    public static int ADDRESS_POOL_LOW_WATERMARK = 2;
+    /** Address pool is refilled up to this many addresses. */
+    public static int ADDRESS_POOL_HIGH_WATERMARK = 5;
+    /** Maximum number of lines kept in the console. */
+    public static int CONSOLE_MAX_LINES = 10000;
+    /** Maximum number of characters waiting to be shown in the console. */
+    public static int CONSOLE_MAX_PENDING_CHARS = 1000000;
 
     private BitSafeDevice bitsafe;
-    private final ReentrantLock consoleLock;
+    private final BufferedConsole consoleBuffer;
     private final BitcoinJInterface bitcoinj;
     private Session bitsafeSession;
     private Wallet currentBitSafeWallet;
+    private AddressPool addressPool;
 
     /**
      * Creates new form MainFrame
      */
     public MainFrame() {
         initComponents();
+        consoleBuffer = new BufferedConsole(console,
+                MainFrame.CONSOLE_MAX_LINES, MainFrame.CONSOLE_MAX_PENDING_CHARS);
         addWindowListener(new WindowAdapter()
         {
             @Override
@@ -58,15 +69,15 @@ public class MainFrame extends javax.swing.JFrame
         try {
             bitsafe = new BitSafeDevice(this);
         } catch (IOException e) {
-            console.append(e.toString() + "\n");
+            log(e);
         }
-        consoleLock = new ReentrantLock();
         //bitcoinj = null;
         bitcoinj = new BitcoinJInterface(MainFrame.DATA_DIR, MainFrame.FILE_PREFIX);
         bitcoinj.setObserver(this);
     }
 
     public void onClose() {
+        closeAddressPool();
         if (bitsafeSession != null) {
             bitsafeSession.initialize();
         }
@@ -297,6 +308,9 @@ public class MainFrame extends javax.swing.JFrame
 
     private void jMenuItemDevDisconnectActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_jMenuItemDevDisconnectActionPerformed
         bitsafe.disconnect();
+        if (bitsafeSession != null) {
+            bitsafeSession.clearCache();
+        }
     }//GEN-LAST:event_jMenuItemDevDisconnectActionPerformed
 
     private void receiveButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_receiveButtonActionPerformed
@@ -317,6 +331,7 @@ public class MainFrame extends javax.swing.JFrame
     }//GEN-LAST:event_jMenuItemListWalletsActionPerformed
 
     private void jMenuItemUnloadActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_jMenuItemUnloadActionPerformed
+        closeAddressPool();
         bitsafeSession.initialize();
         if (bitcoinj != null) {
             bitcoinj.setAddressGenerator(bitcoinj);
@@ -358,6 +373,7 @@ public class MainFrame extends javax.swing.JFrame
                 bitsafeSession.deleteWallet(dialog.getWalletNumber(), this);
                 File f = Wallet.getWalletFile(MainFrame.DATA_DIR, MainFrame.FILE_PREFIX, dialog.getWalletNumber());
                 f.delete();
+                Wallet.getJournalFile(MainFrame.DATA_DIR, MainFrame.FILE_PREFIX, dialog.getWalletNumber()).delete();
                 if (bitcoinj != null) {
                     bitcoinj.deleteWallet(dialog.getWalletNumber());
                 }
@@ -396,12 +412,14 @@ public class MainFrame extends javax.swing.JFrame
         if (currentBitSafeWallet != null) {
             Iterator<Address> iterator = currentBitSafeWallet.getAddresses().iterator();
             int index = 1;
+            StringBuilder sb = new StringBuilder();
             while (iterator.hasNext()) {
                 Address a = iterator.next();
-                log(Integer.toString(index++) + ": ");
-                log(a.toECKey().toAddress(bitcoinj.params()).toString());
-                log("\n");
+                sb.append(index++).append(": ");
+                sb.append(a.toECKey().toAddress(bitcoinj.params()).toString());
+                sb.append("\n");
             }
+            log(sb.toString());
         }
     }//GEN-LAST:event_jMenuItemListAddressesActionPerformed
 
@@ -459,12 +477,7 @@ public class MainFrame extends javax.swing.JFrame
 
     @Override
     public void log(String text) {
-        consoleLock.lock();
-        try {
-            console.append(text);
-        } finally {
-            consoleLock.unlock();
-        }
+        consoleBuffer.log(text);
     }
 
     @Override
@@ -495,8 +508,14 @@ public class MainFrame extends javax.swing.JFrame
     }
 
     private void onLoadWallet(Wallet w) {
+        closeAddressPool();
+        if (currentBitSafeWallet != null) {
+            // Keep the unused keys from its address pool.
+            currentBitSafeWallet.saveToFile(MainFrame.DATA_DIR, MainFrame.FILE_PREFIX);
+        }
         currentBitSafeWallet = w;
         w.loadFromFile(MainFrame.DATA_DIR, MainFrame.FILE_PREFIX);
+        w.openSigningJournal(MainFrame.DATA_DIR, MainFrame.FILE_PREFIX);
         if (bitcoinj != null) {
             try {
                 bitcoinj.loadWallet(w.getWalletNumber());
@@ -504,9 +523,30 @@ public class MainFrame extends javax.swing.JFrame
                 log(e);
             }
             w.sync(bitcoinj.wallet());
-            bitcoinj.setAddressGenerator(w);
+            addressPool = new AddressPool(w,
+                    MainFrame.ADDRESS_POOL_LOW_WATERMARK,
+                    MainFrame.ADDRESS_POOL_HIGH_WATERMARK,
+                    null, w.takeUnusedKeys());
+            bitcoinj.setAddressGenerator(addressPool);
         }
         w.saveToFile(MainFrame.DATA_DIR, MainFrame.FILE_PREFIX);
     }
 
+    private void closeAddressPool() {
+        if (addressPool != null) {
+            if (bitcoinj != null) {
+                bitcoinj.setAddressGenerator(bitcoinj);
+            }
+            if (!addressPool.close()) {
+                // The device lock keeps it from getting in the way of
+                // whatever is done next.
+                log("Address pool is still waiting for the device\n");
+            }
+            if (currentBitSafeWallet != null) {
+                currentBitSafeWallet.setUnusedKeys(addressPool.takeUnused());
+            }
+            addressPool = null;
+        }
+    }
+
 }
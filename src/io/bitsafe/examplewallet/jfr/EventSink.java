@@ -0,0 +1,33 @@
+/* This file is licensed as described by the file LICENCE. */
+
+package io.bitsafe.examplewallet.jfr;
+
+/** Where Trace sends events. The only implementation, JfrEvents, needs
+ * jdk.jfr, so it is compiled separately from the rest of the program (see
+ * jfr.src.dir in build.xml) and only loaded if it is there. Each begin
+ * method returns a handle for the matching end method.
+ *
+ * @author Chris Chua
+ */
+interface EventSink {
+    Object beginOperation(String name, long correlationId, boolean outermost);
+
+    /** @return true if this was the outermost operation */
+    boolean endOperation(Object handle);
+
+    Object beginReport(boolean outgoing, long correlationId);
+
+    void endReport(Object handle, int bytes);
+
+    Object beginPacket(boolean outgoing, int lastSentType, long correlationId);
+
+    void endPacket(Object handle, int packetType, int bytes);
+
+    Object beginSignStream(int inputIndex, long correlationId);
+
+    void endSignStream(Object handle, int inputs, int bytes);
+
+    Object beginStage(String stage, long correlationId);
+
+    void endStage(Object handle);
+}
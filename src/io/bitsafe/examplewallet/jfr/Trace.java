@@ -0,0 +1,146 @@
+/* This file is licensed as described by the file LICENCE. */
+
+package io.bitsafe.examplewallet.jfr;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Entry points for emitting Java Flight Recorder events. Everything here
+ * is safe to call on a JVM without JFR, or when the program was built
+ * without the JFR events (which need a JDK with jdk.jfr); in that case, or
+ * when nothing is recording, each begin method just reads one volatile
+ * field and returns null, and each end method does nothing when passed
+ * null.
+ *
+ * Events which happen while a device operation is in progress on the same
+ * thread (see beginOperation()) carry that operation's correlation ID, so
+ * that reports and packets can be matched up with the operation that
+ * caused them.
+ *
+ * @author Chris Chua
+ */
+public class Trace {
+    /** Name of the class which emits the events; see EventSink. */
+    private static final String SINK_CLASS = "io.bitsafe.examplewallet.jfr.JfrEvents";
+    /** Where events go, or null if JFR isn't available. */
+    private static final EventSink SINK;
+    private static final AtomicLong nextCorrelationId = new AtomicLong(1);
+    /** Correlation ID of the operation in progress on each thread, or 0. */
+    private static final ThreadLocal<long[]> currentCorrelationId = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+    /** Set by JfrEvents whenever a recording starts or stops, so it is
+     * only ever true if SINK isn't null. */
+    static volatile boolean recording = false;
+
+    static {
+        EventSink sink = null;
+        try {
+            Class.forName("jdk.jfr.FlightRecorder");
+            sink = (EventSink)Class.forName(SINK_CLASS).getConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            // No jdk.jfr, or the events weren't built (or were built for a
+            // newer Java).
+        }
+        SINK = sink;
+    }
+
+    private Trace() {
+    }
+
+    public static boolean isRecording() {
+        return recording;
+    }
+
+    private static long correlationId() {
+        return currentCorrelationId.get()[0];
+    }
+
+    /** Start a device or wallet operation. Operations nested in another
+     * operation on the same thread share its correlation ID.
+     * @param name Name of operation, eg. "SignTransaction"
+     * @return Handle to pass to endOperation()
+     */
+    public static Object beginOperation(String name) {
+        if (!recording) {
+            return null;
+        }
+        long[] current = currentCorrelationId.get();
+        boolean outermost = (current[0] == 0);
+        if (outermost) {
+            current[0] = nextCorrelationId.getAndIncrement();
+        }
+        return SINK.beginOperation(name, current[0], outermost);
+    }
+
+    public static void endOperation(Object handle) {
+        if (handle != null) {
+            if (SINK.endOperation(handle)) {
+                currentCorrelationId.get()[0] = 0;
+            }
+        }
+    }
+
+    /** Start sending (outgoing = true) or receiving a USB HID report. */
+    public static Object beginReport(boolean outgoing) {
+        if (!recording) {
+            return null;
+        }
+        return SINK.beginReport(outgoing, correlationId());
+    }
+
+    public static void endReport(Object handle, int bytes) {
+        if (handle != null) {
+            SINK.endReport(handle, bytes);
+        }
+    }
+
+    /** Start sending (outgoing = true) or receiving a packet.
+     * @param outgoing Direction of packet
+     * @param lastSentType For incoming packets, the type of the packet that
+     *                     was sent before it. The time spent waiting for a
+     *                     packet after a ButtonAck is button wait time.
+     */
+    public static Object beginPacket(boolean outgoing, int lastSentType) {
+        if (!recording) {
+            return null;
+        }
+        return SINK.beginPacket(outgoing, lastSentType, correlationId());
+    }
+
+    public static void endPacket(Object handle, int packetType, int bytes) {
+        if (handle != null) {
+            SINK.endPacket(handle, packetType, bytes);
+        }
+    }
+
+    /** Start building a SignTransaction stream. */
+    public static Object beginSignStream(int inputIndex) {
+        if (!recording) {
+            return null;
+        }
+        return SINK.beginSignStream(inputIndex, correlationId());
+    }
+
+    public static void endSignStream(Object handle, int inputs, int bytes) {
+        if (handle != null) {
+            SINK.endSignStream(handle, inputs, bytes);
+        }
+    }
+
+    /** Start a stage of a bitcoinj operation, eg. "completeTx". */
+    public static Object beginStage(String stage) {
+        if (!recording) {
+            return null;
+        }
+        return SINK.beginStage(stage, correlationId());
+    }
+
+    public static void endStage(Object handle) {
+        if (handle != null) {
+            SINK.endStage(handle);
+        }
+    }
+}
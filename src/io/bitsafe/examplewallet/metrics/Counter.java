@@ -0,0 +1,50 @@
+/* This file is licensed as described by the file LICENCE. */
+
+package io.bitsafe.examplewallet.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** Monotonically increasing count. Increments are spread over several
+ * cells, each on its own cache line, so that threads incrementing the same
+ * counter don't contend with each other. Reading the count sums the cells.
+ *
+ * @author Chris Chua
+ */
+public class Counter {
+    /** Number of cells; a power of 2. */
+    private static final int STRIPES;
+    /** Cells are this many longs apart, so that each is on its own 64 byte
+     * cache line. */
+    private static final int PADDING = 8;
+
+    static {
+        int stripes = 1;
+        while (stripes < Runtime.getRuntime().availableProcessors() * 2) {
+            stripes <<= 1;
+        }
+        STRIPES = stripes;
+    }
+
+    private final AtomicLongArray cells;
+
+    public Counter() {
+        cells = new AtomicLongArray(STRIPES * PADDING);
+    }
+
+    public void inc() {
+        add(1);
+    }
+
+    public void add(long amount) {
+        int stripe = (int)Thread.currentThread().getId() & (STRIPES - 1);
+        cells.getAndAdd(stripe * PADDING, amount);
+    }
+
+    public long get() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,20 @@
+/* This file is licensed as described by the file LICENCE. */
+
+package io.bitsafe.examplewallet.metrics;
+
+/** Value which can go up and down. Either set() it, or override get() to
+ * read the value from somewhere else whenever metrics are collected.
+ *
+ * @author Chris Chua
+ */
+public class Gauge {
+    private volatile double value;
+
+    public void set(double newValue) {
+        value = newValue;
+    }
+
+    public double get() {
+        return value;
+    }
+}
@@ -0,0 +1,81 @@
+/* This file is licensed as described by the file LICENCE. */
+
+package io.bitsafe.examplewallet.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** Histogram of durations with log-linear buckets: each power of 2 is
+ * split into SUB_BUCKETS equal parts, which keeps the relative error of
+ * any bucket under 25% while covering 16 microseconds to over 2 minutes.
+ * Recording a duration is a couple of shifts and two atomic adds.
+ *
+ * @author Chris Chua
+ */
+public class LatencyHistogram {
+    /** Durations below 2 ^ MIN_EXPONENT nanoseconds all go in the first
+     * bucket. */
+    private static final int MIN_EXPONENT = 14;
+    /** Durations of 2 ^ MAX_EXPONENT nanoseconds or more all go in the
+     * overflow bucket. */
+    private static final int MAX_EXPONENT = 37;
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /** One underflow bucket, the log-linear buckets, then one overflow
+     * bucket. */
+    static final int BUCKETS = 1 + (MAX_EXPONENT - MIN_EXPONENT) * SUB_BUCKETS + 1;
+
+    private final AtomicLongArray counts;
+    private final Counter sumNanos;
+
+    public LatencyHistogram() {
+        counts = new AtomicLongArray(BUCKETS);
+        sumNanos = new Counter();
+    }
+
+    /** Record a duration.
+     * @param nanos Duration in nanoseconds
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(bucketOf(nanos));
+        sumNanos.add(nanos);
+    }
+
+    /** Record the time since a System.nanoTime() value. */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    static int bucketOf(long nanos) {
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if (exponent < MIN_EXPONENT) {
+            return 0;
+        } else if (exponent >= MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int sub = (int)(nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return 1 + (exponent - MIN_EXPONENT) * SUB_BUCKETS + sub;
+    }
+
+    /** Get the upper bound (inclusive, for Prometheus' "le") of a bucket,
+     * in nanoseconds. The overflow bucket has no upper bound. */
+    static long upperBoundOf(int bucket) {
+        if (bucket == 0) {
+            return 1L << MIN_EXPONENT;
+        }
+        int exponent = MIN_EXPONENT + (bucket - 1) / SUB_BUCKETS;
+        int sub = (bucket - 1) % SUB_BUCKETS;
+        return (long)(SUB_BUCKETS + sub + 1) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    long getCount(int bucket) {
+        return counts.get(bucket);
+    }
+
+    /** Get the total of all recorded durations, in nanoseconds. */
+    public long getSumNanos() {
+        return sumNanos.get();
+    }
+}
@@ -0,0 +1,80 @@
+/* This file is licensed as described by the file LICENCE. */
+
+package io.bitsafe.examplewallet.metrics;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/** The metrics which the wallet collects, all in one registry. The hot
+ * path metrics are looked up once here, so that recording them doesn't
+ * involve any map lookups.
+ *
+ * @author Chris Chua
+ */
+public class Metrics {
+    public static final MetricsRegistry REGISTRY = new MetricsRegistry();
+
+    public static final Counter REPORTS_SENT = REGISTRY.counter("bitsafe_reports_total",
+            "USB HID reports exchanged with the BitSafe.", "direction", "out");
+    public static final Counter REPORTS_RECEIVED = REGISTRY.counter("bitsafe_reports_total",
+            "USB HID reports exchanged with the BitSafe.", "direction", "in");
+    public static final Counter BYTES_SENT = REGISTRY.counter("bitsafe_report_bytes_total",
+            "Packet bytes (including headers) exchanged with the BitSafe.", "direction", "out");
+    public static final Counter BYTES_RECEIVED = REGISTRY.counter("bitsafe_report_bytes_total",
+            "Packet bytes (including headers) exchanged with the BitSafe.", "direction", "in");
+    public static final Counter FRAMING_ERRORS = REGISTRY.counter("bitsafe_framing_errors_total",
+            "Packets from the BitSafe which were garbled and thrown away.");
+    public static final Counter RETRIES = REGISTRY.counter("bitsafe_request_retries_total",
+            "Requests sent again because their response was garbled.");
+    public static final Counter SIGNATURES = REGISTRY.counter("bitsafe_signatures_total",
+            "Transaction inputs signed by the BitSafe.");
+    public static final Counter ADDRESSES_SYNCED = REGISTRY.counter("bitsafe_addresses_synced_total",
+            "Addresses read from the BitSafe while syncing.");
+    public static final LatencyHistogram ADDRESS_SAVE_DURATION = REGISTRY.histogram(
+            "bitsafe_wallet_save_duration_seconds", "Time taken to save a wallet to disk.", "store", "addresses");
+    public static final LatencyHistogram BITCOINJ_SAVE_DURATION = REGISTRY.histogram(
+            "bitsafe_wallet_save_duration_seconds", "Time taken to save a wallet to disk.", "store", "bitcoinj");
+
+    /** Packet types are 16 bit, but all the ones in use are small. */
+    private static final int CACHED_TYPES = 256;
+    private static final AtomicReferenceArray<LatencyHistogram> requestDurations =
+            new AtomicReferenceArray<>(CACHED_TYPES);
+
+    /** Get the histogram of round trip times for requests of one type.
+     * @param packetType One of the PACKET_TYPE_x constants from Packet
+     */
+    public static LatencyHistogram requestDuration(int packetType) {
+        if ((packetType < 0) || (packetType >= CACHED_TYPES)) {
+            return requestDurationUncached(packetType);
+        }
+        LatencyHistogram h = requestDurations.get(packetType);
+        if (h == null) {
+            h = requestDurationUncached(packetType);
+            requestDurations.set(packetType, h);
+        }
+        return h;
+    }
+
+    private static LatencyHistogram requestDurationUncached(int packetType) {
+        return REGISTRY.histogram("bitsafe_request_duration_seconds",
+                "Time from sending a request to the BitSafe to receiving its response.",
+                "type", Integer.toString(packetType));
+    }
+
+    /** Get the histogram of how long one stage of sending a transaction
+     * takes.
+     * @param stage Stage name, eg. "sign"
+     */
+    public static LatencyHistogram sendStageDuration(String stage) {
+        return REGISTRY.histogram("bitsafe_send_stage_duration_seconds",
+                "Time taken by each stage of sending a transaction, from building it to broadcasting it.",
+                "stage", stage);
+    }
+
+    /** Count a Failure response from the BitSafe.
+     * @param errorCode error_code field of the Failure message
+     */
+    public static void failure(int errorCode) {
+        REGISTRY.counter("bitsafe_failures_total", "Failure responses from the BitSafe.",
+                "code", Integer.toString(errorCode)).inc();
+    }
+}
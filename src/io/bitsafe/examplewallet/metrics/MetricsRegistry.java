@@ -0,0 +1,160 @@
+/* This file is licensed as described by the file LICENCE. */
+
+package io.bitsafe.examplewallet.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/** Collection of named metrics, which can be written out in the Prometheus
+ * text exposition format. Metrics with the same name but different labels
+ * form one family, which must all be of the same kind.
+ *
+ * @author Chris Chua
+ */
+public class MetricsRegistry {
+    private static class Family {
+        final String name;
+        final String help;
+        final String type;
+        /** Metrics keyed by their formatted label set, eg. {a="b"}. */
+        final ConcurrentSkipListMap<String, Object> members;
+
+        Family(String inName, String inHelp, String inType) {
+            name = inName;
+            help = inHelp;
+            type = inType;
+            members = new ConcurrentSkipListMap<>();
+        }
+    }
+
+    private final ConcurrentSkipListMap<String, Family> families;
+
+    public MetricsRegistry() {
+        families = new ConcurrentSkipListMap<>();
+    }
+
+    /** Get or create a counter.
+     * @param name Metric name, eg. "bitsafe_reports_total"
+     * @param help Description of metric
+     * @param labels Label names and values, alternating
+     */
+    public Counter counter(String name, String help, String... labels) {
+        return (Counter)getOrCreate(name, help, "counter", labels, new Counter());
+    }
+
+    /** Get or create a gauge which is set by the caller. */
+    public Gauge gauge(String name, String help, String... labels) {
+        return (Gauge)getOrCreate(name, help, "gauge", labels, new Gauge());
+    }
+
+    /** Add a gauge, replacing any existing gauge with the same name and
+     * labels. Use this for gauges which override get(). */
+    public Gauge register(String name, String help, Gauge gauge, String... labels) {
+        family(name, help, "gauge").members.put(formatLabels(labels), gauge);
+        return gauge;
+    }
+
+    /** Get or create a latency histogram. */
+    public LatencyHistogram histogram(String name, String help, String... labels) {
+        return (LatencyHistogram)getOrCreate(name, help, "histogram", labels, new LatencyHistogram());
+    }
+
+    private Object getOrCreate(String name, String help, String type, String[] labels, Object fresh) {
+        ConcurrentMap<String, Object> members = family(name, help, type).members;
+        String key = formatLabels(labels);
+        Object existing = members.putIfAbsent(key, fresh);
+        return (existing != null) ? existing : fresh;
+    }
+
+    private Family family(String name, String help, String type) {
+        Family f = families.get(name);
+        if (f == null) {
+            Family fresh = new Family(name, help, type);
+            f = families.putIfAbsent(name, fresh);
+            if (f == null) {
+                f = fresh;
+            }
+        }
+        if (!f.type.equals(type)) {
+            throw new IllegalArgumentException("Metric " + name + " is already a " + f.type);
+        }
+        return f;
+    }
+
+    private static String formatLabels(String[] labels) {
+        if (labels.length == 0) {
+            return "";
+        }
+        if ((labels.length % 2) != 0) {
+            throw new IllegalArgumentException("Labels must be name/value pairs");
+        }
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(labels[i]).append("=\"");
+            String value = labels[i + 1];
+            for (int j = 0; j < value.length(); j++) {
+                char c = value.charAt(j);
+                if (c == '\\') {
+                    sb.append("\\\\");
+                } else if (c == '"') {
+                    sb.append("\\\"");
+                } else if (c == '\n') {
+                    sb.append("\\n");
+                } else {
+                    sb.append(c);
+                }
+            }
+            sb.append('"');
+        }
+        return sb.append('}').toString();
+    }
+
+    /** Add a label to a formatted label set. */
+    private static String withLabel(String labels, String name, String value) {
+        String label = name + "=\"" + value + "\"";
+        if (labels.isEmpty()) {
+            return "{" + label + "}";
+        }
+        return labels.substring(0, labels.length() - 1) + "," + label + "}";
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+
+    /** Write all metrics in the Prometheus text exposition format
+     * (version 0.0.4). */
+    public void write(Writer out) throws IOException {
+        for (Family f : families.values()) {
+            out.write("# HELP " + f.name + " " + f.help.replace("\\", "\\\\").replace("\n", "\\n") + "\n");
+            out.write("# TYPE " + f.name + " " + f.type + "\n");
+            for (Map.Entry<String, Object> member : f.members.entrySet()) {
+                String labels = member.getKey();
+                Object metric = member.getValue();
+                if (metric instanceof Counter) {
+                    out.write(f.name + labels + " " + ((Counter)metric).get() + "\n");
+                } else if (metric instanceof Gauge) {
+                    out.write(f.name + labels + " " + ((Gauge)metric).get() + "\n");
+                } else if (metric instanceof LatencyHistogram) {
+                    LatencyHistogram h = (LatencyHistogram)metric;
+                    long cumulative = 0;
+                    for (int i = 0; i < LatencyHistogram.BUCKETS - 1; i++) {
+                        cumulative += h.getCount(i);
+                        out.write(f.name + "_bucket" + withLabel(labels, "le", seconds(LatencyHistogram.upperBoundOf(i)))
+                                + " " + cumulative + "\n");
+                    }
+                    cumulative += h.getCount(LatencyHistogram.BUCKETS - 1);
+                    out.write(f.name + "_bucket" + withLabel(labels, "le", "+Inf") + " " + cumulative + "\n");
+                    out.write(f.name + "_sum" + labels + " " + seconds(h.getSumNanos()) + "\n");
+                    out.write(f.name + "_count" + labels + " " + cumulative + "\n");
+                }
+            }
+        }
+    }
+}